@@ -0,0 +1,130 @@
+#!/bin/sh
+#
+# Runs the regression programs through every engine and option of Lab3 and Lab4 and compares
+# what they print with the expected output.
+#
+# For each NAME.txt in this directory:
+#   NAME.lab3.out            is what Lab3 prints, with either engine
+#   NAME.out                 is what Lab4 prints, with every engine and every join option
+#   NAME.rewrite.out         is what Lab4 --rewrite-report prints
+#   NAME.count.out           is what Lab4 --count prints, with every engine
+#   NAME.limit0.out          is what Lab4 --limit=0 prints, with every engine
+#   NAME.limit2.out          is what Lab4 --limit=2 prints, with every engine
+#   NAME.factorize.out       is what Lab4 --factorize prints, with every engine
+# The Lab3 lists came from the first version of Lab3 (integers.lab3.out and headonly.lab3.out
+# excepted, since it couldn't read integers, and wide.txt and toowide.txt, which it never
+# finished and which were checked by hand).
+# The first Lab4 lost answers to recursive Rules, so the Lab4 lists came from the bottom-up engine
+# with every optimization off and were checked by hand against a naive fixpoint.
+# optimizer.txt has Rules for every rewrite of the RuleOptimizer, so its list is checked with
+# and without the optimizer like every other.
+# The other modes were checked against the lists they summarize.
+#
+# It also writes out programs too big to keep here: a chain of 20000 Rules in both orders and a
+# chain of 1000 Facts with a recursive ancestor Rule, and checks them with the default stack.
+# Last it checks that Lab3 and Lab4 print their usage instead of answering anything when an
+# option can't be used.
+#
+# Usage: regression/run.sh [directory with the compiled classes, build/classes by default]
+
+CLASSES=${1:-build/classes}
+DIR=$(dirname "$0")
+TMP=$(mktemp -d)
+trap 'rm -rf "$TMP"' EXIT
+ENGINES="bottom-up top-down magic-sets"
+FAILED=0
+RUN=0
+
+# check EXPECTED LAB ARGS... runs a lab and compares its output with the EXPECTED file
+check(){
+	sExpected=$1
+	sLab=$2
+	shift 2
+	RUN=$((RUN + 1))
+	if ! java -cp "$CLASSES" "cs236.$sLab.$(echo "$sLab" | sed 's/^l/L/')" "$@" > "$TMP/actual" 2>&1 \
+			|| ! cmp -s "$sExpected" "$TMP/actual"; then
+		FAILED=$((FAILED + 1))
+		echo "FAIL: $sLab $* (expected $sExpected)"
+		diff "$sExpected" "$TMP/actual" | head -10
+	fi
+}
+
+for sProgram in "$DIR"/*.txt; do
+	sName=${sProgram%.txt}
+	if [ -f "$sName.lab3.out" ]; then
+		for sEngine in algebra enumerate; do
+			check "$sName.lab3.out" lab3 --engine=$sEngine "$sProgram"
+		done
+	fi
+	if [ ! -f "$sName.out" ]; then
+		continue
+	fi
+	for sEngine in $ENGINES; do
+		for sOptions in "" "--no-optimize --no-prune" "--no-batch" "--layout=trie" "--check-compiled"; do
+			check "$sName.out" lab4 --engine=$sEngine $sOptions "$sProgram"
+		done
+		if [ -f "$sName.rewrite.out" ]; then
+			check "$sName.rewrite.out" lab4 --engine=$sEngine --rewrite-report "$sProgram"
+		fi
+		for sMode in count limit0 limit2 factorize; do
+			if [ -f "$sName.$sMode.out" ]; then
+				sOption=$(echo "--$sMode" | sed 's/limit\([0-9]*\)/limit=\1/')
+				check "$sName.$sMode.out" lab4 --engine=$sEngine $sOption "$sProgram"
+			fi
+		done
+	done
+done
+
+# p20000(X) :- p19999(X). ... p1(X) :- p0(X), written last to first and first to last
+for sOrder in reversed forward; do
+	awk -v sOrder=$sOrder 'BEGIN{
+		print "Schemes:\n  p0(X)\nFacts:\n  p0('"'a'"').\n  p0('"'b'"').\nRules:"
+		for(i = 1; i <= 20000; i++){
+			n = sOrder == "reversed" ? 20001 - i : i
+			printf "  p%d(X) :- p%d(X).\n", n, n - 1
+		}
+		print "Queries:\n  p20000(X)?\n  p20000('"'b'"')?\n  p20000('"'c'"')?"
+	}' > "$TMP/deep-$sOrder.txt"
+done
+printf "p20000(X)? Yes(2)\n  X='a'\n  X='b'\np20000('b')? Yes(1)\np20000('c')? No\n\n" > "$TMP/deep.out"
+printf "p20000(X)? Yes(0+)\np20000('b')? Yes(0+)\np20000('c')? No\n\n" > "$TMP/deep.limit0.out"
+
+# parent('p0','p1'). ... parent('p999','p1000'). with anc as the transitive closure
+awk 'BEGIN{
+	print "Schemes:\n  parent(X,Y)\nFacts:"
+	for(i = 0; i < 1000; i++){
+		printf "  parent('"'p%d'"','"'p%d'"').\n", i, i + 1
+	}
+	print "Rules:\n  anc(X,Y) :- parent(X,Y).\n  anc(X,Y) :- parent(X,Z), anc(Z,Y)."
+	print "Queries:\n  anc('"'p0'"',Y)?\n  anc(X,'"'p1000'"')?\n  anc('"'p0'"','"'p1000'"')?\n  anc('"'p1000'"','"'p0'"')?"
+}' > "$TMP/line.txt"
+printf "anc('p0',Y)? Yes(1000)\nanc(X,'p1000')? Yes(1000)\nanc('p0','p1000')? Yes(1)\nanc('p1000','p0')? No\n\n" > "$TMP/line.count.out"
+printf "anc('p0',Y)? Yes(0+)\nanc(X,'p1000')? Yes(0+)\nanc('p0','p1000')? Yes(0+)\nanc('p1000','p0')? No\n\n" > "$TMP/line.limit0.out"
+
+for sEngine in $ENGINES; do
+	for sOptions in "" "--no-optimize --no-prune"; do
+		for sOrder in reversed forward; do
+			check "$TMP/deep.out" lab4 --engine=$sEngine $sOptions "$TMP/deep-$sOrder.txt"
+			check "$TMP/deep.limit0.out" lab4 --engine=$sEngine $sOptions --limit=0 "$TMP/deep-$sOrder.txt"
+		done
+		check "$TMP/line.count.out" lab4 --engine=$sEngine $sOptions --count "$TMP/line.txt"
+		check "$TMP/line.limit0.out" lab4 --engine=$sEngine $sOptions --limit=0 "$TMP/line.txt"
+	done
+done
+
+# an option that can't be used stops everything, even the files before it
+LAB3_USAGE="Usage: Lab3 [--engine=algebra|enumerate] [--layout=hash|trie] [--count] [--limit=N] [--index-report] [--stats] file..."
+LAB4_USAGE="Usage: Lab4 [--engine=bottom-up|top-down|magic-sets] [--layout=hash|trie] [--count] [--factorize | --limit=N] [--no-optimize] [--no-prune] [--no-batch] [--compile] [--check-compiled] [--index-report] [--stats] [--join-report] [--rewrite-report] [--prune-report] file..."
+for sOption in --limit=-1 --limit=x --layout=x --engine=foo; do
+	printf "Option is not valid. Option:\n%s\n%s\n" "$sOption" "$LAB3_USAGE" > "$TMP/lab3.usage.out"
+	printf "Option is not valid. Option:\n%s\n%s\n" "$sOption" "$LAB4_USAGE" > "$TMP/lab4.usage.out"
+	check "$TMP/lab3.usage.out" lab3 "$DIR/sample.txt" $sOption "$DIR/sample.txt"
+	check "$TMP/lab4.usage.out" lab4 "$DIR/sample.txt" $sOption "$DIR/sample.txt"
+done
+printf -- "--factorize can't be used with --limit. Option:\n--limit=2\n%s\n" "$LAB4_USAGE" > "$TMP/lab4.usage.out"
+check "$TMP/lab4.usage.out" lab4 --factorize "$DIR/sample.txt" --limit=2 "$DIR/sample.txt"
+printf -- "--factorize can't be used with --limit. Option:\n--factorize\n%s\n" "$LAB4_USAGE" > "$TMP/lab4.usage.out"
+check "$TMP/lab4.usage.out" lab4 --limit=2 "$DIR/sample.txt" --factorize "$DIR/sample.txt"
+
+echo "$RUN runs, $FAILED failed"
+[ $FAILED -eq 0 ]
@@ -50,6 +50,10 @@ public enum TokenType {
 	 * Datalog Identifier- anything encapsulated by two double quotes
 	 */
 	STRING,
+	/**
+	 * Datalog Integer- an optional dash followed by one or more digits
+	 */
+	INTEGER,
 	/**
 	 * Left parenthesis
 	 */
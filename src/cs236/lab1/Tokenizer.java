@@ -233,6 +233,34 @@ public class Tokenizer {
 		return tReturn;
 	}
 
+	private Token readInteger(){
+		char tChar = this.getCurChar();
+		this.tokenData += tChar;
+
+		// the value is built up negative, like Long.parseLong, so Long.MIN_VALUE fits too
+		long lLimit = tChar == SYM_DASH ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long lValue = 0;
+		boolean bFits = true;
+		if(Character.isDigit(tChar)){
+			lValue = -Character.digit(tChar, 10);
+		}
+		while(Character.isDigit(this.peek(false))){
+			tChar = this.pop(false);
+			this.tokenData += tChar;
+			int iDigit = Character.digit(tChar, 10);
+			if(lValue < lLimit / 10 || lValue * 10 < lLimit + iDigit){
+				bFits = false;
+			}else{
+				lValue = lValue * 10 - iDigit;
+			}
+		}
+		// anything that doesn't fit in a long can't be stored, so don't pretend we can
+		if(!bFits || isValidIdentifierChar(this.peek(false), false)){
+			return new Token(TokenType.UNDEFINED, this.lineNumber, this.tokenData);
+		}
+		return new Token(TokenType.INTEGER, this.lineNumber, this.tokenData);
+	}
+
 	private Token readIdentifier(){
 		char tChar = this.getCurChar();
 		this.tokenData += tChar;
@@ -296,6 +324,8 @@ public class Tokenizer {
 		tokenData = new String();
 		if(Character.isLetter(tChar)){ // Identifiers (or keywords) are complex, keep them separate
 			return readIdentifier();
+		}else if(Character.isDigit(tChar) || (tChar == SYM_DASH && Character.isDigit(this.peek(false)))){
+			return readInteger();
 		}
 
 		Token tReturn = null; // to avoid lexical complexity, let's make a return value
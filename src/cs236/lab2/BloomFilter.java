@@ -0,0 +1,195 @@
+/*
+ * BloomFilter.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * BloomFilter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BloomFilter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+/**
+ * A split-block Bloom filter over the tuples of a single relation.
+ *
+ * Each key selects one 256 bit block (eight 32 bit words) and sets one bit in every word, so a
+ * probe touches a single cache line.  A negative answer is always correct; a positive answer
+ * only means the tuple might exist and has to be confirmed with a real lookup.
+ * @author T. Jameson Little
+ */
+public class BloomFilter {
+	private static final int WORDS_PER_BLOCK = 8;
+	private static final int BITS_PER_KEY = 16; // about 0.1% false positives for split-block filters
+	private static final int MIN_BLOCKS = 1;
+
+	// the same odd constants Parquet uses for its split-block filters
+	private static final int[] SALT = {
+		0x47b6137b, 0x44974d91, 0x8824ad5b, 0xa2b7289d,
+		0x705495c7, 0x2df1424b, 0x9efc4947, 0x5c6bfb31
+	};
+
+	private int[] words;
+	private int numBlocks;
+	private int capacity;
+	private int numKeys;
+
+	private long probes;
+	private long rejected;
+	private long falsePositives;
+
+	/**
+	 * Creates an empty filter sized for the expected number of keys.
+	 * @param iExpectedKeys how many keys this filter should hold before it starts to degrade
+	 */
+	public BloomFilter(int iExpectedKeys){
+		this.capacity = Math.max(iExpectedKeys, 1);
+		this.numBlocks = Math.max(MIN_BLOCKS, (this.capacity * BITS_PER_KEY + 255) / 256);
+		this.words = new int[this.numBlocks * WORDS_PER_BLOCK];
+		this.numKeys = 0;
+	}
+
+	/**
+	 * Adds a key (already hashed to 64 bits) to this filter.
+	 * @param lHash the 64 bit hash of the key
+	 */
+	public void add(long lHash){
+		int iBase = this.blockOffset(lHash);
+		int iKey = (int)lHash;
+		for(int i = 0; i < WORDS_PER_BLOCK; i++){
+			this.words[iBase + i] |= 1 << ((iKey * SALT[i]) >>> 27);
+		}
+		this.numKeys++;
+	}
+
+	/**
+	 * Checks whether a key might be in this filter.  This updates the probe counters.
+	 * @param lHash the 64 bit hash of the key
+	 * @return false if the key is definitely absent, true if it might be present
+	 */
+	public boolean mightContain(long lHash){
+		this.probes++;
+		int iBase = this.blockOffset(lHash);
+		int iKey = (int)lHash;
+		for(int i = 0; i < WORDS_PER_BLOCK; i++){
+			if((this.words[iBase + i] & (1 << ((iKey * SALT[i]) >>> 27))) == 0){
+				this.rejected++;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Records that a positive answer from mightContain() turned out to be wrong.
+	 * Callers should call this after the real lookup misses so the false-positive rate is known.
+	 */
+	public void recordFalsePositive(){
+		this.falsePositives++;
+	}
+
+	/**
+	 * Whether more keys were added than this filter was sized for.
+	 * Once saturated the false-positive rate climbs quickly, so the owner should rebuild it.
+	 * @return true if the filter should be rebuilt with a larger size
+	 */
+	public boolean isSaturated(){
+		return this.numKeys > this.capacity;
+	}
+
+	/**
+	 * Gets the number of keys added to this filter.
+	 * @return the number of keys
+	 */
+	public int getKeyCount(){
+		return this.numKeys;
+	}
+
+	/**
+	 * Gets the number of times mightContain() was called.
+	 * @return the number of probes
+	 */
+	public long getProbeCount(){
+		return this.probes;
+	}
+
+	/**
+	 * Gets the number of probes that were rejected without a real lookup.
+	 * @return the number of definite misses
+	 */
+	public long getRejectedCount(){
+		return this.rejected;
+	}
+
+	/**
+	 * Gets the number of probes that passed the filter and were confirmed by a real lookup.
+	 * @return the number of true hits
+	 */
+	public long getHitCount(){
+		return this.probes - this.rejected - this.falsePositives;
+	}
+
+	/**
+	 * Gets the number of probes that passed the filter but missed in the real lookup.
+	 * @return the number of false positives
+	 */
+	public long getFalsePositiveCount(){
+		return this.falsePositives;
+	}
+
+	/**
+	 * Gets the size of this filter's bit array in bytes.
+	 * @return the number of bytes used by the bit array
+	 */
+	public long getSizeInBytes(){
+		return this.words.length * 4L;
+	}
+
+	/**
+	 * Adds the probe counters of another filter to this one's.  A Relation calls this when it
+	 * replaces a saturated filter, so the counts cover every probe of the Relation.
+	 * @param tOld the filter being replaced
+	 */
+	public void addCounters(BloomFilter tOld){
+		this.probes += tOld.probes;
+		this.rejected += tOld.rejected;
+		this.falsePositives += tOld.falsePositives;
+	}
+
+	/**
+	 * Resets all of the probe counters without touching the filter itself.
+	 */
+	public void resetCounters(){
+		this.probes = 0;
+		this.rejected = 0;
+		this.falsePositives = 0;
+	}
+
+	private int blockOffset(long lHash){
+		// use the upper half of the hash for the block so it's independent of the bit pattern
+		long lUpper = lHash >>> 32;
+		return (int)((lUpper * this.numBlocks) >>> 32) * WORDS_PER_BLOCK;
+	}
+
+	/**
+	 * Summarizes the counters of this filter so it can be tuned.
+	 * @return a formatted String with the counters
+	 */
+	@Override
+	public String toString(){
+		return String.format("keys=%d bytes=%d probes=%d rejected=%d hits=%d falsePositives=%d",
+				this.numKeys, this.getSizeInBytes(), this.probes, this.rejected,
+				this.getHitCount(), this.falsePositives);
+	}
+}
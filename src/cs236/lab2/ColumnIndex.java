@@ -0,0 +1,213 @@
+/*
+ * ColumnIndex.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * ColumnIndex is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ColumnIndex is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+/**
+ * A secondary index on one or more columns of a Relation.
+ *
+ * It maps the values in those columns to the list of rows that have them, so a lookup with
+ * some of the arguments bound only touches the rows that can match.
+ * @author T. Jameson Little
+ */
+public class ColumnIndex {
+	private Relation relation;
+	private int[] columns;
+	private int columnMask;
+
+	// open addressing, each slot holds bucket + 1 so 0 can mean empty
+	private int[] table;
+	private int mask;
+
+	private IntList[] buckets;
+	private int numBuckets;
+
+	private long lastUsed;
+
+	/**
+	 * Creates an index on some columns of a Relation and adds every row it already has.
+	 * Use Relation.declareIndex() so the Relation keeps the index up to date.
+	 * @param tRelation the Relation to index
+	 * @param tColumns the columns in the key, in increasing order
+	 */
+	ColumnIndex(Relation tRelation, int[] tColumns){
+		this.relation = tRelation;
+		this.columns = tColumns.clone();
+		this.columnMask = 0;
+		for(int i : this.columns){
+			this.columnMask |= 1 << i;
+		}
+		this.table = new int[16];
+		this.mask = this.table.length - 1;
+		this.buckets = new IntList[8];
+		this.numBuckets = 0;
+
+		for(int iRow = 0; iRow < tRelation.size(); iRow++){
+			this.add(iRow);
+		}
+	}
+
+	/**
+	 * Gets the columns that make up the key of this index.
+	 * @return the columns in increasing order
+	 */
+	public int[] getColumns(){
+		return this.columns.clone();
+	}
+
+	/**
+	 * Gets the columns of this index as a bit mask (bit i is set if column i is in the key).
+	 * @return the bit mask of the key columns
+	 */
+	public int getColumnMask(){
+		return this.columnMask;
+	}
+
+	/**
+	 * Gets the number of distinct keys in this index.
+	 * @return the number of keys
+	 */
+	public int getKeyCount(){
+		return this.numBuckets;
+	}
+
+	/**
+	 * Gets the last time this index was picked for a scan, as a tick of the IndexAdvisor's clock.
+	 * @return the tick of the last use, or 0 if it was never used
+	 */
+	public long getLastUsed(){
+		return this.lastUsed;
+	}
+
+	/**
+	 * Records when this index was last picked for a scan.
+	 * @param lTick the tick of the IndexAdvisor's clock
+	 */
+	void setLastUsed(long lTick){
+		this.lastUsed = lTick;
+	}
+
+	/**
+	 * Estimates how much memory this index is using.
+	 * @return an estimate in bytes
+	 */
+	public long getSizeInBytes(){
+		long lSize = this.table.length * 4L + this.buckets.length * 8L;
+		for(int i = 0; i < this.numBuckets; i++){
+			lSize += this.buckets[i].getSizeInBytes();
+		}
+		return lSize;
+	}
+
+	/**
+	 * Adds a row of the Relation to this index.
+	 * @param iRow the row number
+	 */
+	void add(int iRow){
+		int iSlot = (int)this.hashRow(iRow) & this.mask;
+		while(this.table[iSlot] != 0){
+			IntList tBucket = this.buckets[this.table[iSlot] - 1];
+			if(this.sameKey(tBucket.get(0), iRow)){
+				tBucket.add(iRow);
+				return;
+			}
+			iSlot = (iSlot + 1) & this.mask;
+		}
+
+		if(this.numBuckets == this.buckets.length){
+			IntList[] tBuckets = new IntList[this.buckets.length * 2];
+			System.arraycopy(this.buckets, 0, tBuckets, 0, this.numBuckets);
+			this.buckets = tBuckets;
+		}
+		IntList tBucket = new IntList(2);
+		tBucket.add(iRow);
+		this.buckets[this.numBuckets++] = tBucket;
+		this.table[iSlot] = this.numBuckets;
+
+		if(this.numBuckets * 2 > this.table.length){
+			this.rehash();
+		}
+	}
+
+	/**
+	 * Gets the rows whose key columns have the same values as a tuple.
+	 * @param tuple a tuple with as many values as the Relation has columns; only the key columns
+	 * are looked at
+	 * @return the matching row numbers, or null if there are none (don't modify it)
+	 */
+	public IntList lookup(int[] tuple){
+		int iSlot = (int)this.hashTuple(tuple) & this.mask;
+		while(this.table[iSlot] != 0){
+			IntList tBucket = this.buckets[this.table[iSlot] - 1];
+			if(this.matches(tBucket.get(0), tuple)){
+				return tBucket;
+			}
+			iSlot = (iSlot + 1) & this.mask;
+		}
+		return null;
+	}
+
+	private boolean sameKey(int iRow, int iOtherRow){
+		for(int i : this.columns){
+			if(this.relation.get(iRow, i) != this.relation.get(iOtherRow, i)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean matches(int iRow, int[] tuple){
+		for(int i : this.columns){
+			if(this.relation.get(iRow, i) != tuple[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private long hashRow(int iRow){
+		long h = this.columns.length;
+		for(int i : this.columns){
+			h = Hashing.mix(h * 31 + this.relation.get(iRow, i));
+		}
+		return h;
+	}
+
+	private long hashTuple(int[] tuple){
+		long h = this.columns.length;
+		for(int i : this.columns){
+			h = Hashing.mix(h * 31 + tuple[i]);
+		}
+		return h;
+	}
+
+	private void rehash(){
+		this.table = new int[this.table.length * 2];
+		this.mask = this.table.length - 1;
+		for(int i = 0; i < this.numBuckets; i++){
+			int iSlot = (int)this.hashRow(this.buckets[i].get(0)) & this.mask;
+			while(this.table[iSlot] != 0){
+				iSlot = (iSlot + 1) & this.mask;
+			}
+			this.table[iSlot] = i + 1;
+		}
+	}
+}
@@ -36,6 +36,7 @@ import java.util.logging.Logger;
 /**
  * Converts Tokens created by a Tokenizer into Datalog structures.
  * This can be run as a separate Thread to optimize for speed.
+ * A predicate can have at most Relation.MAX_ARITY Parameters; the one after that is an error.
  * @author jameson
  */
 public class DatalogProgram implements Runnable {
@@ -47,6 +48,8 @@ public class DatalogProgram implements Runnable {
 	private List<Query> queries;
 
 	private SortedSet<String> domain;
+	private SortedSet<Parameter> typedDomain;
+	private FactCatalog catalog;
 
 	private Queue<Token> tTokenQueue;
 	private Token offendingToken;
@@ -63,6 +66,8 @@ public class DatalogProgram implements Runnable {
 
 		// we'll just leave this null until we actually need it
 		this.domain = null;
+		this.typedDomain = null;
+		this.catalog = null;
 
 		this.tTokenQueue = new ConcurrentLinkedQueue<Token>();
 		this.offendingToken = null;
@@ -77,6 +82,14 @@ public class DatalogProgram implements Runnable {
 		this.tokenizerServer = ts;
 	}
 
+	/**
+	 * Gets the Token that parsing stopped at because it didn't fit the grammar.
+	 * @return the offending Token, or null if the whole program parsed
+	 */
+	public Token getOffendingToken(){
+		return this.offendingToken;
+	}
+
 	/**
 	 * Gets the list of Fact objects associated with this DatalogProgram.
 	 * This returns the reference to the List, not a copy.
@@ -86,6 +99,34 @@ public class DatalogProgram implements Runnable {
 		return this.facts;
 	}
 
+	/**
+	 * Adds a Fact to this DatalogProgram, for example one that was derived from the Rules.
+	 * This keeps the FactCatalog up to date if it has already been built.
+	 * @param tFact the Fact to add
+	 */
+	public void addFact(Fact tFact){
+		this.facts.add(tFact);
+		if(this.catalog != null){
+			this.catalog.addFact(tFact);
+		}
+	}
+
+	/**
+	 * Gets the FactCatalog that indexes the Facts by predicate name and arity.
+	 * This is built the first time it is needed, so only call it after parsing is done.
+	 * @return the FactCatalog for this DatalogProgram
+	 */
+	public FactCatalog getFactCatalog(){
+		if(this.catalog == null){
+			// the domain is sorted, so the ids will be too
+			this.catalog = new FactCatalog(new SymbolTable(this.getTypedDomain()));
+			for(Fact tFact : this.facts){
+				this.catalog.addFact(tFact);
+			}
+		}
+		return this.catalog;
+	}
+
 	/**
 	 * Gets the list of Rule objects associated with this DatalogProgram.
 	 * This returns the reference to the List, not a copy.
@@ -202,7 +243,7 @@ public class DatalogProgram implements Runnable {
 		Token tToken = this.getNextToken();
 		if(tToken.getTokenType() == TokenType.PERIOD){
 			Fact tFact = new Fact(tPredicate.getValue(), tPredicate);
-			this.facts.add(tFact);
+			this.addFact(tFact);
 		}else{
 			this.throwError(tToken);
 		}
@@ -311,7 +352,12 @@ public class DatalogProgram implements Runnable {
 
 	private void processParamList(List<Parameter> targetList){
 		Token tToken = this.getNextToken();
-		if(tToken.getTokenType() == TokenType.STRING || tToken.getTokenType() == TokenType.IDENT){
+		if(tToken.getTokenType() == TokenType.STRING || tToken.getTokenType() == TokenType.INTEGER ||
+				tToken.getTokenType() == TokenType.IDENT){
+			if(targetList.size() == Relation.MAX_ARITY){
+				// the bound columns of a Relation wouldn't fit in its masks
+				this.throwError(tToken);
+			}
 			targetList.add(new Parameter(tToken.getValue(), tToken.getTokenType()));
 			if(this.peekNextToken().getTokenType() == TokenType.COMMA){
 				// pop off the comma and let's get going!!
@@ -382,9 +428,9 @@ public class DatalogProgram implements Runnable {
 				sb.append("  ").append(tQuery.toString()).append(NEWLINE);
 			}
 
-			sb.append(String.format("Domain(%d):", this.getDomain().size())).append(NEWLINE);
-			for(String s : this.getDomain()){
-				sb.append("  ").append('\'').append(s).append('\'').append(NEWLINE);
+			sb.append(String.format("Domain(%d):", this.getTypedDomain().size())).append(NEWLINE);
+			for(Parameter p : this.getTypedDomain()){
+				sb.append("  ").append(p.toString()).append(NEWLINE);
 			}
 		}else{
 			sb.append("Failure!").append(NEWLINE);
@@ -395,31 +441,52 @@ public class DatalogProgram implements Runnable {
 
 	/**
 	 * Gets the domain of this DatalogProgram (every String parameter in Rules, Queries, and Facts).
-	 * This does not return duplicates and returns them in alphabetical order.
+	 * This does not return duplicates and returns them in alphabetical order.  Integers aren't
+	 * Strings, so 7 isn't in it even though '7' might be; getTypedDomain() has both.
 	 * @return a sorted list of the Domain (no quotes)
 	 */
 	public SortedSet<String> getDomain(){
 		if(this.domain == null){
 			this.domain = new TreeSet<String>();
+			for(Parameter p : this.getTypedDomain()){
+				if(!p.isInteger()){
+					this.domain.add(p.getValue());
+				}
+			}
+		}
+		return this.domain;
+	}
+
+	/**
+	 * Gets every constant parameter of this DatalogProgram: the Integers as well as the Strings
+	 * of getDomain().  An Integer is never the same constant as a String, so 7 and '7' are two
+	 * entries, just as they are two values to the evaluators.
+	 * This does not return duplicates and returns Integers in numerical order followed by Strings
+	 * in alphabetical order.
+	 * @return a sorted list of the Domain
+	 */
+	public SortedSet<Parameter> getTypedDomain(){
+		if(this.typedDomain == null){
+			this.typedDomain = new TreeSet<Parameter>();
 			for(Fact tFact : this.facts){
-				fillDomain(tFact, this.domain);
+				fillDomain(tFact, this.typedDomain);
 			}
 
 			for(Rule tRule : this.rules){
-				fillDomain(tRule, this.domain);
+				fillDomain(tRule, this.typedDomain);
 			}
 
 			for(Query tQuery : this.queries){
-				fillDomain(tQuery, this.domain);
+				fillDomain(tQuery, this.typedDomain);
 			}
 		}
-		return this.domain;
+		return this.typedDomain;
 	}
 
-	private void fillDomain(Predicate tPredicate, SortedSet<String> tDomain){
+	private void fillDomain(Predicate tPredicate, SortedSet<Parameter> tDomain){
 		for(Parameter p : tPredicate){
-			if(p.getTokenType() == TokenType.STRING){
-				tDomain.add(p.getValue());
+			if(p.isConstant()){
+				tDomain.add(p.duplicate());
 			}
 		}
 	}
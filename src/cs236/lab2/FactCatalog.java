@@ -0,0 +1,201 @@
+/*
+ * FactCatalog.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * FactCatalog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FactCatalog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A FactCatalog keeps one Relation per predicate name and arity.
+ * Predicates are translated to ids with a SymbolTable so looking one up is a hash probe.
+ * @author T. Jameson Little
+ */
+public class FactCatalog {
+	private SymbolTable symbols;
+	private Map<String, Relation> relations;
+	private IndexAdvisor advisor;
+	private RelationLayout layout;
+
+	/**
+	 * Creates an empty catalog that encodes constants with the given SymbolTable.
+	 * @param tSymbols the SymbolTable to use for every Relation
+	 */
+	public FactCatalog(SymbolTable tSymbols){
+		this.symbols = tSymbols;
+		this.relations = new LinkedHashMap<String, Relation>();
+		this.advisor = new IndexAdvisor();
+		this.layout = RelationLayout.HASH;
+	}
+
+	/**
+	 * Gets the SymbolTable used to encode constants.
+	 * @return the SymbolTable
+	 */
+	public SymbolTable getSymbolTable(){
+		return this.symbols;
+	}
+
+	/**
+	 * Gets the IndexAdvisor that builds indexes for every Relation in this catalog.
+	 * @return the IndexAdvisor
+	 */
+	public IndexAdvisor getIndexAdvisor(){
+		return this.advisor;
+	}
+
+	/**
+	 * Gets how the evaluators should find the rows that match some bound columns.
+	 * @return the RelationLayout (HASH by default)
+	 */
+	public RelationLayout getLayout(){
+		return this.layout;
+	}
+
+	/**
+	 * Sets how the evaluators should find the rows that match some bound columns.
+	 * @param tLayout the RelationLayout to use
+	 */
+	public void setLayout(RelationLayout tLayout){
+		this.layout = tLayout;
+	}
+
+	/**
+	 * Gets the Relation for a predicate.
+	 * @param sName the name of the predicate
+	 * @param iArity the number of Parameters
+	 * @return the Relation or null if there are no tuples for that predicate
+	 */
+	public Relation getRelation(String sName, int iArity){
+		return this.relations.get(relationKey(sName, iArity));
+	}
+
+	/**
+	 * Gets the Relation for a predicate, creating an empty one if it doesn't exist yet.
+	 * @param sName the name of the predicate
+	 * @param iArity the number of Parameters
+	 * @return the Relation
+	 */
+	public Relation getOrCreateRelation(String sName, int iArity){
+		String sKey = relationKey(sName, iArity);
+		Relation tRelation = this.relations.get(sKey);
+		if(tRelation == null){
+			tRelation = new Relation(sName, iArity);
+			tRelation.setIndexAdvisor(this.advisor);
+			this.relations.put(sKey, tRelation);
+		}
+		return tRelation;
+	}
+
+	/**
+	 * Drops the Relation for a predicate, so its tuples and indexes can be garbage collected.
+	 * Its constants stay in the SymbolTable.
+	 * @param sName the name of the predicate
+	 * @param iArity the number of Parameters
+	 * @return the Relation that was dropped, or null if there wasn't one
+	 */
+	public Relation removeRelation(String sName, int iArity){
+		return this.relations.remove(relationKey(sName, iArity));
+	}
+
+	/**
+	 * Gets every Relation in this catalog.
+	 * @return the Relations in the order they were created
+	 */
+	public Collection<Relation> getRelations(){
+		return this.relations.values();
+	}
+
+	/**
+	 * Formats the statistics of every Relation, with the counters of its Bloom filter.
+	 * @return the statistics, in the order the Relations were created
+	 */
+	public String getStatisticsReport(){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Statistics(%d):", this.relations.size())).append(NEWLINE);
+		long lBytes = 0;
+		for(Relation tRelation : this.relations.values()){
+			for(String sLine : tRelation.getStatistics().describe(this.symbols).split(NEWLINE)){
+				sb.append("  ").append(sLine).append(NEWLINE);
+			}
+			sb.append("    filter ").append(tRelation.getFilter()).append(NEWLINE);
+			lBytes += tRelation.getStatistics().getSizeInBytes();
+		}
+		sb.append(String.format("Sketches: %d bytes", lBytes)).append(NEWLINE);
+		return sb.toString();
+	}
+
+	/**
+	 * Adds a ground Predicate (usually a Fact) to its Relation.
+	 * @param tPredicate a Predicate whose Parameters all have values
+	 * @return true if it was added, false if it was already there
+	 */
+	public boolean addFact(Predicate tPredicate){
+		int[] tuple = new int[tPredicate.size()];
+		for(int i = 0; i < tuple.length; i++){
+			tuple[i] = this.symbols.intern(tPredicate.get(i));
+		}
+		return this.getOrCreateRelation(tPredicate.getValue(), tuple.length).add(tuple);
+	}
+
+	/**
+	 * Checks whether a ground Predicate is one of the Facts.
+	 * @param tPredicate a Predicate whose Parameters all have values
+	 * @return true if the tuple exists
+	 */
+	public boolean contains(Predicate tPredicate){
+		Relation tRelation = this.getRelation(tPredicate.getValue(), tPredicate.size());
+		if(tRelation == null){
+			return false;
+		}
+		int[] tuple = this.encode(tPredicate);
+		return tuple != null && tRelation.contains(tuple);
+	}
+
+	/**
+	 * Translates the values of a ground Predicate into ids.
+	 * @param tPredicate a Predicate whose Parameters all have values
+	 * @return the ids, or null if one of the values isn't in the SymbolTable (so it can't match)
+	 */
+	public int[] encode(Predicate tPredicate){
+		int[] tuple = new int[tPredicate.size()];
+		for(int i = 0; i < tuple.length; i++){
+			tuple[i] = this.symbols.getId(tPredicate.get(i));
+			if(tuple[i] == SymbolTable.UNKNOWN){
+				return null;
+			}
+		}
+		return tuple;
+	}
+
+	/**
+	 * Creates the key used to identify a relation, which is its name and its arity.
+	 * @param sName the name of the relation
+	 * @param iArity the number of Parameters
+	 * @return a key of the form name/arity
+	 */
+	public static String relationKey(String sName, int iArity){
+		return sName + "/" + iArity;
+	}
+}
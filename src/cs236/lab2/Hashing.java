@@ -0,0 +1,46 @@
+/*
+ * Hashing.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * Hashing is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Hashing is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+/**
+ * The hash functions shared by the Relations, their indexes and their sketches.
+ *
+ * Ids are small dense ints, so they have to be mixed before their bits can pick a bucket, a
+ * filter block or a sketch register.
+ * @author T. Jameson Little
+ */
+public class Hashing {
+	/**
+	 * The finalizer from MurmurHash3, it spreads every input bit over the whole output.
+	 * @param lValue the value to mix
+	 * @return the mixed value
+	 */
+	public static long mix(long lValue){
+		long h = lValue;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,191 @@
+/*
+ * HeavyHitters.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * HeavyHitters is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HeavyHitters is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps track of the values that show up most often, using a fixed number of counters.
+ *
+ * This is the Space-Saving algorithm: a value that already has a counter bumps it, and a new
+ * value takes over the smallest counter, inheriting its count as possible error.  A value that
+ * makes up more than 1/capacity of everything added is guaranteed to have a counter, and every
+ * count is at most getError() too high.
+ * @author T. Jameson Little
+ */
+public class HeavyHitters {
+	/**
+	 * The number of counters kept by default.
+	 */
+	public static final int DEFAULT_CAPACITY = 8;
+
+	private int[] ids;
+	private long[] counts;
+	private long[] errors;
+	private int size;
+	private long total;
+
+	/**
+	 * Creates an empty summary with the default number of counters.
+	 */
+	public HeavyHitters(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty summary.
+	 * @param iCapacity the number of counters
+	 */
+	public HeavyHitters(int iCapacity){
+		this.ids = new int[iCapacity];
+		this.counts = new long[iCapacity];
+		this.errors = new long[iCapacity];
+	}
+
+	/**
+	 * Counts one more occurrence of a value.
+	 * @param iId the id of the value
+	 */
+	public void add(int iId){
+		this.total++;
+		for(int i = 0; i < this.size; i++){
+			if(this.ids[i] == iId){
+				this.counts[i]++;
+				return;
+			}
+		}
+		int iSlot;
+		if(this.size < this.ids.length){
+			iSlot = this.size++;
+			this.counts[iSlot] = 0;
+			this.errors[iSlot] = 0;
+		}else{
+			iSlot = 0;
+			for(int i = 1; i < this.size; i++){
+				if(this.counts[i] < this.counts[iSlot]){
+					iSlot = i;
+				}
+			}
+			this.errors[iSlot] = this.counts[iSlot];
+		}
+		this.ids[iSlot] = iId;
+		this.counts[iSlot]++;
+	}
+
+	/**
+	 * Gets the number of values that have a counter.
+	 * @return at most the capacity
+	 */
+	public int size(){
+		return this.size;
+	}
+
+	/**
+	 * Gets the number of occurrences added so far.
+	 * @return the total count
+	 */
+	public long getTotal(){
+		return this.total;
+	}
+
+	/**
+	 * Gets the count of a value, which is never lower than the real count.
+	 * @param iId the id of the value
+	 * @return its count, or 0 if it doesn't have a counter (it's then rarer than every value
+	 * that does)
+	 */
+	public long getCount(int iId){
+		for(int i = 0; i < this.size; i++){
+			if(this.ids[i] == iId){
+				return this.counts[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the values whose counts can be trusted, most frequent first.  Those are the ones
+	 * that were never evicted (their counts are exact) and the ones that are guaranteed to make
+	 * up more than 1/capacity of the total.  When every value is about as frequent as the
+	 * others, the counters just keep replacing each other and none of them qualify.
+	 * @return the ids
+	 */
+	public int[] getTop(){
+		List<Integer> tOrder = new ArrayList<Integer>();
+		for(int i = 0; i < this.size; i++){
+			if(this.errors[i] == 0 || (this.counts[i] - this.errors[i]) * this.ids.length > this.total){
+				tOrder.add(i);
+			}
+		}
+		Collections.sort(tOrder, new Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				long lDiff = counts[b] - counts[a];
+				return lDiff == 0 ? ids[a] - ids[b] : (lDiff < 0 ? -1 : 1);
+			}
+		});
+		int[] tTop = new int[tOrder.size()];
+		for(int i = 0; i < tTop.length; i++){
+			tTop[i] = this.ids[tOrder.get(i)];
+		}
+		return tTop;
+	}
+
+	/**
+	 * Gets the lowest the real count of a value could be.
+	 * @param iId the id of the value
+	 * @return its count minus its error, or 0 if it doesn't have a counter
+	 */
+	public long getGuaranteedCount(int iId){
+		for(int i = 0; i < this.size; i++){
+			if(this.ids[i] == iId){
+				return this.counts[i] - this.errors[i];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Gets the memory used by the counters.
+	 * @return the size in bytes
+	 */
+	public int getSizeInBytes(){
+		// an int id plus a long count and a long error per counter
+		return this.ids.length * 20;
+	}
+
+	/**
+	 * Gets how much the count of a value might be too high.
+	 * @param iId the id of the value
+	 * @return the error bound, or 0 if it doesn't have a counter
+	 */
+	public long getError(int iId){
+		for(int i = 0; i < this.size; i++){
+			if(this.ids[i] == iId){
+				return this.errors[i];
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * HyperLogLog.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * HyperLogLog is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * HyperLogLog is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+/**
+ * A HyperLogLog sketch that estimates how many distinct values it has seen.
+ *
+ * The top bits of a value's hash pick one of 2^precision registers, and the register keeps the
+ * longest run of leading zeros seen in the rest of the hash.  Long runs are rare, so the
+ * registers together say roughly how many different hashes went by.  With the default
+ * precision it takes 1KB and is usually within about 3% of the real count; small counts use
+ * the number of empty registers instead (linear counting), which is close to exact.
+ * @author T. Jameson Little
+ */
+public class HyperLogLog {
+	/**
+	 * The number of bits of the hash used to pick a register.
+	 */
+	public static final int DEFAULT_PRECISION = 10;
+
+	private int precision;
+	private byte[] registers;
+
+	/**
+	 * Creates an empty sketch with the default precision.
+	 */
+	public HyperLogLog(){
+		this(DEFAULT_PRECISION);
+	}
+
+	/**
+	 * Creates an empty sketch.
+	 * @param iPrecision the number of bits used to pick a register (4 to 16)
+	 */
+	public HyperLogLog(int iPrecision){
+		if(iPrecision < 4 || iPrecision > 16){
+			throw new IllegalArgumentException("precision must be between 4 and 16: " + iPrecision);
+		}
+		this.precision = iPrecision;
+		this.registers = new byte[1 << iPrecision];
+	}
+
+	/**
+	 * Adds a value (already hashed to 64 bits) to the sketch.
+	 * @param lHash the well mixed 64 bit hash of the value
+	 */
+	public void add(long lHash){
+		int iRegister = (int)(lHash >>> (64 - this.precision));
+		// the marker bit stops the run of zeros if the rest of the hash is all zeros
+		long lRest = (lHash << this.precision) | (1L << (this.precision - 1));
+		byte iRank = (byte)(Long.numberOfLeadingZeros(lRest) + 1);
+		if(iRank > this.registers[iRegister]){
+			this.registers[iRegister] = iRank;
+		}
+	}
+
+	/**
+	 * Estimates the number of distinct values added so far.
+	 * @return the estimate
+	 */
+	public long estimate(){
+		int m = this.registers.length;
+		double dSum = 0;
+		int iEmpty = 0;
+		for(byte iRank : this.registers){
+			dSum += 1.0 / (1L << iRank);
+			if(iRank == 0){
+				iEmpty++;
+			}
+		}
+		double dAlpha = 0.7213 / (1 + 1.079 / m);
+		double dEstimate = dAlpha * m * m / dSum;
+		if(dEstimate <= 2.5 * m && iEmpty > 0){
+			dEstimate = m * Math.log((double)m / iEmpty);
+		}
+		return Math.round(dEstimate);
+	}
+
+	/**
+	 * Gets the size of the registers.
+	 * @return the number of bytes used
+	 */
+	public int getSizeInBytes(){
+		return this.registers.length;
+	}
+}
@@ -0,0 +1,291 @@
+/*
+ * IndexAdvisor.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * IndexAdvisor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IndexAdvisor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Watches which columns are bound when Relations are scanned and builds indexes for them.
+ *
+ * Every scan is recorded under its access pattern (the Relation and its bound columns).  Once a
+ * pattern has been seen often enough an index on exactly those columns is built.  The indexes
+ * built here are kept under a memory budget by dropping the ones that haven't been used for the
+ * longest time.  Indexes declared by hand are never dropped.
+ * @author T. Jameson Little
+ */
+public class IndexAdvisor {
+	/**
+	 * The number of scans of a pattern before an index is built for it.
+	 */
+	public static final int DEFAULT_THRESHOLD = 8;
+	/**
+	 * The most memory the built indexes may use together.
+	 */
+	public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+	/**
+	 * Relations smaller than this are cheaper to scan than to index.
+	 */
+	public static final int MIN_ROWS = 16;
+
+	private int threshold;
+	private long memoryBudget;
+
+	private Map<String, AccessPattern> patterns;
+	// every scan looks its pattern up twice, so skip building the String key
+	private Map<Relation, Map<Integer, AccessPattern>> byRelation;
+	private Map<ColumnIndex, AccessPattern> built;
+	private List<String> history;
+
+	private long clock;
+	private long rowsScanned;
+	private long rowsAvoided;
+
+	/**
+	 * Creates an IndexAdvisor with the default threshold and memory budget.
+	 */
+	public IndexAdvisor(){
+		this(DEFAULT_THRESHOLD, DEFAULT_MEMORY_BUDGET);
+	}
+
+	/**
+	 * Creates an IndexAdvisor.
+	 * @param iThreshold the number of scans of a pattern before it gets an index
+	 * @param lMemoryBudget the most bytes the built indexes may use together
+	 */
+	public IndexAdvisor(int iThreshold, long lMemoryBudget){
+		this.threshold = iThreshold;
+		this.memoryBudget = lMemoryBudget;
+		this.patterns = new LinkedHashMap<String, AccessPattern>();
+		this.byRelation = new IdentityHashMap<Relation, Map<Integer, AccessPattern>>();
+		this.built = new LinkedHashMap<ColumnIndex, AccessPattern>();
+		this.history = new ArrayList<String>();
+	}
+
+	/**
+	 * Records a scan and picks the index it should use, building one if the pattern is hot.
+	 * @param tRelation the Relation being scanned
+	 * @param iBoundMask the bound columns as a bit mask
+	 * @return the index to use, or null if the Relation should be scanned from start to end
+	 */
+	public ColumnIndex chooseIndex(Relation tRelation, int iBoundMask){
+		return this.chooseIndex(tRelation, iBoundMask, 1);
+	}
+
+	/**
+	 * Picks the index for a batch of scans with the same bound columns, counting each of them
+	 * towards building one.
+	 * @param tRelation the Relation being scanned
+	 * @param iBoundMask the bound columns as a bit mask
+	 * @param iScans the number of scans in the batch
+	 * @return the ColumnIndex to use, or null to scan every row
+	 */
+	public ColumnIndex chooseIndex(Relation tRelation, int iBoundMask, int iScans){
+		this.clock++;
+		AccessPattern tPattern = this.getPattern(tRelation, iBoundMask);
+		tPattern.probes += iScans;
+
+		ColumnIndex tIndex = tRelation.findExistingIndex(iBoundMask);
+		if((tIndex == null || tIndex.getColumnMask() != iBoundMask) &&
+				tPattern.probes >= this.threshold && tRelation.size() >= MIN_ROWS){
+			tIndex = tRelation.declareIndex(Relation.columnsOf(iBoundMask));
+			tPattern.builtAt = tPattern.probes;
+			this.built.put(tIndex, tPattern);
+			this.history.add(String.format("built %s after %d scans (%d bytes)",
+					tPattern.describe(), tPattern.probes, tIndex.getSizeInBytes()));
+			this.enforceBudget(tIndex);
+		}
+		if(tIndex != null){
+			tIndex.setLastUsed(this.clock);
+		}
+		return tIndex;
+	}
+
+	/**
+	 * Records how many rows a scan had to look at.
+	 * @param tRelation the Relation that was scanned
+	 * @param iBoundMask the bound columns as a bit mask
+	 * @param iExamined the number of rows that were looked at
+	 */
+	public void recordScan(Relation tRelation, int iBoundMask, int iExamined){
+		this.recordScan(tRelation, iBoundMask, 1, iExamined);
+	}
+
+	/**
+	 * Records how many rows a batch of scans had to look at altogether.
+	 * @param tRelation the Relation that was scanned
+	 * @param iBoundMask the bound columns as a bit mask
+	 * @param iScans the number of scans in the batch
+	 * @param lExamined the number of rows that were looked at
+	 */
+	public void recordScan(Relation tRelation, int iBoundMask, int iScans, long lExamined){
+		AccessPattern tPattern = this.getPattern(tRelation, iBoundMask);
+		long lAvoided = (long)iScans * tRelation.size() - lExamined;
+		tPattern.rowsScanned += lExamined;
+		tPattern.rowsAvoided += lAvoided;
+		this.rowsScanned += lExamined;
+		this.rowsAvoided += lAvoided;
+	}
+
+	/**
+	 * Gets the total number of rows that indexes saved us from looking at.
+	 * @return the number of rows a full scan would have looked at but we didn't
+	 */
+	public long getRowsAvoided(){
+		return this.rowsAvoided;
+	}
+
+	/**
+	 * Gets the total number of rows that were looked at by scans.
+	 * @return the number of rows examined
+	 */
+	public long getRowsScanned(){
+		return this.rowsScanned;
+	}
+
+	/**
+	 * Gets the indexes built by this advisor that haven't been dropped.
+	 * @return the live ColumnIndexes
+	 */
+	public List<ColumnIndex> getBuiltIndexes(){
+		return new ArrayList<ColumnIndex>(this.built.keySet());
+	}
+
+	/**
+	 * Gets the memory used by the indexes built by this advisor.
+	 * @return the size in bytes
+	 */
+	public long getBuiltSizeInBytes(){
+		long lSize = 0;
+		for(ColumnIndex tIndex : this.built.keySet()){
+			lSize += tIndex.getSizeInBytes();
+		}
+		return lSize;
+	}
+
+	private void enforceBudget(ColumnIndex tKeep){
+		while(this.getBuiltSizeInBytes() > this.memoryBudget && this.built.size() > 1){
+			ColumnIndex tVictim = null;
+			for(ColumnIndex tIndex : this.built.keySet()){
+				if(tIndex != tKeep && (tVictim == null || tIndex.getLastUsed() < tVictim.getLastUsed())){
+					tVictim = tIndex;
+				}
+			}
+			AccessPattern tPattern = this.built.remove(tVictim);
+			tPattern.relation.dropIndex(tVictim);
+			// make it earn its index again
+			tPattern.probes = 0;
+			tPattern.dropped++;
+			this.history.add(String.format("dropped %s to stay under %d bytes",
+					tPattern.describe(), this.memoryBudget));
+		}
+	}
+
+	private AccessPattern getPattern(Relation tRelation, int iBoundMask){
+		Map<Integer, AccessPattern> tMasks = this.byRelation.get(tRelation);
+		if(tMasks == null){
+			tMasks = new HashMap<Integer, AccessPattern>();
+			this.byRelation.put(tRelation, tMasks);
+		}
+		AccessPattern tPattern = tMasks.get(iBoundMask);
+		if(tPattern == null){
+			String sKey = FactCatalog.relationKey(tRelation.getName(), tRelation.getArity()) + "#" + iBoundMask;
+			tPattern = this.patterns.get(sKey);
+			if(tPattern == null){
+				tPattern = new AccessPattern(tRelation, iBoundMask);
+				this.patterns.put(sKey, tPattern);
+			}
+			tMasks.put(iBoundMask, tPattern);
+		}
+		return tPattern;
+	}
+
+	/**
+	 * Formats a report of every access pattern, the indexes that were built and dropped, and how
+	 * many rows the indexes kept us from scanning.
+	 * @return the formatted report
+	 */
+	public String getReport(){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Access patterns(%d):", this.patterns.size())).append(NEWLINE);
+		for(AccessPattern tPattern : this.patterns.values()){
+			sb.append("  ").append(tPattern.describe());
+			sb.append(String.format(" scans=%d examined=%d avoided=%d",
+					tPattern.probes, tPattern.rowsScanned, tPattern.rowsAvoided));
+			if(tPattern.builtAt > 0){
+				sb.append(String.format(" built=%d", tPattern.builtAt));
+			}
+			if(tPattern.dropped > 0){
+				sb.append(String.format(" dropped=%d", tPattern.dropped));
+			}
+			sb.append(NEWLINE);
+		}
+		sb.append(String.format("Index changes(%d):", this.history.size())).append(NEWLINE);
+		for(String s : this.history){
+			sb.append("  ").append(s).append(NEWLINE);
+		}
+		sb.append(String.format("Built indexes: %d using %d bytes", this.built.size(), this.getBuiltSizeInBytes()));
+		sb.append(NEWLINE);
+		sb.append(String.format("Rows examined: %d, rows avoided: %d", this.rowsScanned, this.rowsAvoided));
+		sb.append(NEWLINE);
+		return sb.toString();
+	}
+
+	/**
+	 * Everything we know about scans of one Relation with one set of bound columns.
+	 */
+	private static class AccessPattern {
+		private Relation relation;
+		private int boundMask;
+		private long probes;
+		private long rowsScanned;
+		private long rowsAvoided;
+		private long builtAt;
+		private int dropped;
+
+		AccessPattern(Relation tRelation, int iBoundMask){
+			this.relation = tRelation;
+			this.boundMask = iBoundMask;
+		}
+
+		String describe(){
+			StringBuilder sb = new StringBuilder();
+			sb.append(FactCatalog.relationKey(this.relation.getName(), this.relation.getArity()));
+			sb.append(" on (");
+			boolean bFirst = true;
+			for(int i : Relation.columnsOf(this.boundMask)){
+				if(!bFirst)
+					sb.append(',');
+				sb.append(i);
+				bFirst = false;
+			}
+			sb.append(')');
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * IntList.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * IntList is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * IntList is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+/**
+ * A growable list of primitive ints, used for lists of row numbers and ids.
+ * This avoids boxing every row number into an Integer.
+ * @author T. Jameson Little
+ */
+public class IntList {
+	private static final int INITIAL_SIZE = 4;
+
+	private int[] values;
+	private int size;
+
+	/**
+	 * Creates an empty IntList.
+	 */
+	public IntList(){
+		this(INITIAL_SIZE);
+	}
+
+	/**
+	 * Creates an empty IntList with room for a certain number of values.
+	 * @param iCapacity the number of values to make room for
+	 */
+	public IntList(int iCapacity){
+		this.values = new int[Math.max(iCapacity, 1)];
+		this.size = 0;
+	}
+
+	/**
+	 * Adds a value to the end of this list.
+	 * @param iValue the value to add
+	 */
+	public void add(int iValue){
+		if(this.size == this.values.length){
+			int[] tValues = new int[this.values.length * 2];
+			System.arraycopy(this.values, 0, tValues, 0, this.size);
+			this.values = tValues;
+		}
+		this.values[this.size++] = iValue;
+	}
+
+	/**
+	 * Gets a value from this list.
+	 * @param iIndex the index of the value
+	 * @return the value
+	 */
+	public int get(int iIndex){
+		return this.values[iIndex];
+	}
+
+	/**
+	 * Gets the number of values in this list.
+	 * @return the size of the list
+	 */
+	public int size(){
+		return this.size;
+	}
+
+	/**
+	 * Whether this list has no values.
+	 * @return true if it's empty
+	 */
+	public boolean isEmpty(){
+		return this.size == 0;
+	}
+
+	/**
+	 * Removes every value, but keeps the memory around so it can be reused.
+	 */
+	public void clear(){
+		this.size = 0;
+	}
+
+	/**
+	 * Copies the values into an array that is exactly the right size.
+	 * @return the values
+	 */
+	public int[] toArray(){
+		int[] tValues = new int[this.size];
+		System.arraycopy(this.values, 0, tValues, 0, this.size);
+		return tValues;
+	}
+
+	/**
+	 * Gets the number of bytes this list is holding on to.
+	 * @return the size of the backing array in bytes
+	 */
+	public long getSizeInBytes(){
+		return this.values.length * 4L;
+	}
+}
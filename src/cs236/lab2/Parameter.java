@@ -24,7 +24,7 @@ package cs236.lab2;
 import cs236.lab1.TokenType;
 
 /**
- * A parameter can either be an Identifier or a String.
+ * A parameter can either be an Identifier or a constant (a String or an Integer).
  * If it's an Identifier, this class can also be used to store temporary values in evaluation.
  * @author jameson
  */
@@ -32,13 +32,19 @@ public class Parameter implements Comparable<Parameter>{
 	private String value;
 	private String name;
 
-	private Parameter(String sName, String sValue){
+	// integers keep their parsed value so they can be compared as numbers
+	private boolean integer;
+	private long integerValue;
+
+	private Parameter(String sName, String sValue, boolean bInteger, long lIntegerValue){
 		this.name = sName;
 		this.value = sValue;
+		this.integer = bInteger;
+		this.integerValue = lIntegerValue;
 	}
 
 	/**
-	 * Creates a new Parameter with a certain value (name) and a TokenType (either STRING or IDENT)
+	 * Creates a new Parameter with a certain value (name) and a TokenType (STRING, INTEGER or IDENT)
 	 * @param sValue the value (name) of this parameter
 	 * @param tTokenType this Parameter's TokenType
 	 */
@@ -46,6 +52,12 @@ public class Parameter implements Comparable<Parameter>{
 		if(tTokenType == TokenType.STRING){
 			this.value = sValue;
 			this.name = null;
+		}else if(tTokenType == TokenType.INTEGER){
+			// store it in its canonical form so 007 and 7 are the same constant
+			this.integerValue = Long.parseLong(sValue);
+			this.integer = true;
+			this.value = Long.toString(this.integerValue);
+			this.name = null;
 		}else{
 			this.name = sValue;
 			this.value = null;
@@ -54,7 +66,8 @@ public class Parameter implements Comparable<Parameter>{
 
 	/**
 	 * Gets the value of this Parameter.
-	 * Should be used for STRING types. Otherwise it will return what was sent in with setValue().
+	 * Should be used for constants. Otherwise it will return what was sent in with setValue().
+	 * Integers are returned in decimal.
 	 * @return the value of this Parameter
 	 */
 	public String getValue(){
@@ -62,7 +75,7 @@ public class Parameter implements Comparable<Parameter>{
 	}
 
 	/**
-	 * Gets the name of this Parameter.  This will be null for a STRING type.
+	 * Gets the name of this Parameter.  This will be null for a constant.
 	 * @return the name if it exists or null otherwise
 	 */
 	public String getName(){
@@ -70,21 +83,71 @@ public class Parameter implements Comparable<Parameter>{
 	}
 
 	/**
-	 * Sets the value of this Parameter.
+	 * Sets the value of this Parameter to a String.
 	 * Should only be used to hold a placeholder in evaluating Queries.
 	 * @param sValue the value to assign to this Parameter.
 	 */
 	public void setValue(String sValue){
 		this.value = sValue;
+		this.integer = false;
+	}
+
+	/**
+	 * Sets the value of this Parameter to the value of another one, keeping its type.
+	 * Should only be used to hold a placeholder in evaluating Queries.
+	 * @param tParam the Parameter whose value (String or Integer) should be copied
+	 */
+	public void copyValue(Parameter tParam){
+		this.value = tParam.value;
+		this.integer = tParam.integer;
+		this.integerValue = tParam.integerValue;
+	}
+
+	/**
+	 * Whether this Parameter is a constant (a String or an Integer).
+	 * @return true if it's a constant, false if it's an identifier
+	 */
+	public boolean isConstant(){
+		return this.name == null;
+	}
+
+	/**
+	 * Whether the value of this Parameter is an Integer.
+	 * @return true if it has an Integer value
+	 */
+	public boolean isInteger(){
+		return this.integer && this.value != null;
+	}
+
+	/**
+	 * Gets the value of this Parameter as a number.  Only makes sense if isInteger() is true.
+	 * @return the Integer value
+	 */
+	public long getIntegerValue(){
+		return this.integerValue;
+	}
+
+	/**
+	 * Whether this Parameter has the same value (and type of value) as another one.
+	 * @param tParam the Parameter to compare against
+	 * @return true if both have a value and they are the same constant
+	 */
+	public boolean sameValue(Parameter tParam){
+		if(this.value == null || tParam.value == null || this.integer != tParam.integer){
+			return false;
+		}
+		return this.integer ? this.integerValue == tParam.integerValue : this.value.equals(tParam.value);
 	}
 
 	/**
 	 * Gets the TokenType associated with this Parameter.
-	 * @return TokenType.STRING or TokenType.IDENT
+	 * @return TokenType.STRING, TokenType.INTEGER or TokenType.IDENT
 	 */
 	public TokenType getTokenType(){
 		if(this.getName() != null){
 			return TokenType.IDENT;
+		}else if(this.integer){
+			return TokenType.INTEGER;
 		}else{
 			return TokenType.STRING;
 		}
@@ -101,7 +164,7 @@ public class Parameter implements Comparable<Parameter>{
 			tName = new String(this.getName());
 		if(this.getValue() != null)
 			tValue = new String(this.getValue());
-		return new Parameter(tName, tValue);
+		return new Parameter(tName, tValue, this.integer, this.integerValue);
 	}
 
 	/**
@@ -117,8 +180,8 @@ public class Parameter implements Comparable<Parameter>{
 		if(obj instanceof Parameter){
 			Parameter tParam = (Parameter)obj;
 
-			if(tParam.getTokenType() == TokenType.STRING){
-				return tParam.getValue().equals(this.getValue());
+			if(tParam.isConstant()){
+				return tParam.sameValue(this);
 			}
 			else if(tParam.getTokenType() == TokenType.IDENT){
 				return tParam.getName().equals(this.getName());
@@ -138,17 +201,19 @@ public class Parameter implements Comparable<Parameter>{
 		int hash = HASH_DEFAULT;
 		hash = SALT * hash + (this.value != null ? this.value.hashCode() : 0);
 		hash = SALT * hash + (this.name != null ? this.name.hashCode() : 0);
+		hash = SALT * hash + (this.integer ? 1 : 0);
 		return hash;
 	}
 
 	/**
 	 * Formats this Parameter with this pattern.  It puts single quotes around Strings.
-	 * @return a formatted String with this pattern- 'value' for String, value for identifier
+	 * @return a formatted String with this pattern- 'value' for String, value for Integer, name
+	 * for identifier
 	 */
 	@Override
 	public String toString(){
 		if(this.getValue() != null)
-			return String.format("'%s'", this.getValue());
+			return this.integer ? this.getValue() : String.format("'%s'", this.getValue());
 		else
 			return this.getName();
 	}
@@ -156,18 +221,25 @@ public class Parameter implements Comparable<Parameter>{
 	/**
 	 * Compares two Parameter objects.
 	 *
-	 * If both Parameters have a value or both have only a name, String's compareTo method is used.
-	 * If the Parameters don't have corresponding data, then the IDENT is preferred over the STRING.
+	 * If both Parameters have a value, Integers are compared as numbers and come before Strings,
+	 * and Strings are compared with String's compareTo method.  If both have only a name,
+	 * String's compareTo method is used on the names.
+	 * If the Parameters don't have corresponding data, then the IDENT is preferred over the constant.
 	 * @param o the Parameter to compare to
 	 * @return 1 if this is greater than the o, -1 if this is less than o
 	 */
 	public int compareTo(Parameter o) {
 		if(this.getValue() != null && o.getValue() != null){
+			if(this.integer && o.integer){
+				return this.integerValue < o.integerValue ? -1 : (this.integerValue == o.integerValue ? 0 : 1);
+			}else if(this.integer != o.integer){
+				return this.integer ? -1 : 1;
+			}
 			return this.getValue().compareTo(o.getValue());
 		}else if(this.getName() != null && o.getName() != null){
 			return this.getName().compareTo(o.getName());
 		}else{
-			return this.getTokenType() == TokenType.STRING ? -1 : 1;
+			return this.isConstant() ? -1 : 1;
 		}
 	}
 }
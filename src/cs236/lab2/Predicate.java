@@ -50,18 +50,33 @@ public class Predicate extends ArrayList<Parameter> implements Comparable<Predic
 	}
 
 	/**
-	 * Binds all variables with the given name to the given value.
+	 * Binds all variables with the given name to the given String value.
 	 * @param tName the name of the Parameter to bind
 	 * @param tValue the value to bind to the Parameter
 	 */
 	public void bind(String tName, String tValue){
 		for(Parameter p : this){
-			if(p.getName().equals(tName)){
+			// constants don't have a name, so they can never be bound
+			if(tName != null && tName.equals(p.getName())){
 				p.setValue(tValue);
 			}
 		}
 	}
 
+	/**
+	 * Binds all variables with the given name to the value of a constant, keeping its type.
+	 * @param tName the name of the Parameter to bind
+	 * @param tValue the constant whose value (String or Integer) is bound to the Parameter
+	 */
+	public void bind(String tName, Parameter tValue){
+		for(Parameter p : this){
+			// constants don't have a name, so they can never be bound
+			if(tName != null && tName.equals(p.getName())){
+				p.copyValue(tValue);
+			}
+		}
+	}
+
 	/**
 	 * Duplicates this Predicate.  This is a deep duplication so it creates new objects.
 	 * @return a copy of this Predicate
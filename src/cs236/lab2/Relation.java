@@ -0,0 +1,550 @@
+/*
+ * Relation.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * Relation is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Relation is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A Relation holds every tuple of one predicate (name and arity) as rows of constant ids.
+ *
+ * Rows are numbered in the order they were added and never move, so a row number can be used
+ * as a stable id.  A hash index over the whole tuple makes membership a single probe, and a
+ * Bloom filter in front of it throws out most misses without touching the rows.  Secondary
+ * ColumnIndexes map the values of some of the columns to the rows that have them.
+ *
+ * Bound columns are passed around as bit masks, so a Relation can have at most MAX_ARITY
+ * columns; the constructor refuses more.
+ * @author T. Jameson Little
+ */
+public class Relation {
+	/**
+	 * The most columns a Relation can have, one per bit of an int mask without the sign bit.
+	 */
+	public static final int MAX_ARITY = 31;
+
+	private static final int INITIAL_ROWS = 16;
+	private static final int INITIAL_FILTER_KEYS = 64;
+
+	private String name;
+	private int arity;
+
+	private int[] data;
+	private int numRows;
+
+	// open addressing, each slot holds row + 1 so 0 can mean empty
+	private int[] table;
+	private int mask;
+
+	private BloomFilter filter;
+	private List<ColumnIndex> indexes;
+	private IndexAdvisor advisor;
+	private List<TrieRelation> tries;
+	private BitSet[] activeValues;
+	private RelationStatistics statistics;
+
+	/**
+	 * Creates an empty Relation.
+	 * @param sName the name of the predicate
+	 * @param iArity the number of columns
+	 */
+	public Relation(String sName, int iArity){
+		this(sName, iArity, INITIAL_ROWS);
+	}
+
+	/**
+	 * Creates an empty Relation with room for some rows, so it doesn't have to grow while they
+	 * are added.
+	 * @param sName the name of the predicate
+	 * @param iArity the number of columns
+	 * @param iExpectedRows the number of rows to make room for
+	 * @throws IllegalArgumentException if there are more than MAX_ARITY columns
+	 */
+	public Relation(String sName, int iArity, int iExpectedRows){
+		if(iArity > MAX_ARITY){
+			throw new IllegalArgumentException(String.format(
+					"%s has %d columns, a Relation can have at most %d", sName, iArity, MAX_ARITY));
+		}
+		int iRows = INITIAL_ROWS;
+		while(iRows < iExpectedRows){
+			iRows *= 2;
+		}
+		this.name = sName;
+		this.arity = iArity;
+		this.data = new int[iRows * Math.max(iArity, 1)];
+		this.numRows = 0;
+		this.table = new int[iRows * 2];
+		this.mask = this.table.length - 1;
+		this.filter = new BloomFilter(Math.max(INITIAL_FILTER_KEYS, iRows));
+		this.indexes = new ArrayList<ColumnIndex>();
+		this.advisor = null;
+		this.tries = new ArrayList<TrieRelation>();
+		this.activeValues = new BitSet[iArity];
+		for(int i = 0; i < iArity; i++){
+			this.activeValues[i] = new BitSet();
+		}
+		this.statistics = new RelationStatistics(this);
+	}
+
+	/**
+	 * Gets the name of this Relation.
+	 * @return the name of the predicate
+	 */
+	public String getName(){
+		return this.name;
+	}
+
+	/**
+	 * Gets the number of columns in this Relation.
+	 * @return the arity
+	 */
+	public int getArity(){
+		return this.arity;
+	}
+
+	/**
+	 * Gets the number of tuples in this Relation.
+	 * @return the number of rows
+	 */
+	public int size(){
+		return this.numRows;
+	}
+
+	/**
+	 * Gets one value out of a row.
+	 * @param iRow the row number
+	 * @param iColumn the column
+	 * @return the id stored in that cell
+	 */
+	public int get(int iRow, int iColumn){
+		return this.data[iRow * this.arity + iColumn];
+	}
+
+	/**
+	 * Copies a row into a new array.
+	 * @param iRow the row number
+	 * @return the ids in the row
+	 */
+	public int[] getRow(int iRow){
+		int[] tRow = new int[this.arity];
+		System.arraycopy(this.data, iRow * this.arity, tRow, 0, this.arity);
+		return tRow;
+	}
+
+	/**
+	 * Copies a row into an array that is already allocated.
+	 * @param iRow the row number
+	 * @param tRow the array to copy the ids into (must have arity values)
+	 */
+	public void getRow(int iRow, int[] tRow){
+		System.arraycopy(this.data, iRow * this.arity, tRow, 0, this.arity);
+	}
+
+	/**
+	 * Gets the set of ids that show up in a column (its active domain).
+	 * This is kept up to date as tuples are added.
+	 * @param iColumn the column
+	 * @return the ids as a BitSet (don't modify it)
+	 */
+	public BitSet getActiveValues(int iColumn){
+		return this.activeValues[iColumn];
+	}
+
+	/**
+	 * Gets the row count, distinct values and frequent values of this Relation.
+	 * These are kept up to date as tuples are added.
+	 * @return the RelationStatistics for this Relation
+	 */
+	public RelationStatistics getStatistics(){
+		return this.statistics;
+	}
+
+	/**
+	 * Gets the Bloom filter in front of the hash index so its counters can be inspected.
+	 * @return the BloomFilter for this Relation
+	 */
+	public BloomFilter getFilter(){
+		return this.filter;
+	}
+
+	/**
+	 * Adds a tuple to this Relation if it isn't already there.
+	 * @param tuple the ids of the tuple (must have arity values)
+	 * @return true if the tuple was added, false if it was already there
+	 */
+	public boolean add(int[] tuple){
+		int iSlot = this.findSlot(tuple);
+		if(this.table[iSlot] != 0){
+			return false;
+		}
+
+		if(this.data.length < (this.numRows + 1) * this.arity){
+			int[] tData = new int[this.data.length * 2];
+			System.arraycopy(this.data, 0, tData, 0, this.numRows * this.arity);
+			this.data = tData;
+		}
+		System.arraycopy(tuple, 0, this.data, this.numRows * this.arity, this.arity);
+		this.numRows++;
+		this.table[iSlot] = this.numRows;
+
+		// keep the load factor under a half so probe chains stay short
+		if(this.numRows * 2 > this.table.length){
+			this.rehash();
+		}
+
+		for(ColumnIndex tIndex : this.indexes){
+			tIndex.add(this.numRows - 1);
+		}
+		for(int i = 0; i < this.arity; i++){
+			this.activeValues[i].set(tuple[i]);
+		}
+		this.statistics.add(tuple);
+
+		this.filter.add(hash(tuple));
+		if(this.filter.isSaturated()){
+			this.rebuildFilter();
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a tuple is in this Relation.
+	 * @param tuple the ids of the tuple
+	 * @return true if the tuple exists
+	 */
+	public boolean contains(int[] tuple){
+		if(!this.filter.mightContain(hash(tuple))){
+			return false;
+		}
+		if(this.table[this.findSlot(tuple)] != 0){
+			return true;
+		}
+		this.filter.recordFalsePositive();
+		return false;
+	}
+
+	/**
+	 * Finds the row number of a tuple.
+	 * @param tuple the ids of the tuple
+	 * @return the row number or -1 if the tuple isn't in this Relation
+	 */
+	public int indexOf(int[] tuple){
+		return this.table[this.findSlot(tuple)] - 1;
+	}
+
+	/**
+	 * Creates a secondary index on some columns, or returns the one that already exists.
+	 * The index is kept up to date as tuples are added.
+	 * @param tColumns the columns in the key (in any order)
+	 * @return the ColumnIndex on exactly those columns
+	 */
+	public ColumnIndex declareIndex(int[] tColumns){
+		int iMask = 0;
+		for(int i : tColumns){
+			iMask |= 1 << i;
+		}
+		for(ColumnIndex tIndex : this.indexes){
+			if(tIndex.getColumnMask() == iMask){
+				return tIndex;
+			}
+		}
+		ColumnIndex tIndex = new ColumnIndex(this, columnsOf(iMask));
+		this.indexes.add(tIndex);
+		return tIndex;
+	}
+
+	/**
+	 * Gets every secondary index on this Relation.
+	 * @return a reference to the List of ColumnIndexes
+	 */
+	public List<ColumnIndex> getIndexes(){
+		return this.indexes;
+	}
+
+	/**
+	 * Drops a secondary index so its memory can be reclaimed.
+	 * @param tIndex the index to drop
+	 */
+	public void dropIndex(ColumnIndex tIndex){
+		this.indexes.remove(tIndex);
+	}
+
+	/**
+	 * Sets the IndexAdvisor that decides which indexes scans use and which ones get built.
+	 * Without one, a single column index is built the first time a column is bound.
+	 * @param tAdvisor the IndexAdvisor, or null to go back to building indexes on first use
+	 */
+	public void setIndexAdvisor(IndexAdvisor tAdvisor){
+		this.advisor = tAdvisor;
+	}
+
+	/**
+	 * Finds the existing index that is the best fit for a set of bound columns.
+	 * That is the index with the most key columns that are all bound.
+	 * @param iBoundMask the bound columns as a bit mask
+	 * @return the best ColumnIndex, or null if none of them fit
+	 */
+	public ColumnIndex findExistingIndex(int iBoundMask){
+		ColumnIndex tBest = null;
+		if(iBoundMask == 0){
+			return tBest;
+		}
+		for(ColumnIndex tIndex : this.indexes){
+			int iColumns = tIndex.getColumnMask();
+			if((iColumns & ~iBoundMask) == 0 &&
+					(tBest == null || Integer.bitCount(iColumns) > Integer.bitCount(tBest.getColumnMask()))){
+				tBest = tIndex;
+			}
+		}
+		return tBest;
+	}
+
+	/**
+	 * Finds the index that is the best fit for a set of bound columns.
+	 * If no index fits, a single column index is created on the first bound column.
+	 * @param iBoundMask the bound columns as a bit mask
+	 * @return the best ColumnIndex, or null if nothing is bound
+	 */
+	public ColumnIndex findIndex(int iBoundMask){
+		ColumnIndex tBest = this.findExistingIndex(iBoundMask);
+		if(tBest == null && iBoundMask != 0){
+			tBest = this.declareIndex(new int[]{Integer.numberOfTrailingZeros(iBoundMask)});
+		}
+		return tBest;
+	}
+
+	/**
+	 * Gets this Relation sorted into a trie on the given column order.
+	 * Tries are kept around and brought up to date with any rows added since they were sorted.
+	 * @param tOrder a permutation of the columns
+	 * @return the TrieRelation sorted on that order
+	 */
+	public TrieRelation getTrie(int[] tOrder){
+		for(TrieRelation tTrie : this.tries){
+			if(Arrays.equals(tTrie.getOrder(), tOrder)){
+				if(tTrie.isStale()){
+					tTrie.extend();
+				}
+				return tTrie;
+			}
+		}
+		TrieRelation tTrie = new TrieRelation(this, tOrder);
+		this.tries.add(tTrie);
+		return tTrie;
+	}
+
+	/**
+	 * Finds every row that has the same values as a tuple in the bound columns.
+	 * The best index is used to find the candidate rows, and any bound columns that aren't part
+	 * of its key are checked one row at a time.
+	 * @param iBoundMask the bound columns as a bit mask
+	 * @param tuple the values to match (only the bound columns are looked at)
+	 * @param tRows the List to add the matching row numbers to
+	 */
+	public void scan(int iBoundMask, int[] tuple, IntList tRows){
+		if(iBoundMask == 0){
+			for(int iRow = 0; iRow < this.numRows; iRow++){
+				tRows.add(iRow);
+			}
+			return;
+		}
+		if(iBoundMask == (1 << this.arity) - 1){
+			int iRow = this.indexOf(tuple);
+			if(iRow >= 0){
+				tRows.add(iRow);
+			}
+			return;
+		}
+
+		ColumnIndex tIndex = this.advisor == null ?
+				this.findIndex(iBoundMask) : this.advisor.chooseIndex(this, iBoundMask);
+		int iExamined;
+		if(tIndex == null){
+			// nothing fits yet, so look at every row
+			int[] tColumns = columnsOf(iBoundMask);
+			for(int iRow = 0; iRow < this.numRows; iRow++){
+				if(this.matches(iRow, tColumns, tuple)){
+					tRows.add(iRow);
+				}
+			}
+			iExamined = this.numRows;
+		}else{
+			IntList tCandidates = tIndex.lookup(tuple);
+			iExamined = tCandidates == null ? 0 : tCandidates.size();
+			int[] tResidual = columnsOf(iBoundMask & ~tIndex.getColumnMask());
+			for(int i = 0; i < iExamined; i++){
+				int iRow = tCandidates.get(i);
+				if(this.matches(iRow, tResidual, tuple)){
+					tRows.add(iRow);
+				}
+			}
+		}
+		if(this.advisor != null){
+			this.advisor.recordScan(this, iBoundMask, iExamined);
+		}
+	}
+
+	/**
+	 * Scans once for each of a batch of tuples, with the same bound columns in all of them.
+	 * It finds the same rows as calling scan() for each tuple, but the index is picked and the
+	 * scans are recorded with the IndexAdvisor once for the whole batch.
+	 * @param iBoundMask the bound columns as a bit mask
+	 * @param tTuples the tuples one after another, arity values each (only the bound columns
+	 * are looked at)
+	 * @param n the number of tuples
+	 * @param tRows the List to add the matching row numbers to
+	 * @param tEnds set to the size of tRows after the matches of each tuple were added
+	 */
+	public void scanBatch(int iBoundMask, int[] tTuples, int n, IntList tRows, int[] tEnds){
+		int[] tuple = new int[this.arity];
+		if(iBoundMask == 0 || iBoundMask == (1 << this.arity) - 1){
+			for(int i = 0; i < n; i++){
+				System.arraycopy(tTuples, i * this.arity, tuple, 0, this.arity);
+				this.scan(iBoundMask, tuple, tRows);
+				tEnds[i] = tRows.size();
+			}
+			return;
+		}
+
+		ColumnIndex tIndex = this.advisor == null ?
+				this.findIndex(iBoundMask) : this.advisor.chooseIndex(this, iBoundMask, n);
+		long lExamined = 0;
+		int[] tResidual = columnsOf(tIndex == null ? iBoundMask : iBoundMask & ~tIndex.getColumnMask());
+		for(int i = 0; i < n; i++){
+			System.arraycopy(tTuples, i * this.arity, tuple, 0, this.arity);
+			if(tIndex == null){
+				for(int iRow = 0; iRow < this.numRows; iRow++){
+					if(this.matches(iRow, tResidual, tuple)){
+						tRows.add(iRow);
+					}
+				}
+				lExamined += this.numRows;
+			}else{
+				IntList tCandidates = tIndex.lookup(tuple);
+				int iCandidates = tCandidates == null ? 0 : tCandidates.size();
+				for(int j = 0; j < iCandidates; j++){
+					int iRow = tCandidates.get(j);
+					if(this.matches(iRow, tResidual, tuple)){
+						tRows.add(iRow);
+					}
+				}
+				lExamined += iCandidates;
+			}
+			tEnds[i] = tRows.size();
+		}
+		if(this.advisor != null){
+			this.advisor.recordScan(this, iBoundMask, n, lExamined);
+		}
+	}
+
+	private boolean matches(int iRow, int[] tColumns, int[] tuple){
+		int iBase = iRow * this.arity;
+		for(int iColumn : tColumns){
+			if(this.data[iBase + iColumn] != tuple[iColumn]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Turns a bit mask of columns into an array of column numbers.
+	 * @param iMask the bit mask
+	 * @return the columns in increasing order
+	 */
+	public static int[] columnsOf(int iMask){
+		int[] tColumns = new int[Integer.bitCount(iMask)];
+		int iRest = iMask;
+		for(int i = 0; i < tColumns.length; i++){
+			tColumns[i] = Integer.numberOfTrailingZeros(iRest);
+			iRest &= iRest - 1;
+		}
+		return tColumns;
+	}
+
+	private int findSlot(int[] tuple){
+		int iSlot = (int)hash(tuple) & this.mask;
+		while(this.table[iSlot] != 0 && !this.rowEquals(this.table[iSlot] - 1, tuple)){
+			iSlot = (iSlot + 1) & this.mask;
+		}
+		return iSlot;
+	}
+
+	private boolean rowEquals(int iRow, int[] tuple){
+		int iBase = iRow * this.arity;
+		for(int i = 0; i < this.arity; i++){
+			if(this.data[iBase + i] != tuple[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash(){
+		this.table = new int[this.table.length * 2];
+		this.mask = this.table.length - 1;
+		int[] tRow = new int[this.arity];
+		for(int iRow = 0; iRow < this.numRows; iRow++){
+			System.arraycopy(this.data, iRow * this.arity, tRow, 0, this.arity);
+			int iSlot = (int)hash(tRow) & this.mask;
+			while(this.table[iSlot] != 0){
+				iSlot = (iSlot + 1) & this.mask;
+			}
+			this.table[iSlot] = iRow + 1;
+		}
+	}
+
+	private void rebuildFilter(){
+		BloomFilter tOld = this.filter;
+		this.filter = new BloomFilter(this.numRows * 2);
+		this.filter.addCounters(tOld);
+		int[] tRow = new int[this.arity];
+		for(int iRow = 0; iRow < this.numRows; iRow++){
+			System.arraycopy(this.data, iRow * this.arity, tRow, 0, this.arity);
+			this.filter.add(hash(tRow));
+		}
+	}
+
+	/**
+	 * Hashes a tuple of ids.
+	 * @param tuple the ids
+	 * @return a well mixed 64 bit hash
+	 */
+	public static long hash(int[] tuple){
+		long h = tuple.length;
+		for(int i : tuple){
+			h = Hashing.mix(h * 31 + i);
+		}
+		return Hashing.mix(h);
+	}
+
+	/**
+	 * Formats this Relation as name/arity with the number of rows.
+	 * @return a formatted String
+	 */
+	@Override
+	public String toString(){
+		return String.format("%s(%d)", FactCatalog.relationKey(this.name, this.arity), this.numRows);
+	}
+}
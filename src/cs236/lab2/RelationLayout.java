@@ -0,0 +1,37 @@
+/*
+ * RelationLayout.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * RelationLayout is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RelationLayout is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+/**
+ * A RelationLayout tells the evaluators how to find the rows that match some bound columns.
+ * @author T. Jameson Little
+ */
+public enum RelationLayout {
+	/**
+	 * Hash indexes on the bound columns (ColumnIndex), built by the IndexAdvisor
+	 */
+	HASH,
+	/**
+	 * Tuples sorted into a TrieRelation with the bound columns first, searched by galloping
+	 */
+	TRIE
+}
@@ -0,0 +1,166 @@
+/*
+ * RelationStatistics.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * RelationStatistics is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RelationStatistics is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+/**
+ * Statistics about the tuples of one Relation, kept up to date as tuples are added.
+ *
+ * Every column has a HyperLogLog sketch of its distinct values and a HeavyHitters summary of
+ * its most frequent ones.  They are cheap to update, so they're kept for every Relation,
+ * including the ones derived by the Rules, and a planner can ask how many rows a lookup is
+ * likely to return without looking at the rows.
+ * @author T. Jameson Little
+ */
+public class RelationStatistics {
+	private Relation relation;
+	private HyperLogLog[] distinct;
+	private HeavyHitters[] frequent;
+
+	/**
+	 * Creates empty statistics for a Relation.  The Relation updates them as tuples are added.
+	 * @param tRelation the Relation
+	 */
+	RelationStatistics(Relation tRelation){
+		this.relation = tRelation;
+		this.distinct = new HyperLogLog[tRelation.getArity()];
+		this.frequent = new HeavyHitters[tRelation.getArity()];
+		for(int i = 0; i < this.distinct.length; i++){
+			this.distinct[i] = new HyperLogLog();
+			this.frequent[i] = new HeavyHitters();
+		}
+	}
+
+	/**
+	 * Counts a tuple that was just added to the Relation.
+	 */
+	void add(int[] tuple){
+		for(int i = 0; i < tuple.length; i++){
+			this.distinct[i].add(Hashing.mix(tuple[i]));
+			this.frequent[i].add(tuple[i]);
+		}
+	}
+
+	/**
+	 * Gets the number of rows.
+	 * @return the size of the Relation
+	 */
+	public long getRowCount(){
+		return this.relation.size();
+	}
+
+	/**
+	 * Estimates the number of distinct values in a column.
+	 * @param iColumn the column
+	 * @return the estimate, which is never more than the number of rows
+	 */
+	public long getDistinctEstimate(int iColumn){
+		return Math.min(this.distinct[iColumn].estimate(), this.getRowCount());
+	}
+
+	/**
+	 * Gets the most frequent values of a column.
+	 * @param iColumn the column
+	 * @return the HeavyHitters of the column (don't modify it)
+	 */
+	public HeavyHitters getHeavyHitters(int iColumn){
+		return this.frequent[iColumn];
+	}
+
+	/**
+	 * Estimates the fraction of rows that have some value in a column.
+	 * @param iColumn the column
+	 * @return 1 / the number of distinct values
+	 */
+	public double getSelectivity(int iColumn){
+		return 1.0 / Math.max(this.getDistinctEstimate(iColumn), 1);
+	}
+
+	/**
+	 * Estimates the fraction of rows that have a particular value in a column.  Values with a
+	 * trusted count in the HeavyHitters use it; every other value gets an equal share of the
+	 * rest of the rows.
+	 * @param iColumn the column
+	 * @param iId the id of the value
+	 * @return the estimated fraction of the rows
+	 */
+	public double getSelectivity(int iColumn, int iId){
+		long lRows = this.getRowCount();
+		if(lRows == 0){
+			return 0;
+		}
+		HeavyHitters tFrequent = this.frequent[iColumn];
+		int[] tTop = tFrequent.getTop();
+		long lRest = lRows;
+		for(int iTop : tTop){
+			long lCount = tFrequent.getGuaranteedCount(iTop);
+			if(iTop == iId){
+				return (double)lCount / lRows;
+			}
+			lRest -= lCount;
+		}
+		long lOthers = this.getDistinctEstimate(iColumn) - tTop.length;
+		if(lRest <= 0){
+			// the trusted counts cover every row, so this value isn't there at all
+			return 0;
+		}
+		return (double)lRest / Math.max(lOthers, 1) / lRows;
+	}
+
+	/**
+	 * Gets the memory used by the sketches.
+	 * @return the size in bytes
+	 */
+	public int getSizeInBytes(){
+		int iBytes = 0;
+		for(HyperLogLog tSketch : this.distinct){
+			iBytes += tSketch.getSizeInBytes();
+		}
+		for(HeavyHitters tFrequent : this.frequent){
+			iBytes += tFrequent.getSizeInBytes();
+		}
+		return iBytes;
+	}
+
+	/**
+	 * Formats the statistics, one line for the Relation and one per column.
+	 * @param tSymbols the SymbolTable to print the frequent values with
+	 * @return the formatted statistics
+	 */
+	public String describe(SymbolTable tSymbols){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("%s rows=%d", FactCatalog.relationKey(this.relation.getName(),
+				this.relation.getArity()), this.getRowCount())).append(NEWLINE);
+		for(int i = 0; i < this.distinct.length; i++){
+			sb.append(String.format("  $%d distinct~%d top:", i, this.getDistinctEstimate(i)));
+			HeavyHitters tFrequent = this.frequent[i];
+			int[] tTop = tFrequent.getTop();
+			for(int j = 0; j < tTop.length && j < 3; j++){
+				sb.append(' ').append(tSymbols.getConstant(tTop[j]).toString());
+				sb.append('x').append(tFrequent.getGuaranteedCount(tTop[j]));
+			}
+			sb.append(NEWLINE);
+		}
+		return sb.toString();
+	}
+}
@@ -84,7 +84,7 @@ public class Rule extends Predicate implements Comparable<Predicate>{
 	public void propagateBoundVariables(){
 		for(Parameter p : this){
 			for(Predicate tPred : this.predicateList){
-				tPred.bind(p.getName(), p.getValue());
+				tPred.bind(p.getName(), p);
 			}
 		}
 	}
@@ -0,0 +1,149 @@
+/*
+ * SymbolTable.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * SymbolTable is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SymbolTable is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import cs236.lab1.TokenType;
+
+/**
+ * Maps every constant in the domain to a small int so tuples can be stored and compared as ints.
+ *
+ * The ids are handed out in the order of the domain, so comparing two ids gives the same answer
+ * as comparing the constants they stand for (Integers numerically, then Strings).  Constants that
+ * show up after the table was built are appended to the end and don't keep that property.
+ * @author T. Jameson Little
+ */
+public class SymbolTable {
+	/**
+	 * The id returned for a constant that isn't in the table.
+	 */
+	public static final int UNKNOWN = -1;
+
+	// Integers are keyed by their Long value and Strings by themselves, so '7' and 7 differ
+	private Map<Object, Integer> ids;
+	private List<Parameter> constants;
+	private int sortedCount;
+
+	/**
+	 * Creates a SymbolTable with an id for every constant in the domain.
+	 * @param tDomain the sorted domain of a DatalogProgram
+	 */
+	public SymbolTable(SortedSet<Parameter> tDomain){
+		this.ids = new HashMap<Object, Integer>();
+		this.constants = new ArrayList<Parameter>(tDomain.size());
+		for(Parameter p : tDomain){
+			this.intern(p);
+		}
+		this.sortedCount = this.constants.size();
+	}
+
+	/**
+	 * Gets the id of a constant.
+	 * @param tValue a constant, or a variable holding a value
+	 * @return the id or UNKNOWN if the constant isn't in the table
+	 */
+	public int getId(Parameter tValue){
+		Integer iId = this.ids.get(key(tValue));
+		return iId == null ? UNKNOWN : iId;
+	}
+
+	/**
+	 * Gets the id of a constant, giving it a new id if it doesn't have one yet.
+	 * @param tValue a constant, or a variable holding a value
+	 * @return the id of the constant
+	 */
+	public int intern(Parameter tValue){
+		Object tKey = key(tValue);
+		Integer iId = this.ids.get(tKey);
+		if(iId == null){
+			iId = this.constants.size();
+			this.ids.put(tKey, iId);
+			this.constants.add(new Parameter(tValue.getValue(), tValue.isInteger() ? TokenType.INTEGER : TokenType.STRING));
+		}
+		return iId;
+	}
+
+	/**
+	 * Gets the text of the constant an id stands for.
+	 * @param iId the id
+	 * @return the constant (without quotes)
+	 */
+	public String getValue(int iId){
+		return this.constants.get(iId).getValue();
+	}
+
+	/**
+	 * Gets the constant an id stands for.
+	 * @param iId the id
+	 * @return the constant as a Parameter (don't modify it)
+	 */
+	public Parameter getConstant(int iId){
+		return this.constants.get(iId);
+	}
+
+	/**
+	 * Whether the constant an id stands for is an Integer.
+	 * @param iId the id
+	 * @return true for an Integer, false for a String
+	 */
+	public boolean isInteger(int iId){
+		return this.constants.get(iId).isInteger();
+	}
+
+	/**
+	 * Gets the number of constants in this table.
+	 * @return the number of ids handed out
+	 */
+	public int size(){
+		return this.constants.size();
+	}
+
+	/**
+	 * Gets the number of constants the table was built with, which are the domain of the
+	 * DatalogProgram: ids 0 up to this one.  Constants interned later, like the ones only Rule
+	 * bodies have, don't count, so this never changes.
+	 * @return the size of the domain
+	 */
+	public int getDomainSize(){
+		return this.sortedCount;
+	}
+
+	/**
+	 * Whether the order of the ids is still the same as the order of the constants.
+	 * @return true if no constants were appended after the table was built
+	 */
+	public boolean isSorted(){
+		return this.sortedCount == this.constants.size();
+	}
+
+	private static Object key(Parameter tValue){
+		if(tValue.isInteger()){
+			return Long.valueOf(tValue.getIntegerValue());
+		}
+		return tValue.getValue();
+	}
+}
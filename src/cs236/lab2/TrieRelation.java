@@ -0,0 +1,399 @@
+/*
+ * TrieRelation.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab2.
+ *
+ * TrieRelation is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TrieRelation is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab2.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab2;
+
+/**
+ * The tuples of a Relation sorted lexicographically and stored one column at a time.
+ *
+ * The columns are taken in a given order, so the first column of the trie can be any column of
+ * the Relation.  Every prefix of a tuple is a node of the trie: the rows that share the prefix
+ * are a contiguous range, and the distinct values in the next column of that range are the
+ * children of the node.  Ranges are narrowed with galloping (exponential) search, so hopping
+ * over a long run of rows costs the log of the run, not its length.
+ *
+ * Because the ids follow the order of the domain, walking the trie gives sorted output without
+ * sorting anything.
+ * @author T. Jameson Little
+ */
+public class TrieRelation {
+	private Relation relation;
+	private int[] order;
+	private int[][] columns;
+	private int numRows;
+
+	/**
+	 * Sorts every row of a Relation into a trie.
+	 * Use Relation.getTrie() so the trie is shared and kept up to date.
+	 * @param tRelation the Relation to sort
+	 * @param tOrder the columns of the Relation in the order they should be sorted on
+	 */
+	TrieRelation(Relation tRelation, int[] tOrder){
+		this.relation = tRelation;
+		this.order = tOrder.clone();
+		this.columns = new int[tOrder.length][0];
+		this.numRows = 0;
+		this.extend();
+	}
+
+	/**
+	 * Gets the columns of the Relation in the order this trie is sorted on.
+	 * @return the column order
+	 */
+	public int[] getOrder(){
+		return this.order.clone();
+	}
+
+	/**
+	 * Gets the number of levels (columns) in this trie.
+	 * @return the arity
+	 */
+	public int getArity(){
+		return this.order.length;
+	}
+
+	/**
+	 * Gets the number of tuples in this trie.
+	 * @return the number of rows
+	 */
+	public int size(){
+		return this.numRows;
+	}
+
+	/**
+	 * Gets a value from the sorted columns.
+	 * @param iLevel the level (position in the column order)
+	 * @param iRow the position in sorted order
+	 * @return the id at that position
+	 */
+	public int get(int iLevel, int iRow){
+		return this.columns[iLevel][iRow];
+	}
+
+	/**
+	 * Whether this trie is missing rows that were added to its Relation since it was sorted.
+	 * @return true if extend() needs to be called
+	 */
+	public boolean isStale(){
+		return this.numRows != this.relation.size();
+	}
+
+	/**
+	 * Merges the rows added to the Relation since this trie was sorted into it.
+	 * The new rows are sorted on their own and then merged, so this is linear in the size of
+	 * the trie plus the cost of sorting the new rows.
+	 */
+	public void extend(){
+		int iNew = this.relation.size() - this.numRows;
+		if(iNew <= 0){
+			return;
+		}
+		int[] tNewRows = new int[iNew];
+		for(int i = 0; i < iNew; i++){
+			tNewRows[i] = this.numRows + i;
+		}
+		tNewRows = this.sortRows(tNewRows);
+
+		int iTotal = this.numRows + iNew;
+		int[][] tColumns = new int[this.order.length][iTotal];
+		int iOld = 0;
+		int iAdded = 0;
+		for(int iOut = 0; iOut < iTotal; iOut++){
+			boolean bTakeOld;
+			if(iOld == this.numRows){
+				bTakeOld = false;
+			}else if(iAdded == iNew){
+				bTakeOld = true;
+			}else{
+				bTakeOld = this.compareToRow(iOld, tNewRows[iAdded]) < 0;
+			}
+			for(int iLevel = 0; iLevel < this.order.length; iLevel++){
+				tColumns[iLevel][iOut] = bTakeOld ? this.columns[iLevel][iOld] :
+						this.relation.get(tNewRows[iAdded], this.order[iLevel]);
+			}
+			if(bTakeOld){
+				iOld++;
+			}else{
+				iAdded++;
+			}
+		}
+		this.columns = tColumns;
+		this.numRows = iTotal;
+	}
+
+	/**
+	 * Sorts row numbers of the Relation on the column order.
+	 * This is a least significant digit radix sort: one stable counting sort per column,
+	 * starting with the last one.
+	 */
+	private int[] sortRows(int[] tRows){
+		int[] tCurrent = tRows;
+		int[] tNext = new int[tRows.length];
+		for(int iLevel = this.order.length - 1; iLevel >= 0; iLevel--){
+			int iColumn = this.order[iLevel];
+			int iMax = 0;
+			for(int iRow : tCurrent){
+				iMax = Math.max(iMax, this.relation.get(iRow, iColumn));
+			}
+			int[] tCounts = new int[iMax + 2];
+			for(int iRow : tCurrent){
+				tCounts[this.relation.get(iRow, iColumn) + 1]++;
+			}
+			for(int i = 1; i < tCounts.length; i++){
+				tCounts[i] += tCounts[i - 1];
+			}
+			for(int iRow : tCurrent){
+				tNext[tCounts[this.relation.get(iRow, iColumn)]++] = iRow;
+			}
+			int[] tSwap = tCurrent;
+			tCurrent = tNext;
+			tNext = tSwap;
+		}
+		return tCurrent;
+	}
+
+	private int compareToRow(int iSorted, int iRow){
+		for(int iLevel = 0; iLevel < this.order.length; iLevel++){
+			int a = this.columns[iLevel][iSorted];
+			int b = this.relation.get(iRow, this.order[iLevel]);
+			if(a != b){
+				return a < b ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Finds the range of sorted rows that start with a prefix.
+	 * @param prefix the values of the first levels
+	 * @param iLength how many values of prefix to use
+	 * @return an array {lo, hi}; the range is empty if lo == hi
+	 */
+	public int[] prefixRange(int[] prefix, int iLength){
+		int lo = 0;
+		int hi = this.numRows;
+		for(int iLevel = 0; iLevel < iLength && lo < hi; iLevel++){
+			lo = gallop(this.columns[iLevel], lo, hi, prefix[iLevel]);
+			hi = upperBound(this.columns[iLevel], lo, hi, prefix[iLevel]);
+		}
+		return new int[]{lo, hi};
+	}
+
+	/**
+	 * Checks whether a tuple (given in the Relation's column order) is in this trie.
+	 * @param tuple the ids of the tuple
+	 * @return true if it's there
+	 */
+	public boolean contains(int[] tuple){
+		int[] prefix = new int[this.order.length];
+		for(int i = 0; i < prefix.length; i++){
+			prefix[i] = tuple[this.order[i]];
+		}
+		int[] tRange = this.prefixRange(prefix, prefix.length);
+		return tRange[0] < tRange[1];
+	}
+
+	/**
+	 * Adds the distinct values of one level within a range of rows, in increasing order.
+	 * @param iLevel the level, which should be the one after the prefix that gave the range
+	 * @param lo the first row of the range
+	 * @param hi one past the last row of the range
+	 * @param tValues the List to add the values to
+	 */
+	public void distinctValues(int iLevel, int lo, int hi, IntList tValues){
+		int[] tColumn = this.columns[iLevel];
+		int iPos = lo;
+		while(iPos < hi){
+			int iValue = tColumn[iPos];
+			tValues.add(iValue);
+			iPos = upperBound(tColumn, iPos, hi, iValue);
+		}
+	}
+
+	/**
+	 * Creates a new iterator at the root of this trie.
+	 * @return a TrieIterator
+	 */
+	public TrieIterator iterator(){
+		return new TrieIterator();
+	}
+
+	/**
+	 * Finds the first position in a sorted range whose value is at least the target.
+	 * The search doubles its step from lo until it passes the target, then binary searches the
+	 * last step, so it's fast when the answer is close to lo.
+	 * @param values a sorted array
+	 * @param lo the start of the range
+	 * @param hi one past the end of the range
+	 * @param iTarget the value to look for
+	 * @return the first position with a value >= iTarget, or hi if there isn't one
+	 */
+	public static int gallop(int[] values, int lo, int hi, int iTarget){
+		if(lo >= hi || values[lo] >= iTarget){
+			return lo;
+		}
+		// values[iLow] < iTarget is always true
+		int iLow = lo;
+		int iStep = 1;
+		int iHigh = lo + 1;
+		while(iHigh < hi && values[iHigh] < iTarget){
+			iLow = iHigh;
+			iStep <<= 1;
+			iHigh = lo + iStep;
+		}
+		if(iHigh > hi){
+			iHigh = hi;
+		}
+		// binary search in (iLow, iHigh]
+		while(iLow + 1 < iHigh){
+			int iMid = (iLow + iHigh) >>> 1;
+			if(values[iMid] < iTarget){
+				iLow = iMid;
+			}else{
+				iHigh = iMid;
+			}
+		}
+		return iHigh;
+	}
+
+	/**
+	 * Finds the first position in a sorted range whose value is greater than the target.
+	 * @param values a sorted array
+	 * @param lo the start of the range
+	 * @param hi one past the end of the range
+	 * @param iTarget the value to skip past
+	 * @return the first position with a value > iTarget, or hi if there isn't one
+	 */
+	public static int upperBound(int[] values, int lo, int hi, int iTarget){
+		return iTarget == Integer.MAX_VALUE ? hi : gallop(values, lo, hi, iTarget + 1);
+	}
+
+	/**
+	 * Intersects two sorted lists of distinct values by galloping through whichever is behind.
+	 * @param a the first sorted list
+	 * @param b the second sorted list
+	 * @param tOut the List to add the common values to
+	 */
+	public static void intersect(IntList a, IntList b, IntList tOut){
+		int[] tA = a.toArray();
+		int[] tB = b.toArray();
+		int i = 0;
+		int j = 0;
+		while(i < tA.length && j < tB.length){
+			if(tA[i] == tB[j]){
+				tOut.add(tA[i]);
+				i++;
+				j++;
+			}else if(tA[i] < tB[j]){
+				i = gallop(tA, i, tA.length, tB[j]);
+			}else{
+				j = gallop(tB, j, tB.length, tA[i]);
+			}
+		}
+	}
+
+	/**
+	 * Walks a TrieRelation one level at a time, the way a leapfrog join needs to.
+	 *
+	 * At each level the iterator sits on one distinct value (its key).  open() moves down to the
+	 * children of the current key and up() goes back, next() and seek() move to later keys on
+	 * the same level.
+	 */
+	public class TrieIterator {
+		private int depth;
+		private int[] lo;
+		private int[] hi;
+		private int[] pos;
+
+		TrieIterator(){
+			int iLevels = TrieRelation.this.order.length;
+			this.depth = -1;
+			this.lo = new int[iLevels];
+			this.hi = new int[iLevels];
+			this.pos = new int[iLevels];
+		}
+
+		/**
+		 * Gets the current level, -1 at the root.
+		 * @return the depth
+		 */
+		public int getDepth(){
+			return this.depth;
+		}
+
+		/**
+		 * Moves down to the first child of the current key.
+		 */
+		public void open(){
+			int iLevel = this.depth + 1;
+			if(iLevel == 0){
+				this.lo[0] = 0;
+				this.hi[0] = TrieRelation.this.numRows;
+			}else{
+				int[] tParent = TrieRelation.this.columns[this.depth];
+				this.lo[iLevel] = this.pos[this.depth];
+				this.hi[iLevel] = upperBound(tParent, this.pos[this.depth], this.hi[this.depth], this.key());
+			}
+			this.pos[iLevel] = this.lo[iLevel];
+			this.depth = iLevel;
+		}
+
+		/**
+		 * Moves back up to the parent level.
+		 */
+		public void up(){
+			this.depth--;
+		}
+
+		/**
+		 * Gets the key at the current position.
+		 * @return the id
+		 */
+		public int key(){
+			return TrieRelation.this.columns[this.depth][this.pos[this.depth]];
+		}
+
+		/**
+		 * Whether there are no more keys at this level.
+		 * @return true if the iterator ran off the end of its range
+		 */
+		public boolean atEnd(){
+			return this.pos[this.depth] >= this.hi[this.depth];
+		}
+
+		/**
+		 * Moves to the next distinct key at this level.
+		 */
+		public void next(){
+			int[] tColumn = TrieRelation.this.columns[this.depth];
+			this.pos[this.depth] = upperBound(tColumn, this.pos[this.depth], this.hi[this.depth], this.key());
+		}
+
+		/**
+		 * Moves to the first key at this level that is at least iValue.
+		 * @param iValue the value to seek to
+		 */
+		public void seek(int iValue){
+			int[] tColumn = TrieRelation.this.columns[this.depth];
+			this.pos[this.depth] = gallop(tColumn, this.pos[this.depth], this.hi[this.depth], iValue);
+		}
+	}
+}
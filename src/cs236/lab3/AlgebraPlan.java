@@ -0,0 +1,414 @@
+/*
+ * AlgebraPlan.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab3.
+ *
+ * AlgebraPlan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AlgebraPlan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab3.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab3;
+
+import cs236.lab2.FactCatalog;
+import cs236.lab2.IntList;
+import cs236.lab2.Parameter;
+import cs236.lab2.Predicate;
+import cs236.lab2.Relation;
+import cs236.lab2.SymbolTable;
+import cs236.lab2.TrieRelation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A Query compiled into relational algebra over the Relation of its predicate.
+ *
+ * The plan is select (on the constants, then on columns that share a variable), project (onto
+ * the first column of each variable), rename (the kept columns get the variable names) and
+ * dedup.  The constants are looked up with a single scan of the Relation, which uses an index
+ * when the IndexAdvisor has one.
+ * @author T. Jameson Little
+ */
+public class AlgebraPlan {
+	private String name;
+	private int arity;
+
+	// select on constants
+	private Parameter[] constants;
+	private int boundMask;
+
+	// select on repeated variables: column equals[i][0] must equal column equals[i][1]
+	private int[][] equals;
+
+	// project and rename
+	private int[] columns;
+	private String[] attributes;
+
+	/**
+	 * Compiles a Query into a plan.
+	 * @param tQuery the Query (it isn't kept or modified)
+	 */
+	public AlgebraPlan(Predicate tQuery){
+		this(tQuery, tQuery.getValue());
+	}
+
+	/**
+	 * Compiles a Query into a plan that reads from another Relation with the same columns.
+	 * @param tQuery the Query (it isn't kept or modified)
+	 * @param sRelation the name of the Relation to read, for example one rewritten by magic sets
+	 * @throws IllegalArgumentException if the Query has more than Relation.MAX_ARITY Parameters
+	 */
+	public AlgebraPlan(Predicate tQuery, String sRelation){
+		if(tQuery.size() > Relation.MAX_ARITY){
+			// the bound columns are a mask, like a Relation's
+			throw new IllegalArgumentException(String.format(
+					"%s has %d columns, a Relation can have at most %d", sRelation, tQuery.size(), Relation.MAX_ARITY));
+		}
+		this.name = sRelation;
+		this.arity = tQuery.size();
+		this.constants = new Parameter[this.arity];
+
+		List<int[]> tEquals = new ArrayList<int[]>();
+		List<Integer> tColumns = new ArrayList<Integer>();
+		List<String> tAttributes = new ArrayList<String>();
+		for(int i = 0; i < this.arity; i++){
+			Parameter p = tQuery.get(i);
+			if(p.isConstant()){
+				this.constants[i] = p;
+				this.boundMask |= 1 << i;
+				continue;
+			}
+			int iFirst = tAttributes.indexOf(p.getName());
+			if(iFirst >= 0){
+				tEquals.add(new int[]{tColumns.get(iFirst), i});
+			}else{
+				tColumns.add(i);
+				tAttributes.add(p.getName());
+			}
+		}
+
+		this.equals = tEquals.toArray(new int[tEquals.size()][]);
+		this.columns = new int[tColumns.size()];
+		for(int i = 0; i < this.columns.length; i++){
+			this.columns[i] = tColumns.get(i);
+		}
+		this.attributes = tAttributes.toArray(new String[tAttributes.size()]);
+	}
+
+	/**
+	 * Gets the names of the columns in the result, in the order they first show up in the Query.
+	 * @return the variable names
+	 */
+	public String[] getAttributes(){
+		return this.attributes.clone();
+	}
+
+	/**
+	 * Runs the plan against the Facts.
+	 * @param tCatalog the FactCatalog holding the Facts
+	 * @return one tuple of ids per distinct answer, with a column per attribute, sorted in the
+	 * order of the domain
+	 */
+	public List<int[]> execute(FactCatalog tCatalog){
+		return this.execute(tCatalog.getRelation(this.name, this.arity), tCatalog.getSymbolTable());
+	}
+
+	/**
+	 * Runs the plan against a Relation that isn't in the FactCatalog, for example a table of
+	 * answers worked out by the Rules.
+	 * @param tRelation the Relation to read (null is the same as an empty one)
+	 * @param tSymbols the SymbolTable the ids in the Relation come from
+	 * @return one tuple of ids per distinct answer, with a column per attribute, sorted in the
+	 * order of the domain
+	 */
+	public List<int[]> execute(Relation tRelation, SymbolTable tSymbols){
+		List<int[]> tResult = new ArrayList<int[]>();
+		if(tRelation == null){
+			return tResult;
+		}
+
+		int[] tuple = this.encode(tSymbols);
+		if(tuple == null){
+			// a constant nobody has can't match anything
+			return tResult;
+		}
+
+		IntList tRows = new IntList();
+		tRelation.scan(this.boundMask, tuple, tRows);
+		for(int i = 0; i < tRows.size(); i++){
+			this.collect(tRelation, tRows.get(i), tResult);
+		}
+		return this.finish(tResult, tSymbols);
+	}
+
+	/**
+	 * Opens a cursor over the answers, which finds them one at a time in the same order as
+	 * execute() returns them.
+	 * @param tRelation the Relation to read (null is the same as an empty one)
+	 * @param tSymbols the SymbolTable the ids in the Relation come from
+	 * @return a QueryCursor
+	 */
+	public QueryCursor open(Relation tRelation, SymbolTable tSymbols){
+		int[] tuple = this.encode(tSymbols);
+		if(tRelation == null || tuple == null){
+			return new QueryCursor(new ArrayList<int[]>());
+		}
+		if(!tSymbols.isSorted()){
+			// the trie wouldn't come out in domain order
+			return new QueryCursor(this.execute(tRelation, tSymbols));
+		}
+
+		// the constants, then the first column of each variable, then the repeated columns
+		int[] tOrder = new int[this.arity];
+		int[] tLevelOf = new int[this.arity];
+		int[] prefix = new int[this.arity];
+		int iLevel = 0;
+		for(int i = 0; i < this.arity; i++){
+			if(this.constants[i] != null){
+				prefix[iLevel] = tuple[i];
+				tLevelOf[i] = iLevel;
+				tOrder[iLevel++] = i;
+			}
+		}
+		int iConstants = iLevel;
+		for(int iColumn : this.columns){
+			tLevelOf[iColumn] = iLevel;
+			tOrder[iLevel++] = iColumn;
+		}
+		for(int[] tPair : this.equals){
+			tLevelOf[tPair[1]] = iLevel;
+			tOrder[iLevel++] = tPair[1];
+		}
+
+		TrieRelation tTrie = tRelation.getTrie(tOrder);
+		int[] tRange = tTrie.prefixRange(prefix, iConstants);
+		int[] tLevels = new int[this.columns.length];
+		for(int i = 0; i < tLevels.length; i++){
+			tLevels[i] = tLevelOf[this.columns[i]];
+		}
+		int[][] tEquals = new int[this.equals.length][];
+		for(int i = 0; i < tEquals.length; i++){
+			tEquals[i] = new int[]{tLevelOf[this.equals[i][0]], tLevelOf[this.equals[i][1]]};
+		}
+		return new QueryCursor(tTrie, tRange[0], tRange[1], tLevels, tEquals);
+	}
+
+	/**
+	 * Checks whether the Query has any answer, stopping at the first row that is one.
+	 * @param tRelation the Relation to read (null is the same as an empty one)
+	 * @param tSymbols the SymbolTable the ids in the Relation come from
+	 * @return true if execute() would return something
+	 */
+	public boolean exists(Relation tRelation, SymbolTable tSymbols){
+		int[] tuple = this.encode(tSymbols);
+		if(tRelation == null || tuple == null){
+			return false;
+		}
+		if(this.boundMask == (1 << this.arity) - 1){
+			return tRelation.contains(tuple);
+		}
+		IntList tRows = new IntList();
+		tRelation.scan(this.boundMask, tuple, tRows);
+		for(int i = 0; i < tRows.size(); i++){
+			if(this.matches(tRelation, tRows.get(i))){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the name of the Relation this plan reads.
+	 * @return the name
+	 */
+	public String getName(){
+		return this.name;
+	}
+
+	/**
+	 * Gets the number of columns of the Relation this plan reads.
+	 * @return the arity
+	 */
+	public int getArity(){
+		return this.arity;
+	}
+
+	/**
+	 * Gets the columns this plan selects on constants.
+	 * @return the bound columns as a bit mask
+	 */
+	public int getBoundMask(){
+		return this.boundMask;
+	}
+
+	/**
+	 * Translates the constants into the tuple to scan the Relation with.
+	 * @param tSymbols the SymbolTable the ids in the Relation come from
+	 * @return a tuple with the ids of the constants in the bound columns, or null if one of them
+	 * isn't in the SymbolTable (so nothing can match)
+	 */
+	public int[] encode(SymbolTable tSymbols){
+		int[] tuple = new int[this.arity];
+		for(int i = 0; i < this.arity; i++){
+			if(this.constants[i] != null){
+				tuple[i] = tSymbols.getId(this.constants[i]);
+				if(tuple[i] == SymbolTable.UNKNOWN){
+					return null;
+				}
+			}
+		}
+		return tuple;
+	}
+
+	/**
+	 * Adds the answer in a row that matches the constants, unless it fails the select on
+	 * repeated variables.
+	 * @param tRelation the Relation that was scanned
+	 * @param iRow the row
+	 * @param tResult the answers so far
+	 */
+	public void collect(Relation tRelation, int iRow, List<int[]> tResult){
+		if(!this.matches(tRelation, iRow)){
+			return;
+		}
+		int[] tAnswer = new int[this.columns.length];
+		for(int j = 0; j < this.columns.length; j++){
+			tAnswer[j] = tRelation.get(iRow, this.columns[j]);
+		}
+		tResult.add(tAnswer);
+	}
+
+	/**
+	 * Sorts and dedups the answers collected from a scan.
+	 * @param tResult the answers from collect()
+	 * @param tSymbols the SymbolTable the ids come from
+	 * @return one tuple of ids per distinct answer, sorted in the order of the domain
+	 */
+	public List<int[]> finish(List<int[]> tResult, SymbolTable tSymbols){
+		return dedup(sortAnswers(tResult, tSymbols));
+	}
+
+	/**
+	 * Counts the answers in a Relation without building them.  The Relation has no duplicate
+	 * rows and every column that is dropped is a constant or repeats a variable, so each row that
+	 * matches is a different answer.
+	 * @param tRelation the Relation to read (null is the same as an empty one)
+	 * @param tSymbols the SymbolTable the ids in the Relation come from
+	 * @return the number of answers execute() would return
+	 */
+	public long count(Relation tRelation, SymbolTable tSymbols){
+		int[] tuple = this.encode(tSymbols);
+		if(tRelation == null || tuple == null){
+			return 0;
+		}
+		if(this.boundMask == 0 && this.equals.length == 0){
+			return tRelation.size();
+		}
+		IntList tRows = new IntList();
+		tRelation.scan(this.boundMask, tuple, tRows);
+		long lCount = 0;
+		for(int i = 0; i < tRows.size(); i++){
+			if(this.matches(tRelation, tRows.get(i))){
+				lCount++;
+			}
+		}
+		return lCount;
+	}
+
+	/**
+	 * Sorts answers in the order of the domain, a column at a time.
+	 * @param tResult the answers (sorted in place)
+	 * @param tSymbols the SymbolTable the ids come from
+	 * @return tResult
+	 */
+	public static List<int[]> sortAnswers(List<int[]> tResult, final SymbolTable tSymbols){
+		Collections.sort(tResult, new Comparator<int[]>(){
+			public int compare(int[] a, int[] b){
+				for(int i = 0; i < a.length; i++){
+					if(a[i] != b[i]){
+						// the ids are in domain order unless constants were added afterwards
+						if(tSymbols.isSorted()){
+							return a[i] < b[i] ? -1 : 1;
+						}
+						return tSymbols.getConstant(a[i]).compareTo(tSymbols.getConstant(b[i]));
+					}
+				}
+				return 0;
+			}
+		});
+		return tResult;
+	}
+
+	/**
+	 * Whether a row that matches the constants passes the select on repeated variables.
+	 * @param tRelation the Relation that was scanned
+	 * @param iRow the row
+	 * @return true if it is an answer
+	 */
+	public boolean matches(Relation tRelation, int iRow){
+		for(int[] tPair : this.equals){
+			if(tRelation.get(iRow, tPair[0]) != tRelation.get(iRow, tPair[1])){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<int[]> dedup(List<int[]> tSorted){
+		List<int[]> tResult = new ArrayList<int[]>(tSorted.size());
+		int[] tLast = null;
+		for(int[] tuple : tSorted){
+			if(tLast == null || !Arrays.equals(tLast, tuple)){
+				tResult.add(tuple);
+			}
+			tLast = tuple;
+		}
+		return tResult;
+	}
+
+	/**
+	 * Formats this plan in relational algebra, for example the plan for parent(X,'ned') is
+	 * dedup(rho[X](pi[0](sigma[1='ned'](parent/2)))).
+	 * @return the formatted plan
+	 */
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("dedup(rho[");
+		for(int i = 0; i < this.attributes.length; i++){
+			sb.append(i > 0 ? "," : "").append(this.attributes[i]);
+		}
+		sb.append("](pi[");
+		for(int i = 0; i < this.columns.length; i++){
+			sb.append(i > 0 ? "," : "").append(this.columns[i]);
+		}
+		sb.append("](sigma[");
+		boolean bFirst = true;
+		for(int i = 0; i < this.arity; i++){
+			if(this.constants[i] != null){
+				sb.append(bFirst ? "" : ",").append(i).append('=').append(this.constants[i].toString());
+				bFirst = false;
+			}
+		}
+		for(int[] tPair : this.equals){
+			sb.append(bFirst ? "" : ",").append(tPair[0]).append('=').append(tPair[1]);
+			bFirst = false;
+		}
+		sb.append("](").append(FactCatalog.relationKey(this.name, this.arity)).append("))))");
+		return sb.toString();
+	}
+}
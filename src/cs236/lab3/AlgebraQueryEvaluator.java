@@ -0,0 +1,327 @@
+/*
+ * AlgebraQueryEvaluator.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab3.
+ *
+ * AlgebraQueryEvaluator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * AlgebraQueryEvaluator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab3.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab3;
+
+import cs236.lab2.DatalogProgram;
+import cs236.lab2.Predicate;
+import cs236.lab2.Query;
+import cs236.lab2.Relation;
+import cs236.lab2.SymbolTable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Evaluates a Query against the Facts by running it as relational algebra (see AlgebraPlan)
+ * instead of trying every value for every variable.
+ *
+ * The answers come out in the same order as QueryEvaluator's, so toString() is identical.
+ * @author T. Jameson Little
+ */
+public class AlgebraQueryEvaluator extends QueryEvaluator {
+	private String relationName;
+	private List<int[]> tuples;
+	private ResultMode mode;
+	private long count;
+	private FactorizedResult factorized;
+	private long limit;
+	private boolean truncated;
+	private volatile QueryCursor cursor;
+	private AtomicBoolean cancelled;
+
+	/**
+	 * Creates a new AlgebraQueryEvaluator.  This will not change the Query or the DatalogProgram.
+	 * @param tQuery a reference to the Query that we are evaluating
+	 * @param dp the DatalogProgram we are evaluating the Query against
+	 */
+	public AlgebraQueryEvaluator(Query tQuery, DatalogProgram dp){
+		this(tQuery, dp, tQuery.getValue());
+	}
+
+	/**
+	 * Creates a new AlgebraQueryEvaluator that reads the answers from another Relation with the
+	 * same columns as the Query, for example one derived by Rules rewritten for this Query.
+	 * @param tQuery a reference to the Query that we are evaluating
+	 * @param dp the DatalogProgram we are evaluating the Query against
+	 * @param sRelation the name of the Relation holding the answers
+	 */
+	public AlgebraQueryEvaluator(Query tQuery, DatalogProgram dp, String sRelation){
+		super(tQuery, dp);
+		this.relationName = sRelation;
+		this.mode = ResultMode.LIST;
+		this.count = -1;
+		this.limit = -1;
+		this.cancelled = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Compiles the Query into an AlgebraPlan and turns every tuple it returns into a solution.
+	 * With ResultMode.COUNT the answers are only counted.  With ResultMode.FACTORIZED and the
+	 * factors given by setFactors() nothing is read, unless the product is so small that listing
+	 * it is shorter.  If it was cancelled, the answers it got to are printed with a + after the
+	 * count, as with a limit.
+	 * @param tQuery the Query to evaluate (a duplicate, it gets modified)
+	 * @return the List of Predicates that matched the Facts
+	 */
+	@Override
+	protected List<Predicate> evaluateQuery(Predicate tQuery){
+		List<Predicate> tSolutions = this.answer(tQuery);
+		if(this.cancelled.get()){
+			this.truncated = true;
+			if(this.mode != ResultMode.COUNT){
+				this.count = tSolutions.size();
+			}
+		}
+		return tSolutions;
+	}
+
+	private List<Predicate> answer(Predicate tQuery){
+		AlgebraPlan tPlan = new AlgebraPlan(tQuery, this.relationName);
+		String[] tAttributes = tPlan.getAttributes();
+		SymbolTable tSymbols = this.getFactCatalog().getSymbolTable();
+		if(this.mode == ResultMode.COUNT){
+			if(this.count < 0){
+				this.count = this.tuples != null ? this.tuples.size() : tPlan.count(this.getAnswers(tQuery), tSymbols);
+			}
+			return this.getSolutions();
+		}
+		if(this.mode == ResultMode.FACTORIZED && this.factorized != null){
+			this.count = this.factorized.getCount();
+			// only worth it if the product is shorter than the list
+			if(this.factorized.getFactorCount() > 1 && this.factorized.getSize() < this.count){
+				return this.getSolutions();
+			}
+			this.tuples = this.factorized.expand(tSymbols);
+			this.factorized = null;
+		}
+		if(this.tuples == null && tAttributes.length == 0){
+			// a yes or no Query only needs the first match
+			boolean bExists = tPlan.exists(this.getAnswers(tQuery), tSymbols);
+			this.tuples = new ArrayList<int[]>();
+			if(bExists && this.limit == 0){
+				this.truncated = true;
+			}else if(bExists){
+				this.tuples.add(new int[0]);
+			}
+		}else if(this.tuples == null && this.limit >= 0){
+			this.tuples = this.first(tPlan.open(this.getAnswers(tQuery), tSymbols));
+		}else if(this.tuples == null){
+			this.tuples = tPlan.execute(this.getAnswers(tQuery), tSymbols);
+		}
+		this.count = this.tuples.size();
+		for(int[] tuple : this.tuples){
+			if(this.cancelled.get()){
+				break;
+			}
+			for(int i = 0; i < tAttributes.length; i++){
+				tQuery.bind(tAttributes[i], tSymbols.getConstant(tuple[i]));
+			}
+			this.addSolution(tQuery.duplicate());
+		}
+		return this.getSolutions();
+	}
+
+	// reads up to the limit from a cursor, and whether there was more
+	private List<int[]> first(QueryCursor tCursor){
+		this.cursor = tCursor;
+		if(this.cancelled.get()){
+			tCursor.cancel();
+		}
+		tCursor.setLimit(this.limit + 1);
+		List<int[]> tFirst = new ArrayList<int[]>();
+		while(tCursor.hasNext()){
+			int[] tuple = tCursor.next();
+			if(tFirst.size() == this.limit){
+				this.truncated = true;
+				break;
+			}
+			tFirst.add(tuple);
+		}
+		return tFirst;
+	}
+
+	/**
+	 * Opens a cursor over the answers to the Query, which finds them one at a time in the order
+	 * they are printed.  Any Rules have to be evaluated first, like for run().
+	 * @return a QueryCursor whose tuples have a column per variable, in the order the variables
+	 * first show up in the Query
+	 */
+	public QueryCursor open(){
+		AlgebraPlan tPlan = new AlgebraPlan(this.getQuery(), this.relationName);
+		return tPlan.open(this.getAnswers(this.getQuery()), this.getFactCatalog().getSymbolTable());
+	}
+
+	/**
+	 * Checks whether the Query has any answer, stopping at the first one.
+	 * @return true if the Query would print Yes
+	 */
+	public boolean exists(){
+		AlgebraPlan tPlan = new AlgebraPlan(this.getQuery(), this.relationName);
+		return tPlan.exists(this.getAnswers(this.getQuery()), this.getFactCatalog().getSymbolTable());
+	}
+
+	/**
+	 * Only prints the first answers.  If there are more, the count is printed with a + after it.
+	 * ResultMode.COUNT still counts all of them.
+	 * Call it before run().
+	 * @param lLimit how many answers to print at most (negative for all of them); with 0 the
+	 * Query prints Yes(0+) if it has any answers
+	 */
+	public void setLimit(long lLimit){
+		this.limit = lLimit;
+	}
+
+	/**
+	 * Stops reading answers.  It can be called from another thread while the Query runs, and
+	 * the answers found up to then are the ones printed, as Yes(n+) since there may be more
+	 * (even with n = 0).  A subclass that works the answers out before reading them is stopped
+	 * too if it checks getCancelled().  Sorting a Relation into the trie a cursor reads can't be
+	 * stopped part way; cancelling only takes effect after it.
+	 */
+	public void cancel(){
+		this.cancelled.set(true);
+		QueryCursor tCursor = this.cursor;
+		if(tCursor != null){
+			tCursor.cancel();
+		}
+	}
+
+	/**
+	 * Whether cancel() was called, in which case the answers may not all be there.
+	 * @return true if the Query was cancelled
+	 */
+	public boolean isCancelled(){
+		return this.cancelled.get();
+	}
+
+	/**
+	 * Gets the flag cancel() sets, so whatever works out the answers can stop when it's set.
+	 * @return the flag, which is shared and shouldn't be set except through cancel()
+	 */
+	protected AtomicBoolean getCancelled(){
+		return this.cancelled;
+	}
+
+	/**
+	 * Sets how the answers are printed.  Call it before run().
+	 * @param tMode the ResultMode (LIST by default)
+	 */
+	public void setResultMode(ResultMode tMode){
+		this.mode = tMode;
+	}
+
+	/**
+	 * Gives the evaluator its answers as a product of the answers to independent groups of its
+	 * variables, which it prints with ResultMode.FACTORIZED.
+	 * @param tFactors the factors of the answers
+	 */
+	public void setFactors(FactorizedResult tFactors){
+		this.factorized = tFactors;
+	}
+
+	/**
+	 * Gives the evaluator the number of answers ahead of time, which is all it needs with
+	 * ResultMode.COUNT.
+	 * @param lCount the number of answers
+	 */
+	public void setCount(long lCount){
+		this.count = lCount;
+	}
+
+	/**
+	 * Gets the number of answers.
+	 * @return the number of answers, or -1 if the Query hasn't been evaluated yet
+	 */
+	public long getCount(){
+		return this.count;
+	}
+
+	/**
+	 * Gives the evaluator its answers ahead of time, for example from a QueryBatch or from a
+	 * variant of its Query, so it doesn't read them itself.
+	 * @param tTuples the answers as AlgebraPlan.execute() gives them for this Query
+	 */
+	public void setTuples(List<int[]> tTuples){
+		this.tuples = tTuples;
+	}
+
+	/**
+	 * Gets the answers, as AlgebraPlan.execute() gives them.
+	 * @return the answers, or null if the Query hasn't been evaluated yet
+	 */
+	public List<int[]> getTuples(){
+		return this.tuples;
+	}
+
+	/**
+	 * Gets the Relation the answers to a Query are read from.
+	 * @param tQuery the Query being evaluated
+	 * @return the Relation named in the constructor, or null if there are no tuples for it
+	 */
+	protected Relation getAnswers(Predicate tQuery){
+		return this.getFactCatalog().getRelation(this.relationName, tQuery.size());
+	}
+
+	/**
+	 * Formats the number of answers, with a + after it if the limit left some out.
+	 * @param lCount the number of answers printed
+	 * @return the formatted count
+	 */
+	@Override
+	protected String formatCount(long lCount){
+		return this.truncated ? String.format("Yes(%d+)", lCount) : super.formatCount(lCount);
+	}
+
+	/**
+	 * Formats the results like QueryEvaluator does, except that ResultMode.COUNT leaves out the
+	 * answers and ResultMode.FACTORIZED prints each independent group of variables on its own,
+	 * with the sizes of the groups after the count.
+	 * @return a formatted String representing the results of the evaluation
+	 */
+	@Override
+	public String toString(){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.getQuery().toString()).append("? ");
+		if(this.truncated && this.count == 0){
+			// a limit of 0 still says whether there were answers
+			return sb.append(this.formatCount(0)).append(NEWLINE).toString();
+		}
+		if(this.mode == ResultMode.LIST || (this.mode == ResultMode.FACTORIZED && this.factorized == null)){
+			return super.toString();
+		}
+		if(this.count <= 0){
+			return sb.append("No").append(NEWLINE).toString();
+		}
+		sb.append(this.formatCount(this.count));
+		if(this.factorized != null){
+			for(int f = 0; f < this.factorized.getFactorCount(); f++){
+				sb.append(f == 0 ? " = " : " x ").append(this.factorized.getFactorSize(f));
+			}
+			sb.append(NEWLINE).append(this.factorized.toString(this.getFactCatalog().getSymbolTable()));
+		}else{
+			sb.append(NEWLINE);
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * FactorizedResult.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab3.
+ *
+ * FactorizedResult is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * FactorizedResult is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab3.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab3;
+
+import cs236.lab2.SymbolTable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The answers to a Query written as a product of smaller lists, one per group of variables that
+ * don't depend on each other.
+ *
+ * The groups come from the Rule for the Query's predicate, not from its answers: if the body of
+ * pair(X,Y) :- a(X),b(Y) splits into Atoms that share no variables, the answers to pair(X,Y) are
+ * every answer to a(X) with every answer to b(Y), and only those two lists are ever worked out
+ * (see cs236.lab4.QueryFactorizer).  A factor without variables (a group whose variables are all
+ * constants in the Query) only says whether the product is empty.
+ * @author T. Jameson Little
+ */
+public class FactorizedResult {
+	private String[] attributes;
+	private List<String[]> groups;
+	private List<List<int[]>> factors;
+	private boolean empty;
+
+	/**
+	 * Creates a product with no factors yet.
+	 * @param tAttributes the variables of the Query, in the order they first show up in it
+	 */
+	public FactorizedResult(String[] tAttributes){
+		this.attributes = tAttributes;
+		this.groups = new ArrayList<String[]>();
+		this.factors = new ArrayList<List<int[]>>();
+	}
+
+	/**
+	 * Adds the answers to one group of variables.
+	 * @param tGroup the variables of the group, in the order they first show up in the Query
+	 * @param tAnswers the distinct answers, as AlgebraPlan.execute() gives them for the group
+	 */
+	public void addFactor(String[] tGroup, List<int[]> tAnswers){
+		if(tAnswers.isEmpty()){
+			this.empty = true;
+		}
+		if(tGroup.length > 0){
+			this.groups.add(tGroup);
+			this.factors.add(tAnswers);
+		}
+	}
+
+	/**
+	 * Gets the number of answers, which is the product of the sizes of the factors.
+	 * @return the number of answers
+	 */
+	public long getCount(){
+		if(this.empty){
+			return 0;
+		}
+		long lCount = 1;
+		for(List<int[]> tFactor : this.factors){
+			lCount *= tFactor.size();
+		}
+		return lCount;
+	}
+
+	/**
+	 * Gets the number of groups of variables.
+	 * @return the number of factors that have variables
+	 */
+	public int getFactorCount(){
+		return this.factors.size();
+	}
+
+	/**
+	 * Gets how many lines the factors take, which is the sum of their sizes.
+	 * @return the number of rows in all the factors
+	 */
+	public long getSize(){
+		long lSize = 0;
+		for(List<int[]> tFactor : this.factors){
+			lSize += tFactor.size();
+		}
+		return lSize;
+	}
+
+	/**
+	 * Gets the number of distinct values of one group of variables.
+	 * @param iFactor the group, in the order of the first variable in each
+	 * @return the size of the factor
+	 */
+	public int getFactorSize(int iFactor){
+		return this.factors.get(iFactor).size();
+	}
+
+	/**
+	 * Multiplies the factors out, which is only sensible when the product is small.
+	 * @param tSymbols the SymbolTable the ids in the answers come from
+	 * @return the answers as AlgebraPlan.execute() would give them, a column per variable of the
+	 * Query
+	 */
+	public List<int[]> expand(SymbolTable tSymbols){
+		List<int[]> tResult = new ArrayList<int[]>();
+		if(this.getCount() == 0){
+			return tResult;
+		}
+		// where each variable of each group goes in an answer
+		int[][] tColumns = new int[this.groups.size()][];
+		for(int f = 0; f < tColumns.length; f++){
+			String[] tGroup = this.groups.get(f);
+			tColumns[f] = new int[tGroup.length];
+			for(int i = 0; i < tGroup.length; i++){
+				for(int j = 0; j < this.attributes.length; j++){
+					if(this.attributes[j].equals(tGroup[i])){
+						tColumns[f][i] = j;
+					}
+				}
+			}
+		}
+		int[] tPosition = new int[this.factors.size()];
+		while(true){
+			int[] tAnswer = new int[this.attributes.length];
+			for(int f = 0; f < tPosition.length; f++){
+				int[] tPart = this.factors.get(f).get(tPosition[f]);
+				for(int i = 0; i < tPart.length; i++){
+					tAnswer[tColumns[f][i]] = tPart[i];
+				}
+			}
+			tResult.add(tAnswer);
+			int f = tPosition.length - 1;
+			while(f >= 0 && ++tPosition[f] == this.factors.get(f).size()){
+				tPosition[f--] = 0;
+			}
+			if(f < 0){
+				break;
+			}
+		}
+		return AlgebraPlan.sortAnswers(tResult, tSymbols);
+	}
+
+	/**
+	 * Formats the factors, each one's answers one per line like Lab3 prints them, with a line
+	 * holding just x between the factors.
+	 * @param tSymbols the SymbolTable the ids in the answers come from
+	 * @return the formatted factors
+	 */
+	public String toString(SymbolTable tSymbols){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		StringBuilder sb = new StringBuilder();
+		for(int f = 0; f < this.factors.size(); f++){
+			if(f > 0){
+				sb.append(" x").append(NEWLINE);
+			}
+			String[] tGroup = this.groups.get(f);
+			for(int[] tuple : this.factors.get(f)){
+				sb.append("  ");
+				for(int i = 0; i < tGroup.length; i++){
+					sb.append(i > 0 ? ", " : "").append(tGroup[i]).append('=');
+					sb.append(tSymbols.getConstant(tuple[i]).toString());
+				}
+				sb.append(NEWLINE);
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -24,6 +24,7 @@ package cs236.lab3;
 import cs236.lab1.Tokenizer;
 import cs236.lab2.DatalogProgram;
 import cs236.lab2.Query;
+import cs236.lab2.RelationLayout;
 import cs236.lab2.TokenizerServer;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
@@ -37,23 +38,81 @@ import java.util.logging.Logger;
  */
 public class Lab3 {
 	private final static long WAIT_TIME = 10; // keep this pretty small, we have fast processors
+	private final static String USAGE = "Usage: Lab3 [--engine=algebra|enumerate] [--layout=hash|trie]"
+			+ " [--count] [--limit=N] [--index-report] [--stats] file...";
 
 	/**
 	 * This parses through files containing Datalog and evaluates the Queries against the Facts.
 	 * This prints out the results to the console.
-	 * @param args files containing Datalog
+	 *
+	 * Options start with two dashes and apply to every file after them:
+	 * --index-report prints what the IndexAdvisor saw and built after the results.
+	 * --stats prints the row counts, distinct values and frequent values of every Relation
+	 * and the counters of its Bloom filter.
+	 * --layout=trie looks up bound columns in sorted tries instead of hash indexes.
+	 * --engine=enumerate tries every candidate value instead of running relational algebra.
+	 * --count prints only how many answers each Query has, without building them.
+	 * --limit=N prints at most N answers per Query, found lazily in order; Yes(N+) means there
+	 * were more, so --limit=0 prints Yes(0+) or No.
+	 * Neither of the last two changes what --engine=enumerate prints.
+	 * The options are checked before any file is read; if one can't be used, nothing is
+	 * evaluated and the usage is printed instead.
+	 * @param args options and files containing Datalog
 	 */
 	public static void main(String[] args) {
 		if(args != null && args.length > 0){
+			String sBadOption = checkOptions(args);
+			if(sBadOption != null){
+				System.out.println(sBadOption);
+				System.out.println(USAGE);
+				return;
+			}
+			boolean bIndexReport = false;
+			boolean bStats = false;
+			RelationLayout tLayout = RelationLayout.HASH;
+			QueryEngine tEngine = QueryEngine.ALGEBRA;
+			ResultMode tMode = ResultMode.LIST;
+			long lLimit = -1;
 			for(String sFile : args){
+				if(sFile.equals("--index-report")){
+					bIndexReport = true;
+					continue;
+				}else if(sFile.equals("--stats")){
+					bStats = true;
+					continue;
+				}else if(sFile.equals("--count")){
+					tMode = ResultMode.COUNT;
+					continue;
+				}else if(sFile.startsWith("--limit=")){
+					lLimit = parseLimit(sFile);
+					continue;
+				}else if(sFile.startsWith("--layout=")){
+					tLayout = parseLayout(sFile);
+					continue;
+				}else if(sFile.startsWith("--engine=")){
+					tEngine = parseEngine(sFile);
+					continue;
+				}
 				try{
 					Tokenizer tTokenizer = new Tokenizer();
 					tTokenizer.setFile(sFile);
 
 					TokenizerServer tServer = new TokenizerServer(tTokenizer);
 					DatalogProgram dp = tServer.run();
+					if(dp.getOffendingToken() != null){
+						// everything after the error is missing, so don't answer what's left
+						System.out.println(dp.toString());
+						continue;
+					}
+					dp.getFactCatalog().setLayout(tLayout);
 
-					System.out.println(evaluateQueries(dp));
+					System.out.println(evaluateQueries(dp, tEngine, tMode, lLimit));
+					if(bIndexReport){
+						System.out.println(dp.getFactCatalog().getIndexAdvisor().getReport());
+					}
+					if(bStats){
+						System.out.println(dp.getFactCatalog().getStatisticsReport());
+					}
 				}catch(FileNotFoundException ex){
 					System.out.println("File does not exist. File:");
 					System.out.println(sFile);
@@ -62,16 +121,115 @@ public class Lab3 {
 		}
 	}
 
+	/**
+	 * Checks the options with values, so a mistake is found before any file is read.
+	 * @param args options and files containing Datalog
+	 * @return what is wrong with the first option that can't be used, or null if they all can
+	 */
+	private static String checkOptions(String[] args){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		for(String sArg : args){
+			try{
+				if(sArg.startsWith("--limit=")){
+					parseLimit(sArg);
+				}else if(sArg.startsWith("--layout=")){
+					parseLayout(sArg);
+				}else if(sArg.startsWith("--engine=")){
+					parseEngine(sArg);
+				}
+			}catch(IllegalArgumentException ex){
+				return "Option is not valid. Option:" + NEWLINE + sArg;
+			}
+		}
+		return null;
+	}
+
+	// throws NumberFormatException (an IllegalArgumentException) if it isn't a number
+	private static long parseLimit(String sArg){
+		long lLimit = Long.parseLong(sArg.substring("--limit=".length()));
+		if(lLimit < 0){
+			throw new IllegalArgumentException("--limit can't be negative: " + sArg);
+		}
+		return lLimit;
+	}
+
+	private static RelationLayout parseLayout(String sArg){
+		return RelationLayout.valueOf(sArg.substring("--layout=".length()).toUpperCase());
+	}
+
+	private static QueryEngine parseEngine(String sArg){
+		return QueryEngine.valueOf(sArg.substring("--engine=".length()).toUpperCase());
+	}
 
 	/**
-	 * Evaluates the Queries.  Must be called after it's done parsing.
+	 * Evaluates the Queries with relational algebra.  Must be called after it's done parsing.
 	 * @param dp the DatalogProgram to evaluate
 	 * @return a formatted String of the results of evaluation
 	 */
 	public static String evaluateQueries(DatalogProgram dp){
+		return evaluateQueries(dp, QueryEngine.ALGEBRA);
+	}
+
+	/**
+	 * Evaluates the Queries.  Must be called after it's done parsing.
+	 * With ALGEBRA the Queries are answered together by a QueryBatch, then printed in order.
+	 * @param dp the DatalogProgram to evaluate
+	 * @param tEngine how to evaluate each Query (the output is the same either way)
+	 * @return a formatted String of the results of evaluation
+	 */
+	public static String evaluateQueries(DatalogProgram dp, QueryEngine tEngine){
+		return evaluateQueries(dp, tEngine, ResultMode.LIST);
+	}
+
+	/**
+	 * Evaluates the Queries, printing the answers of the ALGEBRA engine in a ResultMode.
+	 * Must be called after it's done parsing.
+	 * @param dp the DatalogProgram to evaluate
+	 * @param tEngine how to evaluate each Query
+	 * @param tMode how to print the answers (ENUMERATE always lists them)
+	 * @return a formatted String of the results of evaluation
+	 */
+	public static String evaluateQueries(DatalogProgram dp, QueryEngine tEngine, ResultMode tMode){
+		return evaluateQueries(dp, tEngine, tMode, -1);
+	}
+
+	/**
+	 * Evaluates the Queries, printing at most some number of answers of each.  The ALGEBRA
+	 * engine finds only those with a QueryCursor instead of all of them.
+	 * Must be called after it's done parsing.
+	 * @param dp the DatalogProgram to evaluate
+	 * @param tEngine how to evaluate each Query
+	 * @param tMode how to print the answers (ENUMERATE always lists them)
+	 * @param lLimit the most answers to print per Query, or -1 for all of them
+	 * @return a formatted String of the results of evaluation
+	 */
+	public static String evaluateQueries(DatalogProgram dp, QueryEngine tEngine, ResultMode tMode, long lLimit){
+		QueryBatch tBatch = new QueryBatch(dp.getQueryList());
+		List<List<int[]>> tAnswers = null;
+		long[] tCounts = null;
+		if(tEngine == QueryEngine.ALGEBRA && tMode == ResultMode.COUNT){
+			tCounts = tBatch.count(dp.getFactCatalog());
+		}else if(tEngine == QueryEngine.ALGEBRA && lLimit < 0){
+			tAnswers = tBatch.execute(dp.getFactCatalog());
+		}
+
 		List<QueryEvaluator> qeList = new ArrayList<QueryEvaluator>();
 		for(Query q : dp.getQueryList()){
-			QueryEvaluator qe = new QueryEvaluator(q, dp);
+			QueryEvaluator qe;
+			if(tEngine == QueryEngine.ALGEBRA){
+				AlgebraQueryEvaluator tAlgebra = new AlgebraQueryEvaluator(q, dp);
+				tAlgebra.setResultMode(tMode);
+				tAlgebra.setLimit(lLimit);
+				if(tCounts != null){
+					tAlgebra.setCount(tCounts[qeList.size()]);
+				}else if(tAnswers != null){
+					tAlgebra.setTuples(tAnswers.get(qeList.size()));
+				}
+				qe = tAlgebra;
+			}else{
+				qe = new QueryEvaluator(q, dp);
+			}
 			qeList.add(qe);
 			qe.run();
 
@@ -0,0 +1,209 @@
+/*
+ * QueryBatch.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab3.
+ *
+ * QueryBatch is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * QueryBatch is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab3.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab3;
+
+import cs236.lab2.FactCatalog;
+import cs236.lab2.IntList;
+import cs236.lab2.Parameter;
+import cs236.lab2.Predicate;
+import cs236.lab2.Relation;
+import cs236.lab2.SymbolTable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plans the Queries of a DatalogProgram together instead of one at a time.
+ *
+ * Queries that are the same up to the names of their variables (ancestor(X,'tim') and
+ * ancestor(Y,'tim')) are variants: only the first one is evaluated and the rest reuse its
+ * answers, which come out in the same order since the variables are in the same places.
+ *
+ * The distinct Queries over the same Relation that bind the same columns share one scan: Queries
+ * without constants all read a single pass over the rows, and the others probe the Relation in
+ * one batch (see Relation.scanBatch()) with the matches of each probe sent to its own Query.
+ * @author T. Jameson Little
+ */
+public class QueryBatch {
+	private List<? extends Predicate> queries;
+	private int[] variantOf;
+
+	/**
+	 * Finds the variants among the Queries.
+	 * @param tQueries the Queries in the order they are answered
+	 */
+	public QueryBatch(List<? extends Predicate> tQueries){
+		this.queries = tQueries;
+		this.variantOf = new int[tQueries.size()];
+		Map<String, Integer> tFirst = new HashMap<String, Integer>();
+		for(int i = 0; i < this.variantOf.length; i++){
+			String sKey = canonical(tQueries.get(i));
+			Integer iFirst = tFirst.get(sKey);
+			if(iFirst == null){
+				tFirst.put(sKey, i);
+				this.variantOf[i] = i;
+			}else{
+				this.variantOf[i] = iFirst;
+			}
+		}
+	}
+
+	/**
+	 * Gets the first Query that is a variant of a Query.
+	 * @param iQuery the position of the Query
+	 * @return the position of the first variant, which is iQuery if there is no earlier one
+	 */
+	public int getVariantOf(int iQuery){
+		return this.variantOf[iQuery];
+	}
+
+	/**
+	 * Answers every Query from the Relation of its predicate in a FactCatalog.
+	 * @param tCatalog the FactCatalog holding the Facts (and anything derived from the Rules)
+	 * @return the answers to each Query in order, as AlgebraPlan.execute() would give them
+	 * (variants share the same List)
+	 */
+	public List<List<int[]>> execute(FactCatalog tCatalog){
+		SymbolTable tSymbols = tCatalog.getSymbolTable();
+		AlgebraPlan[] tPlans = new AlgebraPlan[this.queries.size()];
+		List<List<int[]>> tAnswers = new ArrayList<List<int[]>>(tPlans.length);
+		Map<String, List<Integer>> tGroups = new LinkedHashMap<String, List<Integer>>();
+		for(int i = 0; i < tPlans.length; i++){
+			tAnswers.add(null);
+			if(this.variantOf[i] != i){
+				continue;
+			}
+			tPlans[i] = new AlgebraPlan(this.queries.get(i));
+			String sGroup = FactCatalog.relationKey(tPlans[i].getName(), tPlans[i].getArity()) + "#" + tPlans[i].getBoundMask();
+			List<Integer> tGroup = tGroups.get(sGroup);
+			if(tGroup == null){
+				tGroup = new ArrayList<Integer>();
+				tGroups.put(sGroup, tGroup);
+			}
+			tGroup.add(i);
+			tAnswers.set(i, new ArrayList<int[]>());
+		}
+
+		for(List<Integer> tGroup : tGroups.values()){
+			AlgebraPlan tFirst = tPlans[tGroup.get(0)];
+			Relation tRelation = tCatalog.getRelation(tFirst.getName(), tFirst.getArity());
+			if(tRelation == null){
+				continue;
+			}
+			if(tFirst.getBoundMask() == 0){
+				this.scanOnce(tRelation, tGroup, tPlans, tAnswers);
+			}else{
+				this.probe(tRelation, tGroup, tPlans, tAnswers, tSymbols);
+			}
+		}
+
+		for(int i = 0; i < tPlans.length; i++){
+			if(tPlans[i] != null){
+				tAnswers.set(i, tPlans[i].finish(tAnswers.get(i), tSymbols));
+			}
+		}
+		for(int i = 0; i < tPlans.length; i++){
+			tAnswers.set(i, tAnswers.get(this.variantOf[i]));
+		}
+		return tAnswers;
+	}
+
+	/**
+	 * Counts the answers to every Query from the Relation of its predicate in a FactCatalog,
+	 * without building them (see AlgebraPlan.count()).
+	 * @param tCatalog the FactCatalog holding the Facts (and anything derived from the Rules)
+	 * @return the number of answers to each Query in order
+	 */
+	public long[] count(FactCatalog tCatalog){
+		long[] tCounts = new long[this.queries.size()];
+		for(int i = 0; i < tCounts.length; i++){
+			if(this.variantOf[i] != i){
+				tCounts[i] = tCounts[this.variantOf[i]];
+				continue;
+			}
+			AlgebraPlan tPlan = new AlgebraPlan(this.queries.get(i));
+			tCounts[i] = tPlan.count(tCatalog.getRelation(tPlan.getName(), tPlan.getArity()), tCatalog.getSymbolTable());
+		}
+		return tCounts;
+	}
+
+	// every row goes to every Query in the group
+	private void scanOnce(Relation tRelation, List<Integer> tGroup, AlgebraPlan[] tPlans, List<List<int[]>> tAnswers){
+		IntList tRows = new IntList();
+		tRelation.scan(0, new int[tRelation.getArity()], tRows);
+		for(int i = 0; i < tRows.size(); i++){
+			for(int iQuery : tGroup){
+				tPlans[iQuery].collect(tRelation, tRows.get(i), tAnswers.get(iQuery));
+			}
+		}
+	}
+
+	// one probe per Query, each one's matches go to that Query
+	private void probe(Relation tRelation, List<Integer> tGroup, AlgebraPlan[] tPlans, List<List<int[]>> tAnswers, SymbolTable tSymbols){
+		int iArity = tRelation.getArity();
+		int[] tProbes = new int[tGroup.size() * iArity];
+		List<Integer> tProbed = new ArrayList<Integer>();
+		for(int iQuery : tGroup){
+			int[] tuple = tPlans[iQuery].encode(tSymbols);
+			if(tuple != null){
+				System.arraycopy(tuple, 0, tProbes, tProbed.size() * iArity, iArity);
+				tProbed.add(iQuery);
+			}
+		}
+		if(tProbed.isEmpty()){
+			return;
+		}
+
+		IntList tRows = new IntList();
+		int[] tEnds = new int[tProbed.size()];
+		tRelation.scanBatch(tPlans[tGroup.get(0)].getBoundMask(), tProbes, tProbed.size(), tRows, tEnds);
+		int iStart = 0;
+		for(int k = 0; k < tEnds.length; k++){
+			int iQuery = tProbed.get(k);
+			for(int j = iStart; j < tEnds[k]; j++){
+				tPlans[iQuery].collect(tRelation, tRows.get(j), tAnswers.get(iQuery));
+			}
+			iStart = tEnds[k];
+		}
+	}
+
+	// the Query with its variables renamed in the order they first show up
+	private static String canonical(Predicate tQuery){
+		StringBuilder sb = new StringBuilder();
+		sb.append(FactCatalog.relationKey(tQuery.getValue(), tQuery.size())).append('(');
+		List<String> tNames = new ArrayList<String>();
+		for(Parameter p : tQuery){
+			if(p.isConstant()){
+				sb.append(p.toString());
+			}else{
+				if(!tNames.contains(p.getName())){
+					tNames.add(p.getName());
+				}
+				sb.append('$').append(tNames.indexOf(p.getName()));
+			}
+			sb.append(',');
+		}
+		return sb.append(')').toString();
+	}
+}
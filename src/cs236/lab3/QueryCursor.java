@@ -0,0 +1,176 @@
+/*
+ * QueryCursor.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab3.
+ *
+ * QueryCursor is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * QueryCursor is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab3.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab3;
+
+import cs236.lab2.TrieRelation;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Walks the answers to a Query one at a time, in the order of the domain, without working out
+ * the ones after it.  Get one from AlgebraPlan.open().
+ *
+ * The Relation is read through a TrieRelation sorted on the constants of the Query, then the
+ * first column of each variable, then the rest.  The rows that match the constants are one
+ * range of the trie, already sorted the way the answers are printed, so each answer is the next
+ * row in the range that passes the select on repeated variables.  When the ids aren't in domain
+ * order (constants were added after the SymbolTable was built) the answers are worked out and
+ * sorted up front instead.
+ *
+ * A cursor can be limited to its first answers, and cancelled from another thread; after
+ * either one hasNext() is false.
+ * @author T. Jameson Little
+ */
+public class QueryCursor implements Iterator<int[]> {
+	private TrieRelation trie;
+	private int row;
+	private int end;
+	// the trie level of each attribute, and pairs of levels that must be equal
+	private int[] levels;
+	private int[][] equals;
+
+	private List<int[]> sorted;
+
+	private long limit;
+	private long returned;
+	private AtomicBoolean cancelled;
+	private int[] next;
+	private boolean fetched;
+
+	/**
+	 * Creates a cursor over a range of a trie.
+	 * @param tTrie the trie, sorted with the constants first and the attributes right after
+	 * @param iStart the first row that matches the constants
+	 * @param iEnd one past the last row that matches the constants
+	 * @param tLevels the trie level of each attribute
+	 * @param tEquals pairs of trie levels that have to hold the same value
+	 */
+	QueryCursor(TrieRelation tTrie, int iStart, int iEnd, int[] tLevels, int[][] tEquals){
+		this.trie = tTrie;
+		this.row = iStart;
+		this.end = iEnd;
+		this.levels = tLevels;
+		this.equals = tEquals;
+		this.limit = -1;
+		this.cancelled = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Creates a cursor over answers that were already worked out.
+	 * @param tSorted the answers, as AlgebraPlan.execute() gives them
+	 */
+	QueryCursor(List<int[]> tSorted){
+		this.sorted = tSorted;
+		this.row = 0;
+		this.end = tSorted.size();
+		this.limit = -1;
+		this.cancelled = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Stops the cursor after some number of answers.
+	 * @param lLimit how many answers next() returns at most, counting the ones already returned
+	 * (negative for no limit)
+	 */
+	public void setLimit(long lLimit){
+		this.limit = lLimit;
+	}
+
+	/**
+	 * Stops the cursor.  It can be called from another thread while the answers are read; the
+	 * reader sees hasNext() return false the next time it asks.
+	 */
+	public void cancel(){
+		this.cancelled.set(true);
+	}
+
+	/**
+	 * Whether cancel() was called.
+	 * @return true if the cursor was cancelled
+	 */
+	public boolean isCancelled(){
+		return this.cancelled.get();
+	}
+
+	/**
+	 * Whether there is another answer, finding it if it hasn't been found yet.
+	 * @return true if next() has an answer to return
+	 */
+	public boolean hasNext(){
+		if(!this.fetched){
+			this.next = this.advance();
+			this.fetched = true;
+		}
+		return this.next != null;
+	}
+
+	/**
+	 * Gets the next answer.
+	 * @return the ids of the answer, a column per attribute
+	 */
+	public int[] next(){
+		if(!this.hasNext()){
+			throw new NoSuchElementException();
+		}
+		this.fetched = false;
+		this.returned++;
+		return this.next;
+	}
+
+	/**
+	 * Answers can't be removed.
+	 */
+	public void remove(){
+		throw new UnsupportedOperationException();
+	}
+
+	private int[] advance(){
+		if(this.cancelled.get() || (this.limit >= 0 && this.returned >= this.limit)){
+			return null;
+		}
+		if(this.sorted != null){
+			return this.row < this.end ? this.sorted.get(this.row++) : null;
+		}
+		while(this.row < this.end){
+			int iRow = this.row++;
+			if(this.passes(iRow)){
+				int[] tAnswer = new int[this.levels.length];
+				for(int i = 0; i < tAnswer.length; i++){
+					tAnswer[i] = this.trie.get(this.levels[i], iRow);
+				}
+				return tAnswer;
+			}
+		}
+		return null;
+	}
+
+	private boolean passes(int iRow){
+		for(int[] tPair : this.equals){
+			if(this.trie.get(tPair[0], iRow) != this.trie.get(tPair[1], iRow)){
+				return false;
+			}
+		}
+		return true;
+	}
+}
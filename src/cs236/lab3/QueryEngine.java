@@ -0,0 +1,37 @@
+/*
+ * QueryEngine.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab3.
+ *
+ * QueryEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * QueryEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab3.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab3;
+
+/**
+ * How Lab3 answers its Queries.  Both give exactly the same output.
+ * @author T. Jameson Little
+ */
+public enum QueryEngine {
+	/**
+	 * Tries the candidate values of each variable and checks the resulting tuple (QueryEvaluator)
+	 */
+	ENUMERATE,
+	/**
+	 * Compiles each Query into select, project, rename and dedup (AlgebraQueryEvaluator)
+	 */
+	ALGEBRA
+}
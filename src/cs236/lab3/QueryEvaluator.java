@@ -24,12 +24,21 @@ package cs236.lab3;
 import cs236.lab1.TokenType;
 import cs236.lab2.DatalogProgram;
 import cs236.lab2.Fact;
+import cs236.lab2.FactCatalog;
+import cs236.lab2.IntList;
 import cs236.lab2.Parameter;
 import cs236.lab2.Predicate;
 import cs236.lab2.Query;
+import cs236.lab2.Relation;
+import cs236.lab2.RelationLayout;
+import cs236.lab2.SymbolTable;
+import cs236.lab2.TrieRelation;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.List;
 import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -93,7 +102,7 @@ public class QueryEvaluator implements Runnable{
 			}
 		}else{
 			Parameter tParam = tQuery.get(iPos);
-			if(tParam.getTokenType() == TokenType.STRING){
+			if(tParam.isConstant()){
 				// nothing changed in our builder Query, so go to the next one
 				evaluateQuery(iPos + 1, tQuery);
 				return;
@@ -103,19 +112,160 @@ public class QueryEvaluator implements Runnable{
 			if(iTemplatePos >= 0 && iTemplatePos < iPos){
 				// check to see if we should mimic an earlier Identifier (eg we're the same)
 				Parameter tQueryParam = tQuery.get(iTemplatePos);
-				tParam.setValue(tQueryParam.getValue());
+				tParam.copyValue(tQueryParam);
 				evaluateQuery(iPos + 1, tQuery);
 				tParam.setValue(null);
 			}else{
-				for(String s : this.getDomain()){
+				// everything to our left has a value, and so do the constants
+				Parameter[] values = new Parameter[tQuery.size()];
+				for(int i = 0; i < values.length; i++){
+					if(i < iPos || tQuery.get(i).isConstant()){
+						values[i] = tQuery.get(i);
+					}
+				}
+				BitSet tIds = this.getCandidateIds(tQuery.getValue(), values, iPos);
+				// the variable has to be in the active values of every other column it's in
+				for(int i = iPos + 1; i < values.length && !tIds.isEmpty(); i++){
+					Parameter tOther = tQuery.get(i);
+					if(tOther.getTokenType() == TokenType.IDENT && tOther.getName().equals(tParam.getName())){
+						tIds.and(this.getActiveValues(tQuery.getValue(), values.length, i));
+					}
+				}
+				for(Parameter tValue : this.toValues(tIds)){
 					Parameter tQueryParam = tQuery.get(iPos);
-					tQueryParam.setValue(s);
+					tQueryParam.copyValue(tValue);
 					evaluateQuery(iPos + 1, tQuery);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Gets the ids a column of a predicate can take, given the values of its bound columns.
+	 * If the predicate is extensional, only the values in the Facts that match the bound columns
+	 * are returned (using an index on those columns).  Otherwise it's the active values of the
+	 * column.
+	 * @param sName the name of the predicate
+	 * @param values a Parameter holding the value of each column, or null for columns that aren't
+	 * bound
+	 * @param iColumn the column we want values for
+	 * @return a new BitSet of candidate ids
+	 */
+	protected BitSet getCandidateIds(String sName, Parameter[] values, int iColumn){
+		if(!this.isExtensional(sName, values.length)){
+			return (BitSet)this.getActiveValues(sName, values.length, iColumn).clone();
+		}
+		BitSet tIds = new BitSet();
+		Relation tRelation = this.getFactCatalog().getRelation(sName, values.length);
+		if(tRelation == null){
+			return tIds;
+		}
+
+		SymbolTable tSymbols = this.getFactCatalog().getSymbolTable();
+		int[] tuple = new int[values.length];
+		int iBoundMask = 0;
+		for(int i = 0; i < values.length; i++){
+			if(values[i] != null){
+				tuple[i] = tSymbols.getId(values[i]);
+				if(tuple[i] == SymbolTable.UNKNOWN){
+					return tIds;
+				}
+				iBoundMask |= 1 << i;
+			}
+		}
+		if(iBoundMask == 0){
+			return (BitSet)tRelation.getActiveValues(iColumn).clone();
+		}
+
+		if(this.getFactCatalog().getLayout() == RelationLayout.TRIE){
+			for(int iId : trieCandidates(tRelation, iBoundMask, tuple, iColumn)){
+				tIds.set(iId);
+			}
+		}else{
+			IntList tRows = new IntList();
+			tRelation.scan(iBoundMask, tuple, tRows);
+			for(int i = 0; i < tRows.size(); i++){
+				tIds.set(tRelation.get(tRows.get(i), iColumn));
+			}
+		}
+		return tIds;
+	}
+
+	/**
+	 * Gets every value that shows up in a column of a predicate.
+	 * A variable can only take values that are active in every column it appears in.
+	 * @param sName the name of the predicate
+	 * @param iArity the number of Parameters
+	 * @param iColumn the column
+	 * @return the ids in that column (don't modify it)
+	 */
+	protected BitSet getActiveValues(String sName, int iArity, int iColumn){
+		Relation tRelation = this.getFactCatalog().getRelation(sName, iArity);
+		return tRelation == null ? new BitSet() : tRelation.getActiveValues(iColumn);
+	}
+
+	/**
+	 * Turns candidate ids back into constants.
+	 * @param tIds the ids
+	 * @return the constants in the same order as the domain
+	 */
+	protected Collection<Parameter> toValues(BitSet tIds){
+		SymbolTable tSymbols = this.getFactCatalog().getSymbolTable();
+		// the ids are in domain order as long as nobody added new constants
+		Collection<Parameter> tValues = tSymbols.isSorted() ?
+				new ArrayList<Parameter>(tIds.cardinality()) : new TreeSet<Parameter>();
+		for(int i = tIds.nextSetBit(0); i >= 0; i = tIds.nextSetBit(i + 1)){
+			tValues.add(tSymbols.getConstant(i));
+		}
+		return tValues;
+	}
+
+	/**
+	 * Gets the distinct values of a column under some bound columns from a trie.
+	 * The trie is sorted with the bound columns first and the column we want right after them,
+	 * so the values come out sorted and each one is found with a single gallop.
+	 */
+	private static int[] trieCandidates(Relation tRelation, int iBoundMask, int[] tuple, int iColumn){
+		int[] tBound = Relation.columnsOf(iBoundMask);
+		int[] tOrder = new int[tuple.length];
+		int[] prefix = new int[tBound.length];
+		int iLevel = 0;
+		for(int i : tBound){
+			prefix[iLevel] = tuple[i];
+			tOrder[iLevel++] = i;
+		}
+		tOrder[iLevel++] = iColumn;
+		for(int i = 0; i < tuple.length; i++){
+			if((iBoundMask & (1 << i)) == 0 && i != iColumn){
+				tOrder[iLevel++] = i;
+			}
+		}
+
+		TrieRelation tTrie = tRelation.getTrie(tOrder);
+		int[] tRange = tTrie.prefixRange(prefix, prefix.length);
+		IntList tValues = new IntList();
+		tTrie.distinctValues(tBound.length, tRange[0], tRange[1], tValues);
+		return tValues.toArray();
+	}
+
+	/**
+	 * Whether every tuple of a predicate is in the Facts (no Rule can derive more of them).
+	 * @param sName the name of the predicate
+	 * @param iArity the number of Parameters
+	 * @return true (we don't evaluate rules in this class)
+	 */
+	protected boolean isExtensional(String sName, int iArity){
+		return true;
+	}
+
+	/**
+	 * Gets the solutions found so far.
+	 * @return the List of Predicates that unified with the Facts
+	 */
+	protected List<Predicate> getSolutions(){
+		return this.solutions;
+	}
+
 	/**
 	 * Checks the rules to see if we can validate this query using the rules.
 	 * @param tQuery the Query to evaluate
@@ -139,23 +289,7 @@ public class QueryEvaluator implements Runnable{
 	 * @return true if there is a match, false otherwise
 	 */
 	public boolean factExists(Predicate tQuery){
-		for(Fact tFact : this.getFactList()){
-			if(tFact.getValue().equals(tQuery.getValue()) && tFact.size() == tQuery.size()){
-				boolean tMatch = true;
-				for(int i = 0; i < tFact.size(); i++){
-					Parameter factParam = tFact.get(i);
-					Parameter tParam = tQuery.get(i);
-					if(!factParam.getValue().equals(tParam.getValue())){
-						tMatch = false;
-						break;
-					}
-				}
-				if(tMatch){
-					return true;
-				}
-			}
-		}
-		return false;
+		return this.getFactCatalog().contains(tQuery);
 	}
 
 	/**
@@ -171,7 +305,7 @@ public class QueryEvaluator implements Runnable{
 	 * Runs the evaluation of the Query.  When this finishes, isFinished will evaluate to true.
 	 */
 	public void run() {
-		this.evaluateQuery(0, this.query.duplicate());
+		this.evaluateQuery(this.query.duplicate());
 		this.bFinished.set(true);
 	}
 
@@ -194,13 +328,21 @@ public class QueryEvaluator implements Runnable{
 				}
 				if(!tProcessed.contains(tParam.getName())){
 					tProcessed.add(tParam.getName());
-					sb.append(String.format("%s='%s'", tParam.getName(), tParam.getValue()));
+					sb.append(tParam.getName()).append('=').append(tParam.toString());
 				}
 			}
 		}
 		return sb.toString();
 	}
 
+	/**
+	 * Gets the Query that was submitted using the constructor.
+	 * @return the Query (don't modify it)
+	 */
+	protected Query getQuery(){
+		return this.query;
+	}
+
 	/**
 	 * Gets the DatalogProgram that was submitted using the constructor.
 	 * @return the DatalogProgram or null if none was set
@@ -218,6 +360,15 @@ public class QueryEvaluator implements Runnable{
 		return this.datalog.getFactList();
 	}
 
+	/**
+	 * Gets the FactCatalog from the DatalogProgram submitted using the constructor.
+	 * This is a convenience method for getDatalogProgram().getFactCatalog().
+	 * @return the FactCatalog indexing the Facts
+	 */
+	protected FactCatalog getFactCatalog(){
+		return this.datalog.getFactCatalog();
+	}
+
 	/**
 	 * Gets the domain from the DatalogProgram submitted using the constructor.
 	 * This is a convenience method for getDatalogProgram().getDomain()
@@ -227,6 +378,15 @@ public class QueryEvaluator implements Runnable{
 		return this.datalog.getDomain();
 	}
 
+	/**
+	 * Formats the number of solutions after the Query.
+	 * @param lCount the number of solutions
+	 * @return Yes and the count in parentheses
+	 */
+	protected String formatCount(long lCount){
+		return String.format("Yes(%d)", lCount);
+	}
+
 	/**
 	 * Formats the results of the evaluation according to Lab3 specifications.
 	 * @return a formatted String representing the results of the evaluation
@@ -238,7 +398,7 @@ public class QueryEvaluator implements Runnable{
 		StringBuilder sb = new StringBuilder();
 		sb.append(this.query.toString()).append("? ");
 		if(this.solutions.size() > 0){
-			sb.append(String.format("Yes(%d)", this.solutions.size())).append(NEWLINE);
+			sb.append(this.formatCount(this.solutions.size())).append(NEWLINE);
 			for(Predicate tPred : this.solutions){
 				// just in case the query had no identifiers...
 				if(tPred.hasIdentifiers()){
@@ -0,0 +1,43 @@
+/*
+ * ResultMode.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab3.
+ *
+ * ResultMode is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ResultMode is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab3.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab3;
+
+/**
+ * How the answers to a Query are printed.  Only AlgebraQueryEvaluator (and its subclasses)
+ * looks at it; QueryEvaluator always lists every answer.
+ * @author T. Jameson Little
+ */
+public enum ResultMode {
+	/**
+	 * Yes(n) and then every answer, one per line
+	 */
+	LIST,
+	/**
+	 * Just Yes(n), counted without building the answers
+	 */
+	COUNT,
+	/**
+	 * Yes(n) and the answers as a product of smaller lists when the evaluator is given them as
+	 * one (see FactorizedResult), otherwise the same as LIST
+	 */
+	FACTORIZED
+}
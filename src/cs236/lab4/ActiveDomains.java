@@ -0,0 +1,173 @@
+/*
+ * ActiveDomains.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * ActiveDomains is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * ActiveDomains is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.FactCatalog;
+import cs236.lab2.Parameter;
+import cs236.lab2.Predicate;
+import cs236.lab2.Relation;
+import cs236.lab2.Rule;
+import cs236.lab2.SymbolTable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out which values can show up in each column of the predicates the Rules derive.
+ *
+ * A value can only end up in a column of a Rule's head if it is in every body column that the
+ * head's variable appears in, so the sets are grown from the Facts until nothing changes, looking
+ * again only at the Rules that read a predicate whose sets just grew.  This gives a superset of
+ * the real values without deriving a single tuple, which is all the evaluator needs to stop
+ * trying constants that can never match.
+ * @author T. Jameson Little
+ */
+public class ActiveDomains {
+	private FactCatalog catalog;
+	private Map<String, BitSet[]> derived;
+
+	/**
+	 * Computes the active values of every column of every derived predicate.
+	 * @param tCatalog the FactCatalog holding the Facts
+	 * @param tRules the Rules of the DatalogProgram
+	 */
+	public ActiveDomains(FactCatalog tCatalog, List<Rule> tRules){
+		this.catalog = tCatalog;
+		this.derived = new HashMap<String, BitSet[]>();
+
+		// start every derived column with whatever is already in the Facts
+		for(Rule tRule : tRules){
+			String sKey = FactCatalog.relationKey(tRule.getValue(), tRule.size());
+			if(!this.derived.containsKey(sKey)){
+				BitSet[] tColumns = new BitSet[tRule.size()];
+				for(int i = 0; i < tColumns.length; i++){
+					tColumns[i] = (BitSet)this.getFactValues(tRule.getValue(), tRule.size(), i).clone();
+				}
+				this.derived.put(sKey, tColumns);
+			}
+		}
+
+		// index the Rules by the predicates in their bodies so a change only rechecks its readers
+		Map<String, List<Integer>> tReaders = new HashMap<String, List<Integer>>();
+		for(int r = 0; r < tRules.size(); r++){
+			for(Predicate tPred : tRules.get(r).getPredicateList()){
+				String sKey = FactCatalog.relationKey(tPred.getValue(), tPred.size());
+				List<Integer> tList = tReaders.get(sKey);
+				if(tList == null){
+					tList = new ArrayList<Integer>();
+					tReaders.put(sKey, tList);
+				}
+				if(tList.isEmpty() || tList.get(tList.size() - 1).intValue() != r){
+					tList.add(r);
+				}
+			}
+		}
+
+		SymbolTable tSymbols = tCatalog.getSymbolTable();
+		LinkedList<Integer> tQueue = new LinkedList<Integer>();
+		boolean[] tQueued = new boolean[tRules.size()];
+		for(int r = 0; r < tRules.size(); r++){
+			tQueue.add(r);
+			tQueued[r] = true;
+		}
+		while(!tQueue.isEmpty()){
+			int r = tQueue.removeFirst().intValue();
+			tQueued[r] = false;
+			Rule tRule = tRules.get(r);
+			String sHead = FactCatalog.relationKey(tRule.getValue(), tRule.size());
+			BitSet[] tHead = this.derived.get(sHead);
+			boolean bChanged = false;
+			for(int i = 0; i < tHead.length; i++){
+				Parameter p = tRule.get(i);
+				BitSet tValues;
+				if(p.isConstant()){
+					tValues = new BitSet();
+					int iId = tSymbols.getId(p);
+					if(iId != SymbolTable.UNKNOWN){
+						tValues.set(iId);
+					}
+				}else{
+					tValues = this.intersectOccurrences(p.getName(), tRule.getPredicateList());
+					if(tValues == null){
+						// the variable isn't in the body, so it could be anything
+						tValues = new BitSet();
+						tValues.set(0, tSymbols.getDomainSize());
+					}
+				}
+				tValues.andNot(tHead[i]);
+				if(!tValues.isEmpty()){
+					tHead[i].or(tValues);
+					bChanged = true;
+				}
+			}
+			List<Integer> tList = tReaders.get(sHead);
+			if(bChanged && tList != null){
+				for(Integer iReader : tList){
+					if(!tQueued[iReader.intValue()]){
+						tQueue.add(iReader);
+						tQueued[iReader.intValue()] = true;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the values that can show up in a column of a predicate.
+	 * @param sName the name of the predicate
+	 * @param iArity the number of Parameters
+	 * @param iColumn the column
+	 * @return the ids as a BitSet (don't modify it)
+	 */
+	public BitSet get(String sName, int iArity, int iColumn){
+		BitSet[] tColumns = this.derived.get(FactCatalog.relationKey(sName, iArity));
+		if(tColumns != null){
+			return tColumns[iColumn];
+		}
+		return this.getFactValues(sName, iArity, iColumn);
+	}
+
+	private BitSet getFactValues(String sName, int iArity, int iColumn){
+		Relation tRelation = this.catalog.getRelation(sName, iArity);
+		return tRelation == null ? new BitSet() : tRelation.getActiveValues(iColumn);
+	}
+
+	private BitSet intersectOccurrences(String sName, List<Predicate> predList){
+		BitSet tResult = null;
+		for(Predicate tPred : predList){
+			for(int i = 0; i < tPred.size(); i++){
+				if(sName.equals(tPred.get(i).getName())){
+					BitSet tValues = this.get(tPred.getValue(), tPred.size(), i);
+					if(tResult == null){
+						tResult = (BitSet)tValues.clone();
+					}else{
+						tResult.and(tValues);
+					}
+				}
+			}
+		}
+		return tResult;
+	}
+}
@@ -0,0 +1,323 @@
+/*
+ * BatchJoin.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * BatchJoin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * BatchJoin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.IntList;
+import cs236.lab2.Relation;
+
+/**
+ * Joins a Rule's body a batch of bindings at a time instead of one binding at a time.
+ *
+ * A batch holds up to BATCH_SIZE bindings as one int column per variable, plus a selection
+ * vector with the rows that are still alive.  The first Atom is scanned into batches; every
+ * other Atom is a hash join that probes the Relation's own index with each selected binding
+ * and writes down which binding and which row matched.  When that fills a batch the matches
+ * are copied out a column at a time (the old bindings by their row in the input, the new
+ * columns from the Relation), the columns the Atom repeats a variable in are filtered out of
+ * the selection, and the batch goes on to the next Atom.  Each step is a plain loop over an int
+ * array, with no call per tuple until a binding makes it through the whole body.
+ *
+ * The Atoms are joined in the order of a JoinPlanner.AdaptivePlan, which gets a chance to
+ * reorder the rest of the body after each batch of the first Atom.  Subclasses decide what to
+ * do with each binding in bound().
+ * @author T. Jameson Little
+ */
+public abstract class BatchJoin {
+	/**
+	 * The most bindings in one batch.
+	 */
+	public static final int BATCH_SIZE = 1024;
+	private static final int MIN_CAPACITY = 64;
+
+	private CompiledRule rule;
+	private Relation[] bodySources;
+	private JoinPlanner.AdaptivePlan plan;
+	private Step[] steps;
+	private Batch[] batches;
+	private int capacity;
+	private int[] env;
+
+	/**
+	 * Creates a join over a Rule's body.
+	 * @param tRule the Rule
+	 * @param tSources the Relation each body Atom reads, in body order (none of them null)
+	 * @param tPlan the plan to join the Atoms in
+	 */
+	public BatchJoin(CompiledRule tRule, Relation[] tSources, JoinPlanner.AdaptivePlan tPlan){
+		this.rule = tRule;
+		this.bodySources = tSources;
+		this.plan = tPlan;
+		this.steps = new Step[tRule.getBody().length];
+	}
+
+	/**
+	 * Runs the join, calling bound() once for every binding of the body's variables.
+	 * @param env the environment to bind the variables in (UNBOUND for all of them)
+	 */
+	public void run(int[] env){
+		this.env = env;
+		CompiledRule.Atom tFirst = this.rule.getBody()[this.plan.getOrder()[0]];
+		Relation tSource = this.bodySources[this.plan.getOrder()[0]];
+		int[] tProbe = new int[tFirst.getArity()];
+		IntList tRows = new IntList();
+		tSource.scan(tFirst.bind(env, tProbe), tProbe, tRows);
+
+		// small joins don't need whole batches
+		this.capacity = Math.min(BATCH_SIZE, Math.max(MIN_CAPACITY, tRows.size()));
+		this.batches = new Batch[this.steps.length + 1];
+		for(int i = 0; i < this.batches.length; i++){
+			this.batches[i] = new Batch(this.rule.getSlotCount(), this.capacity);
+		}
+		this.arrange(this.plan.getOrder());
+		Step tDriver = this.steps[0];
+
+		long lStart = System.nanoTime();
+		int[] tDriverRows = new int[this.capacity];
+		for(int iStart = 0; iStart < tRows.size(); iStart += this.capacity){
+			int iEnd = Math.min(iStart + this.capacity, tRows.size());
+			for(int i = iStart; i < iEnd; i++){
+				tDriverRows[i - iStart] = tRows.get(i);
+			}
+			Batch tOut = this.batches[1];
+			tDriver.fill(null, null, tDriverRows, iEnd - iStart, tOut);
+			this.push(1, tOut);
+			if(this.steps.length > 2 && iEnd < tRows.size() && this.plan.reoptimize(1, tRows.size() - iEnd, System.nanoTime() - lStart)){
+				this.arrange(this.plan.getOrder());
+			}
+		}
+	}
+
+	/**
+	 * Called with every binding of the body's variables.
+	 * @param env the environment, with every body variable bound
+	 */
+	protected abstract void bound(int[] env);
+
+	// works out what each Atom reads, binds and checks in this order
+	private void arrange(int[] tOrder){
+		CompiledRule.Atom[] tBody = this.rule.getBody();
+		boolean[] tBound = new boolean[this.rule.getSlotCount()];
+		for(int i = 0; i < tOrder.length; i++){
+			this.steps[i] = new Step(tBody[tOrder[i]], this.bodySources[tOrder[i]], tBound, this.capacity);
+		}
+	}
+
+	// joins a batch of bindings with the Atom at iDepth and passes the results on
+	private void push(int iDepth, Batch tIn){
+		if(iDepth == this.steps.length){
+			this.project(tIn);
+			return;
+		}
+		Step tStep = this.steps[iDepth];
+		Batch tOut = this.batches[iDepth + 1];
+		int[] tParents = tStep.parents;
+		int[] tMatches = tStep.matches;
+		int[] tProbes = tStep.probes;
+		int iArity = tStep.probe.length;
+		for(int k = 0; k < tStep.keyColumns.length; k++){
+			int[] tColumn = tIn.columns[tStep.keySlots[k]];
+			for(int i = 0, iOffset = tStep.keyColumns[k]; i < tIn.selected; i++, iOffset += iArity){
+				tProbes[iOffset] = tColumn[tIn.selection[i]];
+			}
+		}
+		IntList tRows = tStep.rows;
+		tRows.clear();
+		tStep.source.scanBatch(tStep.boundMask, tProbes, tIn.selected, tRows, tStep.ends);
+
+		int n = 0;
+		int iStart = 0;
+		for(int i = 0; i < tIn.selected; i++){
+			int iRow = tIn.selection[i];
+			int iEnd = tStep.ends[i];
+			this.plan.observe(iDepth, iEnd - iStart);
+			for(int j = iStart; j < iEnd; j++){
+				tParents[n] = iRow;
+				tMatches[n] = tRows.get(j);
+				if(++n == this.capacity){
+					tStep.fill(tIn, tParents, tMatches, n, tOut);
+					this.push(iDepth + 1, tOut);
+					n = 0;
+				}
+			}
+			iStart = iEnd;
+		}
+		if(n > 0){
+			tStep.fill(tIn, tParents, tMatches, n, tOut);
+			this.push(iDepth + 1, tOut);
+		}
+	}
+
+	private void project(Batch tIn){
+		int[] tSlots = this.steps[this.steps.length - 1].carried;
+		for(int i = 0; i < tIn.selected; i++){
+			int iRow = tIn.selection[i];
+			for(int iSlot : tSlots){
+				this.env[iSlot] = tIn.columns[iSlot][iRow];
+			}
+			this.bound(this.env);
+		}
+		for(int iSlot : tSlots){
+			this.env[iSlot] = CompiledRule.UNBOUND;
+		}
+	}
+
+	/**
+	 * A batch of bindings, one column per slot (only the bound slots are filled in), and
+	 * the rows of them that are still alive.
+	 */
+	private static class Batch {
+		private int[][] columns;
+		private int[] selection;
+		private int selected;
+
+		Batch(int iSlots, int iCapacity){
+			this.columns = new int[iSlots][iCapacity];
+			this.selection = new int[iCapacity];
+		}
+	}
+
+	/**
+	 * One Atom in the join order: the columns it probes on, the columns it binds, and the
+	 * columns that have to equal one it binds because the variable shows up twice.
+	 */
+	private static class Step {
+		private Relation source;
+		private int boundMask;
+		private int[] probe;
+		private int[] keyColumns;
+		private int[] keySlots;
+		private int[] freeColumns;
+		private int[] freeSlots;
+		// column checks[i][0] has to equal column checks[i][1]
+		private int[][] checks;
+		// the slots bound after this Atom, and the ones of them bound before it
+		private int[] carried;
+		private int[] inherited;
+
+		// the probe tuples of a whole batch one after another, and where each one's matches end
+		private int[] probes;
+		private int[] ends;
+		private int[] parents;
+		private int[] matches;
+		private IntList rows;
+
+		Step(CompiledRule.Atom tAtom, Relation tSource, boolean[] tBound, int iCapacity){
+			this.source = tSource;
+			this.probe = new int[tAtom.getArity()];
+			this.inherited = slotsOf(tBound);
+			IntList tKeys = new IntList();
+			IntList tFree = new IntList();
+			IntList tChecks = new IntList();
+			for(int i = 0; i < tAtom.getArity(); i++){
+				int iSlot = tAtom.getSlot(i);
+				if(iSlot == CompiledRule.UNBOUND){
+					this.probe[i] = tAtom.getConstant(i);
+					this.boundMask |= 1 << i;
+				}else if(tBound[iSlot]){
+					tKeys.add(i);
+					this.boundMask |= 1 << i;
+				}else{
+					int iFirst = -1;
+					for(int j = 0; j < tFree.size(); j++){
+						if(tAtom.getSlot(tFree.get(j)) == iSlot){
+							iFirst = tFree.get(j);
+						}
+					}
+					if(iFirst >= 0){
+						tChecks.add(iFirst);
+						tChecks.add(i);
+					}else{
+						tFree.add(i);
+					}
+				}
+			}
+			this.keyColumns = tKeys.toArray();
+			this.keySlots = new int[this.keyColumns.length];
+			for(int k = 0; k < this.keyColumns.length; k++){
+				this.keySlots[k] = tAtom.getSlot(this.keyColumns[k]);
+			}
+			this.freeColumns = tFree.toArray();
+			this.freeSlots = new int[this.freeColumns.length];
+			for(int k = 0; k < this.freeColumns.length; k++){
+				this.freeSlots[k] = tAtom.getSlot(this.freeColumns[k]);
+				tBound[this.freeSlots[k]] = true;
+			}
+			this.checks = new int[tChecks.size() / 2][];
+			for(int k = 0; k < this.checks.length; k++){
+				this.checks[k] = new int[]{tChecks.get(2 * k), tChecks.get(2 * k + 1)};
+			}
+			this.carried = slotsOf(tBound);
+
+			this.probes = new int[iCapacity * this.probe.length];
+			for(int i = 0; i < iCapacity; i++){
+				System.arraycopy(this.probe, 0, this.probes, i * this.probe.length, this.probe.length);
+			}
+			this.ends = new int[iCapacity];
+			this.parents = new int[iCapacity];
+			this.matches = new int[iCapacity];
+			this.rows = new IntList();
+		}
+
+		// copies n matches into a batch a column at a time and selects the ones that pass the checks
+		void fill(Batch tIn, int[] tParents, int[] tMatches, int n, Batch tOut){
+			for(int iSlot : this.inherited){
+				int[] tFrom = tIn.columns[iSlot];
+				int[] tTo = tOut.columns[iSlot];
+				for(int k = 0; k < n; k++){
+					tTo[k] = tFrom[tParents[k]];
+				}
+			}
+			for(int c = 0; c < this.freeColumns.length; c++){
+				int iColumn = this.freeColumns[c];
+				int[] tTo = tOut.columns[this.freeSlots[c]];
+				for(int k = 0; k < n; k++){
+					tTo[k] = this.source.get(tMatches[k], iColumn);
+				}
+			}
+			int iSelected = 0;
+			for(int k = 0; k < n; k++){
+				tOut.selection[iSelected] = k;
+				iSelected += this.passes(tMatches[k]) ? 1 : 0;
+			}
+			tOut.selected = iSelected;
+		}
+
+		private boolean passes(int iRow){
+			for(int[] tCheck : this.checks){
+				if(this.source.get(iRow, tCheck[0]) != this.source.get(iRow, tCheck[1])){
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static int[] slotsOf(boolean[] tBound){
+			IntList tSlots = new IntList();
+			for(int i = 0; i < tBound.length; i++){
+				if(tBound[i]){
+					tSlots.add(i);
+				}
+			}
+			return tSlots.toArray();
+		}
+	}
+}
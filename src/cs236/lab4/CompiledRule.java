@@ -0,0 +1,225 @@
+/*
+ * CompiledRule.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * CompiledRule is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * CompiledRule is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.FactCatalog;
+import cs236.lab2.Parameter;
+import cs236.lab2.Predicate;
+import cs236.lab2.Rule;
+import cs236.lab2.SymbolTable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Rule translated into ids so it can be evaluated over Relations.
+ *
+ * Every variable gets a slot (a position in an int[] environment) and every constant is
+ * replaced by its id in the SymbolTable.
+ * @author T. Jameson Little
+ */
+public class CompiledRule {
+	/**
+	 * The value of a slot that hasn't been bound yet.
+	 */
+	public static final int UNBOUND = -1;
+
+	private Rule rule;
+	private Atom head;
+	private Atom[] body;
+	private List<String> slotNames;
+	private boolean[] boundByBody;
+
+	/**
+	 * Compiles a Rule.  Constants that aren't in the SymbolTable yet are added to it.
+	 * @param tRule the Rule to compile
+	 * @param tSymbols the SymbolTable of the FactCatalog the Rule will run against
+	 */
+	public CompiledRule(Rule tRule, SymbolTable tSymbols){
+		this.rule = tRule;
+		this.slotNames = new ArrayList<String>();
+		this.body = new Atom[tRule.getPredicateList().size()];
+		for(int i = 0; i < this.body.length; i++){
+			this.body[i] = this.compileAtom(tRule.getPredicateList().get(i), tSymbols);
+		}
+		int iBodySlots = this.slotNames.size();
+		this.head = this.compileAtom(tRule, tSymbols);
+
+		this.boundByBody = new boolean[this.slotNames.size()];
+		for(int i = 0; i < iBodySlots; i++){
+			this.boundByBody[i] = true;
+		}
+	}
+
+	private Atom compileAtom(Predicate tPredicate, SymbolTable tSymbols){
+		Atom tAtom = new Atom(tPredicate.getValue(), tPredicate.size());
+		for(int i = 0; i < tPredicate.size(); i++){
+			Parameter p = tPredicate.get(i);
+			if(p.isConstant()){
+				tAtom.slots[i] = UNBOUND;
+				tAtom.constants[i] = tSymbols.intern(p);
+			}else{
+				int iSlot = this.slotNames.indexOf(p.getName());
+				if(iSlot < 0){
+					iSlot = this.slotNames.size();
+					this.slotNames.add(p.getName());
+				}
+				tAtom.slots[i] = iSlot;
+			}
+		}
+		return tAtom;
+	}
+
+	/**
+	 * Gets the Rule this was compiled from.
+	 * @return the Rule
+	 */
+	public Rule getRule(){
+		return this.rule;
+	}
+
+	/**
+	 * Gets the head of the Rule.
+	 * @return the head Atom
+	 */
+	public Atom getHead(){
+		return this.head;
+	}
+
+	/**
+	 * Gets the body of the Rule.
+	 * @return the body Atoms in the order they were written
+	 */
+	public Atom[] getBody(){
+		return this.body;
+	}
+
+	/**
+	 * Gets the number of distinct variables in the Rule.
+	 * @return the size of an environment for this Rule
+	 */
+	public int getSlotCount(){
+		return this.slotNames.size();
+	}
+
+	/**
+	 * Gets the name of the variable in a slot.
+	 * @param iSlot the slot
+	 * @return the variable name
+	 */
+	public String getSlotName(int iSlot){
+		return this.slotNames.get(iSlot);
+	}
+
+	/**
+	 * Whether a variable shows up in the body.  Head variables that don't can take any value.
+	 * @param iSlot the slot
+	 * @return true if some body Atom binds it
+	 */
+	public boolean isBoundByBody(int iSlot){
+		return this.boundByBody[iSlot];
+	}
+
+	/**
+	 * Formats the Rule this was compiled from.
+	 * @return the Rule as it was written
+	 */
+	@Override
+	public String toString(){
+		return this.rule.toString();
+	}
+
+	/**
+	 * One Predicate of a compiled Rule.  Column i is either the variable in slots[i] or, if that
+	 * is UNBOUND, the constant with id constants[i].
+	 */
+	public static class Atom {
+		private String name;
+		private int[] slots;
+		private int[] constants;
+
+		Atom(String sName, int iArity){
+			this.name = sName;
+			this.slots = new int[iArity];
+			this.constants = new int[iArity];
+		}
+
+		/**
+		 * Gets the name of the predicate.
+		 * @return the name
+		 */
+		public String getName(){
+			return this.name;
+		}
+
+		/**
+		 * Gets the number of columns.
+		 * @return the arity
+		 */
+		public int getArity(){
+			return this.slots.length;
+		}
+
+		/**
+		 * Gets the key of the Relation this Atom reads or writes.
+		 * @return name/arity
+		 */
+		public String getKey(){
+			return FactCatalog.relationKey(this.name, this.slots.length);
+		}
+
+		/**
+		 * Gets the variable in a column.
+		 * @param iColumn the column
+		 * @return the slot, or UNBOUND if the column is a constant
+		 */
+		public int getSlot(int iColumn){
+			return this.slots[iColumn];
+		}
+
+		/**
+		 * Gets the constant in a column.
+		 * @param iColumn the column
+		 * @return the id of the constant (only meaningful if getSlot() is UNBOUND)
+		 */
+		public int getConstant(int iColumn){
+			return this.constants[iColumn];
+		}
+
+		/**
+		 * Works out which columns are bound, given an environment.
+		 * @param env the environment (UNBOUND for free slots)
+		 * @param tuple filled in with the values of the bound columns
+		 * @return the bound columns as a bit mask
+		 */
+		public int bind(int[] env, int[] tuple){
+			int iMask = 0;
+			for(int i = 0; i < this.slots.length; i++){
+				int iValue = this.slots[i] == UNBOUND ? this.constants[i] : env[this.slots[i]];
+				if(iValue != UNBOUND){
+					tuple[i] = iValue;
+					iMask |= 1 << i;
+				}
+			}
+			return iMask;
+		}
+	}
+}
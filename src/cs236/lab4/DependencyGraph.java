@@ -0,0 +1,262 @@
+/*
+ * DependencyGraph.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * DependencyGraph is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * DependencyGraph is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.FactCatalog;
+import cs236.lab2.Predicate;
+import cs236.lab2.Rule;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which predicates depend on which, split into strata that can be evaluated one after another.
+ *
+ * There is an edge from every Rule's head to each predicate in its body.  The strongly connected
+ * components are found with Tarjan's algorithm, which hands them out with the components they
+ * depend on first, so that is the order they are evaluated in.  A stratum is recursive if its
+ * predicates depend on each other (or one depends on itself); every other stratum is done after
+ * a single pass over its Rules.
+ * @author T. Jameson Little
+ */
+public class DependencyGraph {
+	private Map<String, Set<String>> edges;
+	private Map<String, List<Rule>> rulesByHead;
+	private List<Stratum> strata;
+
+	// Tarjan's bookkeeping
+	private Map<String, Integer> index;
+	private Map<String, Integer> lowLink;
+	private List<String> stack;
+	private Set<String> onStack;
+
+	/**
+	 * Builds the graph and its strata.
+	 * @param tRules the Rules of the DatalogProgram
+	 */
+	public DependencyGraph(List<Rule> tRules){
+		this.edges = new LinkedHashMap<String, Set<String>>();
+		this.rulesByHead = new HashMap<String, List<Rule>>();
+		for(Rule tRule : tRules){
+			String sHead = FactCatalog.relationKey(tRule.getValue(), tRule.size());
+			Set<String> tDepends = this.getEdges(sHead);
+			for(Predicate tPred : tRule.getPredicateList()){
+				String sBody = FactCatalog.relationKey(tPred.getValue(), tPred.size());
+				tDepends.add(sBody);
+				this.getEdges(sBody);
+			}
+			List<Rule> tHeadRules = this.rulesByHead.get(sHead);
+			if(tHeadRules == null){
+				tHeadRules = new ArrayList<Rule>();
+				this.rulesByHead.put(sHead, tHeadRules);
+			}
+			tHeadRules.add(tRule);
+		}
+
+		this.strata = new ArrayList<Stratum>();
+		this.index = new HashMap<String, Integer>();
+		this.lowLink = new HashMap<String, Integer>();
+		this.stack = new ArrayList<String>();
+		this.onStack = new LinkedHashSet<String>();
+		for(String sNode : this.edges.keySet()){
+			if(!this.index.containsKey(sNode)){
+				this.connect(sNode);
+			}
+		}
+		this.index = null;
+		this.lowLink = null;
+		this.stack = null;
+		this.onStack = null;
+	}
+
+	private Set<String> getEdges(String sNode){
+		Set<String> tEdges = this.edges.get(sNode);
+		if(tEdges == null){
+			tEdges = new LinkedHashSet<String>();
+			this.edges.put(sNode, tEdges);
+		}
+		return tEdges;
+	}
+
+	// Tarjan's algorithm with the recursion kept on an explicit stack of nodes and the edges left
+	// to follow from each, so a long chain of Rules can't overflow the Java stack
+	private void connect(String sRoot){
+		List<String> tPath = new ArrayList<String>();
+		List<Iterator<String>> tPathEdges = new ArrayList<Iterator<String>>();
+		this.visit(sRoot, tPath, tPathEdges);
+		while(!tPath.isEmpty()){
+			int iTop = tPath.size() - 1;
+			String sNode = tPath.get(iTop);
+			Iterator<String> tEdges = tPathEdges.get(iTop);
+			if(tEdges.hasNext()){
+				String sNext = tEdges.next();
+				if(!this.index.containsKey(sNext)){
+					this.visit(sNext, tPath, tPathEdges);
+				}else if(this.onStack.contains(sNext)){
+					this.lowLink.put(sNode, Math.min(this.lowLink.get(sNode), this.index.get(sNext)));
+				}
+				continue;
+			}
+
+			tPath.remove(iTop);
+			tPathEdges.remove(iTop);
+			if(iTop > 0){
+				String sParent = tPath.get(iTop - 1);
+				this.lowLink.put(sParent, Math.min(this.lowLink.get(sParent), this.lowLink.get(sNode)));
+			}
+			if(this.lowLink.get(sNode).equals(this.index.get(sNode))){
+				this.addStratum(sNode);
+			}
+		}
+	}
+
+	private void visit(String sNode, List<String> tPath, List<Iterator<String>> tPathEdges){
+		int iIndex = this.index.size();
+		this.index.put(sNode, iIndex);
+		this.lowLink.put(sNode, iIndex);
+		this.stack.add(sNode);
+		this.onStack.add(sNode);
+		tPath.add(sNode);
+		tPathEdges.add(this.edges.get(sNode).iterator());
+	}
+
+	// pops the component sNode is the root of off of Tarjan's stack
+	private void addStratum(String sNode){
+		Stratum tStratum = new Stratum();
+		String sMember;
+		do{
+			sMember = this.stack.remove(this.stack.size() - 1);
+			this.onStack.remove(sMember);
+			tStratum.predicates.add(sMember);
+			List<Rule> tRules = this.rulesByHead.get(sMember);
+			if(tRules != null){
+				tStratum.rules.addAll(tRules);
+			}
+		}while(!sMember.equals(sNode));
+
+		tStratum.recursive = tStratum.predicates.size() > 1 || this.edges.get(sNode).contains(sNode);
+		// predicates that only show up in the Facts don't need to be evaluated
+		if(!tStratum.rules.isEmpty()){
+			this.strata.add(tStratum);
+		}
+	}
+
+	/**
+	 * Gets the strata in the order they should be evaluated.
+	 * Every stratum only depends on itself and the strata before it.
+	 * @return the strata that have at least one Rule
+	 */
+	public List<Stratum> getStrata(){
+		return this.strata;
+	}
+
+	/**
+	 * Gets the predicates a predicate directly depends on.
+	 * @param sName the name of the predicate
+	 * @param iArity the number of Parameters
+	 * @return the keys (name/arity) of the predicates in the bodies of its Rules
+	 */
+	public Set<String> getDependencies(String sName, int iArity){
+		Set<String> tEdges = this.edges.get(FactCatalog.relationKey(sName, iArity));
+		return tEdges == null ? new LinkedHashSet<String>() : tEdges;
+	}
+
+	/**
+	 * Formats the strata in evaluation order.
+	 * @return one line per stratum
+	 */
+	@Override
+	public String toString(){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Strata(%d):", this.strata.size())).append(NEWLINE);
+		for(Stratum tStratum : this.strata){
+			sb.append("  ").append(tStratum.toString()).append(NEWLINE);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A strongly connected set of predicates and the Rules that derive them.
+	 */
+	public static class Stratum {
+		private Set<String> predicates = new LinkedHashSet<String>();
+		private List<Rule> rules = new ArrayList<Rule>();
+		private boolean recursive;
+
+		/**
+		 * Gets the predicates in this stratum.
+		 * @return their keys (name/arity)
+		 */
+		public Set<String> getPredicates(){
+			return this.predicates;
+		}
+
+		/**
+		 * Gets the Rules whose heads are in this stratum.
+		 * @return the Rules
+		 */
+		public List<Rule> getRules(){
+			return this.rules;
+		}
+
+		/**
+		 * Whether a predicate in this stratum depends on another one in it (or on itself).
+		 * @return true if it has to be iterated to a fixpoint
+		 */
+		public boolean isRecursive(){
+			return this.recursive;
+		}
+
+		/**
+		 * Whether a predicate is in this stratum.
+		 * @param sKey the key of the predicate (name/arity)
+		 * @return true if it is
+		 */
+		public boolean contains(String sKey){
+			return this.predicates.contains(sKey);
+		}
+
+		/**
+		 * Formats this stratum, for example {ancestor/2} recursive rules=2.
+		 * @return the formatted stratum
+		 */
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder("{");
+			boolean bFirst = true;
+			for(String s : this.predicates){
+				sb.append(bFirst ? "" : ", ").append(s);
+				bFirst = false;
+			}
+			sb.append('}').append(this.recursive ? " recursive" : "");
+			sb.append(String.format(" rules=%d", this.rules.size()));
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,625 @@
+/*
+ * JoinPlanner.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * JoinPlanner is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * JoinPlanner is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.Relation;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Picks the order the body Atoms of a Rule are joined in.
+ *
+ * Joining an Atom costs one probe of its Relation per partial result so far, and every probe
+ * returns about size / (distinct values of each bound column) rows, going by the Relation's
+ * statistics; a column bound to a constant uses the constant's own count if it is one of the
+ * column's frequent values.  A probe on bound columns
+ * that have an index is cheap, one with nothing bound reads the whole Relation.  Bodies of up to
+ * DP_LIMIT Atoms are planned exactly by dynamic programming over the subsets of the body;
+ * longer ones greedily take whichever Atom is cheapest to add next.
+ *
+ * Plans are cached per Rule, per Atom that has to go first (the delta) and per set of
+ * variables that are bound before the body starts.  A cached plan is made again when one of
+ * the Relations it was planned with has grown or shrunk by more than REPLAN_FACTOR.
+ *
+ * The estimates can be badly off on skewed data, so a join can also run with an AdaptivePlan,
+ * which counts the rows each Atom really returns.  Between batches of input rows it checks the
+ * counts against the estimates, and if one is off by more than DIVERGENCE_FACTOR the rest of
+ * the body is planned again with what was seen.  The new order is also cached, so the next
+ * fixpoint round starts with it.
+ *
+ * Cyclic bodies are not ordered at all: no order of pairwise joins avoids building partial
+ * results much bigger than the answer, so isLeapfrog() says to run them with a LeapfrogJoin.
+ * That needs every body Relation sorted into a trie, though, and a trie takes as long to bring
+ * up to date as it is big, so a delta much smaller than the other Relations is joined pairwise
+ * anyway, starting from the delta.
+ * The others are run a batch of bindings at a time by a BatchJoin unless isBatched() is turned
+ * off, which joins them one binding at a time instead.
+ * @author T. Jameson Little
+ */
+public class JoinPlanner {
+	/**
+	 * The longest body that is planned exactly.  Longer ones are planned greedily.
+	 */
+	public static final int DP_LIMIT = 10;
+	/**
+	 * How much a Relation has to change in size before the plans that use it are made again.
+	 */
+	public static final double REPLAN_FACTOR = 2.0;
+	/**
+	 * How far the rows an Atom really returns can be from the estimate before the rest of the
+	 * body is planned again.
+	 */
+	public static final double DIVERGENCE_FACTOR = 4.0;
+	/**
+	 * How many times smaller than the biggest other body Relation a delta has to be before a
+	 * cyclic body is joined pairwise from it instead of with a LeapfrogJoin.
+	 */
+	public static final int LEAPFROG_DELTA_FACTOR = 16;
+	// a bound probe without an index scans at most this many rows before the IndexAdvisor steps in
+	private static final double UNINDEXED_PROBE = 16;
+	// fewer probes than this say too little about an Atom
+	private static final int MIN_OBSERVED_PROBES = 32;
+
+	private Map<CompiledRule, Map<Long, Plan>> cache;
+	private Map<CompiledRule, Boolean> leapfrog;
+	private int plansBuilt;
+	private int replans;
+	private long cacheHits;
+	private int reorders;
+	private long nanosSaved;
+	private long leapfrogJoins;
+	private boolean batched;
+
+	/**
+	 * Creates a planner with an empty cache.
+	 */
+	public JoinPlanner(){
+		this.cache = new IdentityHashMap<CompiledRule, Map<Long, Plan>>();
+		this.leapfrog = new IdentityHashMap<CompiledRule, Boolean>();
+		this.batched = true;
+	}
+
+	/**
+	 * Whether Rule bodies are joined a batch of bindings at a time (see BatchJoin).
+	 * @return true by default
+	 */
+	public boolean isBatched(){
+		return this.batched;
+	}
+
+	/**
+	 * Sets whether Rule bodies are joined a batch of bindings at a time or one at a time.
+	 * @param bBatched false to join one binding at a time
+	 */
+	public void setBatched(boolean bBatched){
+		this.batched = bBatched;
+	}
+
+	/**
+	 * Whether a Rule's body should be joined all at once with a LeapfrogJoin instead of one Atom
+	 * at a time, which is the case when it is cyclic, unless the delta is more than
+	 * LEAPFROG_DELTA_FACTOR times smaller than the biggest other body Relation: the tries of
+	 * the others would be merged again for a handful of new rows, which makes a long fixpoint
+	 * quadratic.  Each true answer is counted as a leapfrog join in the report.
+	 * @param tRule the Rule
+	 * @param iDelta the body Atom that reads the delta, or -1 if every Atom reads its full Relation
+	 * @param tSources the Relation each body Atom reads, in body order (none of them null)
+	 * @return true if the body is cyclic, a LeapfrogJoin can run it and the delta isn't tiny
+	 */
+	public boolean isLeapfrog(CompiledRule tRule, int iDelta, Relation[] tSources){
+		Boolean bLeapfrog = this.leapfrog.get(tRule);
+		if(bLeapfrog == null){
+			bLeapfrog = LeapfrogJoin.canJoin(tRule) && LeapfrogJoin.isCyclic(tRule);
+			this.leapfrog.put(tRule, bLeapfrog);
+		}
+		if(!bLeapfrog){
+			return false;
+		}
+		if(iDelta >= 0){
+			int iBiggest = 0;
+			for(int i = 0; i < tSources.length; i++){
+				if(i != iDelta){
+					iBiggest = Math.max(iBiggest, tSources[i].size());
+				}
+			}
+			if((long)tSources[iDelta].size() * LEAPFROG_DELTA_FACTOR < iBiggest){
+				return false;
+			}
+		}
+		this.leapfrogJoins++;
+		return true;
+	}
+
+	/**
+	 * Gets the order to join a Rule's body in.
+	 * @param tRule the Rule
+	 * @param iFirst the body Atom that has to be joined first, or -1 if any can be
+	 * @param iBoundSlots the slots that are bound before the body starts, as a bit mask (slots
+	 * past 63 are treated as free)
+	 * @param tSources the Relation each body Atom reads, in body order (null if it isn't known
+	 * yet, which is planned as if it were as big as the domain)
+	 * @param iDomainSize the number of constants in the domain
+	 * @return the positions of the body Atoms in the order they should be joined
+	 */
+	public int[] getOrder(CompiledRule tRule, int iFirst, long iBoundSlots, Relation[] tSources, int iDomainSize){
+		Map<Long, Plan> tPlans = this.getPlans(tRule);
+		Long tKey = planKey(iFirst, iBoundSlots);
+		Plan tPlan = tPlans.get(tKey);
+		long[] tSizes = sizesOf(tSources, iDomainSize);
+		if(tPlan != null && !changed(tPlan.sizes, tSizes)){
+			this.cacheHits++;
+			return tPlan.order;
+		}
+		if(tPlan != null){
+			this.replans++;
+		}
+		tPlan = new Plan();
+		tPlan.sizes = tSizes;
+		int[] tPrefix = iFirst < 0 ? new int[0] : new int[]{iFirst};
+		tPlan.order = new Estimator(tRule, iBoundSlots, tSources, tSizes, iDomainSize).plan(tPrefix);
+		tPlans.put(tKey, tPlan);
+		this.plansBuilt++;
+		return tPlan.order;
+	}
+
+	/**
+	 * Gets the order to join a Rule's body in, like getOrder(), along with the counters to change
+	 * it while the join runs.
+	 * @param tRule the Rule
+	 * @param iFirst the body Atom that has to be joined first, or -1 if any can be
+	 * @param iBoundSlots the slots that are bound before the body starts, as a bit mask
+	 * @param tSources the Relation each body Atom reads, in body order
+	 * @param iDomainSize the number of constants in the domain
+	 * @return the AdaptivePlan, starting with the cached order
+	 */
+	public AdaptivePlan getAdaptivePlan(CompiledRule tRule, int iFirst, long iBoundSlots, Relation[] tSources, int iDomainSize){
+		int[] tOrder = this.getOrder(tRule, iFirst, iBoundSlots, tSources, iDomainSize);
+		Estimator tEstimator = new Estimator(tRule, iBoundSlots, tSources, sizesOf(tSources, iDomainSize), iDomainSize);
+		return new AdaptivePlan(tRule, iFirst, iBoundSlots, tEstimator, tOrder.clone());
+	}
+
+	private Map<Long, Plan> getPlans(CompiledRule tRule){
+		Map<Long, Plan> tPlans = this.cache.get(tRule);
+		if(tPlans == null){
+			tPlans = new HashMap<Long, Plan>();
+			this.cache.put(tRule, tPlans);
+		}
+		return tPlans;
+	}
+
+	// the first Atom fits in the low 6 bits; Rules with more than 57 variables may share a plan
+	// between binding patterns, which only costs time
+	private static Long planKey(int iFirst, long iBoundSlots){
+		return (iBoundSlots << 6) ^ (iFirst + 1);
+	}
+
+	/**
+	 * Gets the number of plans that were made, including the ones made again.
+	 * @return the number of plans
+	 */
+	public int getPlansBuilt(){
+		return this.plansBuilt;
+	}
+
+	/**
+	 * Gets the number of cached plans that were made again because their Relations changed.
+	 * @return the number of plans made again
+	 */
+	public int getReplans(){
+		return this.replans;
+	}
+
+	/**
+	 * Gets the number of times a cached plan was used.
+	 * @return the number of cache hits
+	 */
+	public long getCacheHits(){
+		return this.cacheHits;
+	}
+
+	/**
+	 * Gets the number of times an AdaptivePlan changed its order while a join was running.
+	 * @return the number of reorders
+	 */
+	public int getReorders(){
+		return this.reorders;
+	}
+
+	/**
+	 * Estimates the time the reorders saved.  Each reorder is credited with the drop in
+	 * estimated cost per input row, times the input rows that were still left, at the speed the
+	 * join was running before it.
+	 * @return the estimated time saved in nanoseconds
+	 */
+	public long getEstimatedNanosSaved(){
+		return this.nanosSaved;
+	}
+
+	/**
+	 * Gets the number of joins run with a LeapfrogJoin.
+	 * @return the number of leapfrog joins
+	 */
+	public long getLeapfrogJoins(){
+		return this.leapfrogJoins;
+	}
+
+	/**
+	 * Formats the counters of this planner.
+	 * @return a short report
+	 */
+	public String getReport(){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Join plans: %d built, %d rebuilt, %d cache hits", this.plansBuilt,
+				this.replans, this.cacheHits)).append(NEWLINE);
+		sb.append(String.format("Adaptive reorders: %d, estimated time saved: %.3f ms", this.reorders,
+				this.nanosSaved / 1e6)).append(NEWLINE);
+		sb.append(String.format("Leapfrog joins: %d", this.leapfrogJoins)).append(NEWLINE);
+		return sb.toString();
+	}
+
+	private static long[] sizesOf(Relation[] tSources, int iDomainSize){
+		long[] tSizes = new long[tSources.length];
+		for(int i = 0; i < tSources.length; i++){
+			tSizes[i] = tSources[i] == null ? iDomainSize : tSources[i].size();
+		}
+		return tSizes;
+	}
+
+	private static boolean changed(long[] tOld, long[] tNew){
+		for(int i = 0; i < tOld.length; i++){
+			double dRatio = (double)(Math.max(tOld[i], tNew[i]) + 1) / (Math.min(tOld[i], tNew[i]) + 1);
+			if(dRatio > REPLAN_FACTOR){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static class Plan {
+		private int[] order;
+		private long[] sizes;
+	}
+
+	/**
+	 * The order of one join, and how many rows each position really returned.
+	 */
+	public class AdaptivePlan {
+		private CompiledRule rule;
+		private int first;
+		private long boundSlots;
+		private Estimator estimator;
+		private int[] order;
+		private double[] estimates;
+		private long[] probes;
+		private long[] rows;
+		private long work;
+
+		AdaptivePlan(CompiledRule tRule, int iFirst, long iBoundSlots, Estimator tEstimator, int[] tOrder){
+			this.rule = tRule;
+			this.first = iFirst;
+			this.boundSlots = iBoundSlots;
+			this.estimator = tEstimator;
+			this.setOrder(tOrder);
+		}
+
+		private void setOrder(int[] tOrder){
+			this.order = tOrder;
+			this.estimates = this.estimator.fanouts(tOrder);
+			this.probes = new long[tOrder.length];
+			this.rows = new long[tOrder.length];
+		}
+
+		/**
+		 * Gets the current order.
+		 * @return the positions of the body Atoms in the order they are joined (don't modify it)
+		 */
+		public int[] getOrder(){
+			return this.order;
+		}
+
+		/**
+		 * Counts one probe of the Atom at a position in the order.
+		 * @param iPosition the position
+		 * @param iRows the number of rows it returned
+		 */
+		public void observe(int iPosition, int iRows){
+			this.probes[iPosition]++;
+			this.rows[iPosition] += iRows;
+			this.work += 1 + iRows;
+		}
+
+		/**
+		 * Plans the rest of the body again if an Atom returned a lot more or fewer rows than
+		 * expected.  The first iKeep positions stay where they are.
+		 * @param iKeep the number of positions that can't move
+		 * @param lRowsLeft the number of input rows still to go
+		 * @param lElapsedNanos the time the join has taken so far
+		 * @return true if the order changed
+		 */
+		public boolean reoptimize(int iKeep, long lRowsLeft, long lElapsedNanos){
+			boolean bDiverged = false;
+			long iSlots = this.estimator.slotsAfter(this.order, 0);
+			for(int i = 0; i < this.order.length; i++){
+				if(i >= iKeep && this.probes[i] >= MIN_OBSERVED_PROBES){
+					double dSeen = (double)this.rows[i] / this.probes[i];
+					this.estimator.observe(this.order[i], iSlots, dSeen);
+					double dRatio = (Math.max(dSeen, this.estimates[i]) + 1) / (Math.min(dSeen, this.estimates[i]) + 1);
+					bDiverged |= dRatio > DIVERGENCE_FACTOR;
+				}
+				iSlots = this.estimator.slotsAfter(this.order, i + 1);
+			}
+			if(!bDiverged){
+				return false;
+			}
+
+			int[] tNew = this.estimator.plan(Arrays.copyOf(this.order, iKeep));
+			if(Arrays.equals(tNew, this.order)){
+				// the estimates were off, but the order was right anyway
+				this.estimates = this.estimator.fanouts(this.order);
+				return false;
+			}
+			double dSaving = this.estimator.cost(this.order, iKeep) - this.estimator.cost(tNew, iKeep);
+			if(this.work > 0 && dSaving > 0){
+				nanosSaved += (long)(dSaving * lRowsLeft * lElapsedNanos / this.work);
+			}
+			reorders++;
+			Plan tPlan = getPlans(this.rule).get(planKey(this.first, this.boundSlots));
+			if(tPlan != null){
+				tPlan.order = tNew.clone();
+			}
+			this.setOrder(tNew);
+			return true;
+		}
+	}
+
+	/**
+	 * Estimates the cost of joining the body in some order, and finds the cheapest one.
+	 */
+	private static class Estimator {
+		private CompiledRule.Atom[] body;
+		private long initialSlots;
+		private Relation[] sources;
+		private long[] sizes;
+		private int domainSize;
+		// the slots each Atom binds
+		private long[] atomSlots;
+		// rows per probe that were really seen, by Atom and bound columns
+		private Map<Long, Double> observed;
+
+		Estimator(CompiledRule tRule, long iBoundSlots, Relation[] tSources, long[] tSizes, int iDomainSize){
+			this.body = tRule.getBody();
+			this.initialSlots = iBoundSlots;
+			this.sources = tSources;
+			this.sizes = tSizes;
+			this.domainSize = Math.max(iDomainSize, 1);
+			this.atomSlots = new long[this.body.length];
+			for(int i = 0; i < this.body.length; i++){
+				for(int j = 0; j < this.body[i].getArity(); j++){
+					int iSlot = this.body[i].getSlot(j);
+					if(iSlot != CompiledRule.UNBOUND && iSlot < 64){
+						this.atomSlots[i] |= 1L << iSlot;
+					}
+				}
+			}
+		}
+
+		// plans the body with the Atoms in tPrefix going first, in that order
+		int[] plan(int[] tPrefix){
+			if(this.body.length - tPrefix.length <= 1){
+				int[] tOrder = Arrays.copyOf(tPrefix, this.body.length);
+				if(tPrefix.length < this.body.length){
+					int iMissing = 0;
+					while(contains(tPrefix, iMissing)){
+						iMissing++;
+					}
+					tOrder[tPrefix.length] = iMissing;
+				}
+				return tOrder;
+			}
+			if(this.body.length <= DP_LIMIT){
+				return this.exact(tPrefix);
+			}
+			return this.greedy(tPrefix);
+		}
+
+		private static boolean contains(int[] tValues, int iValue){
+			for(int i : tValues){
+				if(i == iValue){
+					return true;
+				}
+			}
+			return false;
+		}
+
+		// dynamic programming over every subset of the body, keeping the cheapest way to join it
+		private int[] exact(int[] tPrefix){
+			int iSubsets = 1 << this.body.length;
+			double[] tCost = new double[iSubsets];
+			double[] tRows = new double[iSubsets];
+			long[] tSlots = new long[iSubsets];
+			int[] tLast = new int[iSubsets];
+			Arrays.fill(tCost, Double.POSITIVE_INFINITY);
+			int iStart = 0;
+			for(int i : tPrefix){
+				iStart |= 1 << i;
+			}
+			// costs are counted per row coming out of the prefix
+			tCost[iStart] = 0;
+			tRows[iStart] = 1;
+			tSlots[iStart] = this.slotsAfter(tPrefix, tPrefix.length);
+
+			for(int iSet = iStart; iSet < iSubsets; iSet++){
+				if(tCost[iSet] == Double.POSITIVE_INFINITY){
+					continue;
+				}
+				for(int i = 0; i < this.body.length; i++){
+					if((iSet & (1 << i)) != 0){
+						continue;
+					}
+					double dFanout = this.fanout(i, tSlots[iSet]);
+					double dCost = tCost[iSet] + tRows[iSet] * (this.probeCost(i, tSlots[iSet]) + dFanout);
+					int iNext = iSet | (1 << i);
+					if(dCost < tCost[iNext]){
+						tCost[iNext] = dCost;
+						tRows[iNext] = tRows[iSet] * dFanout;
+						tSlots[iNext] = tSlots[iSet] | this.atomSlots[i];
+						tLast[iNext] = i;
+					}
+				}
+			}
+
+			int[] tOrder = Arrays.copyOf(tPrefix, this.body.length);
+			int iSet = iSubsets - 1;
+			for(int i = tOrder.length - 1; i >= tPrefix.length; i--){
+				tOrder[i] = tLast[iSet];
+				iSet &= ~(1 << tOrder[i]);
+			}
+			return tOrder;
+		}
+
+		private int[] greedy(int[] tPrefix){
+			int[] tOrder = Arrays.copyOf(tPrefix, this.body.length);
+			boolean[] tUsed = new boolean[this.body.length];
+			for(int i : tPrefix){
+				tUsed[i] = true;
+			}
+			long iSlots = this.slotsAfter(tPrefix, tPrefix.length);
+			for(int iPos = tPrefix.length; iPos < tOrder.length; iPos++){
+				int iBest = -1;
+				double dBest = Double.POSITIVE_INFINITY;
+				for(int i = 0; i < this.body.length; i++){
+					if(tUsed[i]){
+						continue;
+					}
+					double dCost = this.probeCost(i, iSlots) + this.fanout(i, iSlots);
+					if(iBest < 0 || dCost < dBest){
+						iBest = i;
+						dBest = dCost;
+					}
+				}
+				tOrder[iPos] = iBest;
+				tUsed[iBest] = true;
+				iSlots |= this.atomSlots[iBest];
+			}
+			return tOrder;
+		}
+
+		// the estimated cost per row coming out of the first iFrom positions
+		double cost(int[] tOrder, int iFrom){
+			double dCost = 0;
+			double dRows = 1;
+			long iSlots = this.slotsAfter(tOrder, iFrom);
+			for(int i = iFrom; i < tOrder.length; i++){
+				double dFanout = this.fanout(tOrder[i], iSlots);
+				dCost += dRows * (this.probeCost(tOrder[i], iSlots) + dFanout);
+				dRows *= dFanout;
+				iSlots |= this.atomSlots[tOrder[i]];
+			}
+			return dCost;
+		}
+
+		// the estimated rows per probe at every position of an order
+		double[] fanouts(int[] tOrder){
+			double[] tFanouts = new double[tOrder.length];
+			long iSlots = this.initialSlots;
+			for(int i = 0; i < tOrder.length; i++){
+				tFanouts[i] = this.fanout(tOrder[i], iSlots);
+				iSlots |= this.atomSlots[tOrder[i]];
+			}
+			return tFanouts;
+		}
+
+		// the slots bound once the first iCount positions of an order are joined
+		long slotsAfter(int[] tOrder, int iCount){
+			long iSlots = this.initialSlots;
+			for(int i = 0; i < iCount; i++){
+				iSlots |= this.atomSlots[tOrder[i]];
+			}
+			return iSlots;
+		}
+
+		void observe(int iAtom, long iSlots, double dFanout){
+			if(this.observed == null){
+				this.observed = new HashMap<Long, Double>();
+			}
+			this.observed.put(((long)iAtom << 32) | this.boundColumns(iAtom, iSlots), dFanout);
+		}
+
+		private int boundColumns(int iAtom, long iSlots){
+			CompiledRule.Atom tAtom = this.body[iAtom];
+			int iMask = 0;
+			for(int j = 0; j < tAtom.getArity(); j++){
+				int iSlot = tAtom.getSlot(j);
+				if(iSlot == CompiledRule.UNBOUND || (iSlot < 64 && (iSlots & (1L << iSlot)) != 0)){
+					iMask |= 1 << j;
+				}
+			}
+			return iMask;
+		}
+
+		// the number of rows one probe is expected to return
+		private double fanout(int iAtom, long iSlots){
+			int iMask = this.boundColumns(iAtom, iSlots);
+			if(this.observed != null){
+				Double tSeen = this.observed.get(((long)iAtom << 32) | iMask);
+				if(tSeen != null){
+					return tSeen;
+				}
+			}
+			CompiledRule.Atom tAtom = this.body[iAtom];
+			Relation tSource = this.sources[iAtom];
+			double dRows = this.sizes[iAtom];
+			for(int j = 0; j < tAtom.getArity(); j++){
+				if((iMask & (1 << j)) == 0){
+					continue;
+				}
+				if(tSource == null){
+					dRows /= this.domainSize;
+				}else if(tAtom.getSlot(j) == CompiledRule.UNBOUND){
+					// a constant might be one of the column's frequent values
+					dRows *= tSource.getStatistics().getSelectivity(j, tAtom.getConstant(j));
+				}else{
+					dRows *= tSource.getStatistics().getSelectivity(j);
+				}
+			}
+			return dRows;
+		}
+
+		// the rows that have to be looked at to find the matches of one probe
+		private double probeCost(int iAtom, long iSlots){
+			int iMask = this.boundColumns(iAtom, iSlots);
+			Relation tSource = this.sources[iAtom];
+			if(iMask == 0){
+				return this.sizes[iAtom];
+			}
+			if(iMask == (1 << this.body[iAtom].getArity()) - 1 || tSource == null
+					|| tSource.findExistingIndex(iMask) != null){
+				return 1;
+			}
+			return Math.min(this.sizes[iAtom], UNINDEXED_PROBE);
+		}
+	}
+}
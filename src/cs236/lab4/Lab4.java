@@ -24,7 +24,14 @@ package cs236.lab4;
 import cs236.lab1.Tokenizer;
 import cs236.lab2.DatalogProgram;
 import cs236.lab2.Query;
+import cs236.lab2.RelationLayout;
+import cs236.lab2.Rule;
 import cs236.lab2.TokenizerServer;
+import cs236.lab3.AlgebraPlan;
+import cs236.lab3.AlgebraQueryEvaluator;
+import cs236.lab3.FactorizedResult;
+import cs236.lab3.QueryBatch;
+import cs236.lab3.ResultMode;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
 import java.util.List;
@@ -37,23 +44,161 @@ import java.util.logging.Logger;
  */
 public class Lab4 {
 	private final static long WAIT_TIME = 10; // keep this pretty small, we have fast processors
+	private final static String USAGE = "Usage: Lab4 [--engine=bottom-up|top-down|magic-sets] [--layout=hash|trie]"
+			+ " [--count] [--factorize | --limit=N] [--no-optimize] [--no-prune] [--no-batch] [--compile]"
+			+ " [--check-compiled] [--index-report] [--stats] [--join-report] [--rewrite-report]"
+			+ " [--prune-report] file...";
 
 	/**
 	 * This parses through files containing Datalog and evaluates the Queries against the Facts.
 	 * This prints out the results to the console.
-	 * @param args files containing Datalog
+	 *
+	 * Options start with two dashes and apply to every file after them:
+	 * --index-report prints what the IndexAdvisor saw and built after the results.
+	 * --stats prints the row counts, distinct values and frequent values of every Relation
+	 * and the counters of its Bloom filter.
+	 * --join-report prints how many join plans were made and how often they were changed while
+	 * running, and how many Rules were compiled.
+	 * --compile compiles hot Rules into Java classes instead of interpreting every join.
+	 * --check-compiled compiles every Rule, runs the interpreted join next to every compiled one
+	 * and stops if they don't agree.
+	 * --no-batch joins the Rule bodies one binding at a time instead of in batches.
+	 * --no-optimize evaluates the Rules exactly as they are written, without the RuleOptimizer.
+	 * --rewrite-report prints the Rules the RuleOptimizer rewrote the program into.
+	 * --no-prune keeps the Rules and Facts the Queries can't reach instead of dropping them.
+	 * --prune-report prints what the QueryPruner dropped.
+	 * --count prints only how many answers each Query has, without building them.
+	 * --factorize works out and prints the answers as a product when the body of the Rule for a
+	 * Query splits into independent groups of variables (see QueryFactorizer).  That takes a
+	 * predicate with no Facts and exactly one Rule, which isn't recursive or used in any body, and
+	 * a Query that doesn't repeat a variable across the groups.  Every other Query is listed as
+	 * usual, and so is a product that is shorter to list than its factors; a factorized answer
+	 * always shows its factor sizes after the count, as in Yes(6) = 3 x 2.  It can't be used
+	 * with --limit.
+	 * --limit=N prints at most N answers per Query, found lazily in order; Yes(N+) means there
+	 * were more, so --limit=0 prints Yes(0+) or No.
+	 * --layout=trie looks up bound columns in sorted tries instead of hash indexes.
+	 * --engine=top-down solves each Query from the Rules, keeping a table of answers per subgoal.
+	 * --engine=magic-sets derives only what each Query needs, using the constants in the Query.
+	 * The options are checked before any file is read; if one can't be used, nothing is
+	 * evaluated and the usage is printed instead.
+	 * @param args options and files containing Datalog
 	 */
 	public static void main(String[] args) {
 		if(args != null && args.length > 0){
+			String sBadOption = checkOptions(args);
+			if(sBadOption != null){
+				System.out.println(sBadOption);
+				System.out.println(USAGE);
+				return;
+			}
+			boolean bIndexReport = false;
+			boolean bStats = false;
+			boolean bJoinReport = false;
+			boolean bBatched = true;
+			boolean bCompiled = false;
+			boolean bChecked = false;
+			boolean bOptimized = true;
+			boolean bRewriteReport = false;
+			boolean bPruned = true;
+			boolean bPruneReport = false;
+			RelationLayout tLayout = RelationLayout.HASH;
+			RuleEngine tEngine = RuleEngine.BOTTOM_UP;
+			ResultMode tMode = ResultMode.LIST;
+			long lLimit = -1;
 			for(String sFile : args){
+				if(sFile.equals("--index-report")){
+					bIndexReport = true;
+					continue;
+				}else if(sFile.equals("--stats")){
+					bStats = true;
+					continue;
+				}else if(sFile.equals("--join-report")){
+					bJoinReport = true;
+					continue;
+				}else if(sFile.equals("--compile")){
+					bCompiled = true;
+					continue;
+				}else if(sFile.equals("--check-compiled")){
+					bChecked = true;
+					continue;
+				}else if(sFile.equals("--no-optimize")){
+					bOptimized = false;
+					continue;
+				}else if(sFile.equals("--rewrite-report")){
+					bRewriteReport = true;
+					continue;
+				}else if(sFile.equals("--no-prune")){
+					bPruned = false;
+					continue;
+				}else if(sFile.equals("--prune-report")){
+					bPruneReport = true;
+					continue;
+				}else if(sFile.equals("--no-batch")){
+					bBatched = false;
+					continue;
+				}else if(sFile.equals("--count")){
+					tMode = ResultMode.COUNT;
+					continue;
+				}else if(sFile.equals("--factorize")){
+					tMode = ResultMode.FACTORIZED;
+					continue;
+				}else if(sFile.startsWith("--limit=")){
+					lLimit = parseLimit(sFile);
+					continue;
+				}else if(sFile.startsWith("--layout=")){
+					tLayout = parseLayout(sFile);
+					continue;
+				}else if(sFile.startsWith("--engine=")){
+					tEngine = parseEngine(sFile);
+					continue;
+				}
 				try{
 					Tokenizer tTokenizer = new Tokenizer();
 					tTokenizer.setFile(sFile);
 
 					TokenizerServer tServer = new TokenizerServer(tTokenizer);
 					DatalogProgram dp = tServer.run();
+					if(dp.getOffendingToken() != null){
+						// everything after the error is missing, so don't answer what's left
+						System.out.println(dp.toString());
+						continue;
+					}
+					dp.getFactCatalog().setLayout(tLayout);
+					RuleOptimizer tOptimizer = null;
+					if(bOptimized){
+						tOptimizer = new RuleOptimizer(dp.getRuleList(), dp.getFactCatalog(), dp.getQueryList());
+						List<Rule> tRules = tOptimizer.optimize();
+						dp.getRuleList().clear();
+						dp.getRuleList().addAll(tRules);
+					}
+					QueryPruner tPruner = null;
+					if(bPruned){
+						tPruner = new QueryPruner(dp);
+						tPruner.prune();
+					}
 
-					System.out.println(evaluateQueries(dp));
+					JoinPlanner tPlanner = new JoinPlanner();
+					tPlanner.setBatched(bBatched);
+					RuleCompiler tCompiler = new RuleCompiler();
+					tCompiler.setEnabled(bCompiled || bChecked);
+					tCompiler.setChecked(bChecked);
+					System.out.println(evaluateQueries(dp, tEngine, tPlanner, tCompiler, tMode, lLimit));
+					if(bRewriteReport && tOptimizer != null){
+						System.out.println(tOptimizer.getReport());
+					}
+					if(bPruneReport && tPruner != null){
+						System.out.println(tPruner.getReport());
+					}
+					if(bIndexReport){
+						System.out.println(dp.getFactCatalog().getIndexAdvisor().getReport());
+					}
+					if(bStats){
+						System.out.println(dp.getFactCatalog().getStatisticsReport());
+					}
+					if(bJoinReport){
+						System.out.println(tPlanner.getReport() + tCompiler.getReport());
+					}
 				}catch(FileNotFoundException ex){
 					System.out.println("File does not exist. File:");
 					System.out.println(sFile);
@@ -63,14 +208,190 @@ public class Lab4 {
 	}
 
 	/**
-	 * Evaluates the Queries.  Must be called after it's done parsing.
+	 * Checks the options with values and the ones that can't go together, so a mistake is
+	 * found before any file is read.
+	 * @param args options and files containing Datalog
+	 * @return what is wrong with the first option that can't be used, or null if they all can
+	 */
+	private static String checkOptions(String[] args){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		// like the mode itself, the last of --count and --factorize wins
+		boolean bFactorized = false;
+		boolean bLimited = false;
+		for(String sArg : args){
+			try{
+				if(sArg.equals("--count")){
+					bFactorized = false;
+				}else if(sArg.equals("--factorize")){
+					bFactorized = true;
+				}else if(sArg.startsWith("--limit=")){
+					parseLimit(sArg);
+					bLimited = true;
+				}else if(sArg.startsWith("--layout=")){
+					parseLayout(sArg);
+				}else if(sArg.startsWith("--engine=")){
+					parseEngine(sArg);
+				}
+			}catch(IllegalArgumentException ex){
+				return "Option is not valid. Option:" + NEWLINE + sArg;
+			}
+			if(bFactorized && bLimited){
+				return "--factorize can't be used with --limit. Option:" + NEWLINE + sArg;
+			}
+		}
+		return null;
+	}
+
+	// throws NumberFormatException (an IllegalArgumentException) if it isn't a number
+	private static long parseLimit(String sArg){
+		long lLimit = Long.parseLong(sArg.substring("--limit=".length()));
+		if(lLimit < 0){
+			throw new IllegalArgumentException("--limit can't be negative: " + sArg);
+		}
+		return lLimit;
+	}
+
+	private static RelationLayout parseLayout(String sArg){
+		return RelationLayout.valueOf(sArg.substring("--layout=".length()).toUpperCase());
+	}
+
+	private static RuleEngine parseEngine(String sArg){
+		String sEngine = sArg.substring("--engine=".length()).replace('-', '_');
+		return RuleEngine.valueOf(sEngine.toUpperCase());
+	}
+
+	/**
+	 * Evaluates the Queries bottom-up.  Must be called after it's done parsing.
 	 * @param dp the DatalogProgram to evaluate
 	 * @return a formatted String of the results of evaluation
 	 */
 	public static String evaluateQueries(DatalogProgram dp){
-		List<QueryEvaluatorWithRules> qeList = new ArrayList<QueryEvaluatorWithRules>();
-		for(Query q : dp.getQueryList()){
-			QueryEvaluatorWithRules qe = new QueryEvaluatorWithRules(q, dp);
+		return evaluateQueries(dp, RuleEngine.BOTTOM_UP);
+	}
+
+	/**
+	 * Evaluates the Queries.  Must be called after it's done parsing.
+	 * With BOTTOM_UP and MAGIC_SETS the tuples derived by the Rules are added to the
+	 * DatalogProgram's FactCatalog, by a QueryEvaluatorWithFixpoint when its Query runs, so
+	 * cancelling it stops the Rules as well.  Variants of an earlier Query reuse its answers, and
+	 * BOTTOM_UP answers the Queries together with a QueryBatch.
+	 * @param dp the DatalogProgram to evaluate
+	 * @param tEngine how to use the Rules
+	 * @return a formatted String of the results of evaluation
+	 */
+	public static String evaluateQueries(DatalogProgram dp, RuleEngine tEngine){
+		return evaluateQueries(dp, tEngine, new JoinPlanner());
+	}
+
+	/**
+	 * Evaluates the Queries, ordering the Rule bodies with a JoinPlanner that can be inspected
+	 * afterwards.  Must be called after it's done parsing.
+	 * @param dp the DatalogProgram to evaluate
+	 * @param tEngine how to use the Rules
+	 * @param tPlanner the JoinPlanner every evaluator shares
+	 * @return a formatted String of the results of evaluation
+	 */
+	public static String evaluateQueries(DatalogProgram dp, RuleEngine tEngine, JoinPlanner tPlanner){
+		return evaluateQueries(dp, tEngine, tPlanner, new RuleCompiler());
+	}
+
+	/**
+	 * Evaluates the Queries, sharing a JoinPlanner and a RuleCompiler between every evaluator.
+	 * Must be called after it's done parsing.
+	 * @param dp the DatalogProgram to evaluate
+	 * @param tEngine how to use the Rules
+	 * @param tPlanner the JoinPlanner every evaluator shares
+	 * @param tCompiler the RuleCompiler the bottom-up evaluators share
+	 * @return a formatted String of the results of evaluation
+	 */
+	public static String evaluateQueries(DatalogProgram dp, RuleEngine tEngine, JoinPlanner tPlanner, RuleCompiler tCompiler){
+		return evaluateQueries(dp, tEngine, tPlanner, tCompiler, ResultMode.LIST);
+	}
+
+	/**
+	 * Evaluates the Queries like evaluateQueries(dp, tEngine, tPlanner, tCompiler), printing
+	 * the answers in a ResultMode.
+	 * @param dp the DatalogProgram to evaluate
+	 * @param tEngine how to use the Rules
+	 * @param tPlanner the JoinPlanner every evaluator shares
+	 * @param tCompiler the RuleCompiler the bottom-up evaluators share
+	 * @param tMode how to print the answers
+	 * @return a formatted String of the results of evaluation
+	 */
+	public static String evaluateQueries(DatalogProgram dp, RuleEngine tEngine, JoinPlanner tPlanner, RuleCompiler tCompiler, ResultMode tMode){
+		return evaluateQueries(dp, tEngine, tPlanner, tCompiler, tMode, -1);
+	}
+
+	/**
+	 * Evaluates the Queries like evaluateQueries(dp, tEngine, tPlanner, tCompiler, tMode),
+	 * printing at most some number of answers of each.  Only those are read from the derived
+	 * Relations, with a QueryCursor.
+	 * @param dp the DatalogProgram to evaluate
+	 * @param tEngine how to use the Rules
+	 * @param tPlanner the JoinPlanner every evaluator shares
+	 * @param tCompiler the RuleCompiler the bottom-up evaluators share
+	 * @param tMode how to print the answers
+	 * @param lLimit the most answers to print per Query, or -1 for all of them (the only choice
+	 * with FACTORIZED)
+	 * @return a formatted String of the results of evaluation
+	 */
+	public static String evaluateQueries(DatalogProgram dp, RuleEngine tEngine, JoinPlanner tPlanner, RuleCompiler tCompiler, ResultMode tMode, long lLimit){
+		if(tMode == ResultMode.FACTORIZED && lLimit >= 0){
+			throw new IllegalArgumentException("--factorize can't be used with --limit");
+		}
+		QueryFactorizer tFactorizer = null;
+		List<Query> tQueries = dp.getQueryList();
+		if(tMode == ResultMode.FACTORIZED){
+			// the factors are answered in place of the Queries that split
+			tFactorizer = new QueryFactorizer(dp);
+			tFactorizer.factorize();
+			tQueries = tFactorizer.getQueries();
+		}
+		SemiNaiveEvaluator tFixpoint = null;
+		if(tEngine == RuleEngine.BOTTOM_UP){
+			// worked out by the first Query that runs, for all of them
+			tFixpoint = new SemiNaiveEvaluator(dp.getFactCatalog(), dp.getRuleList(), tPlanner, tCompiler);
+		}
+
+		QueryBatch tBatch = new QueryBatch(tQueries);
+		QueryEvaluatorWithFixpoint.SharedAnswers tShared = null;
+		if(tEngine == RuleEngine.BOTTOM_UP && (tMode == ResultMode.COUNT || lLimit < 0)){
+			// everything is derived, so the Queries can share scans of the Relations
+			tShared = new QueryEvaluatorWithFixpoint.SharedAnswers(tBatch, tMode == ResultMode.COUNT);
+		}
+
+		MagicSetRewriter tRewriter = new MagicSetRewriter(dp.getRuleList(), dp.getFactCatalog());
+		TabledEvaluator tTables = null;
+		if(tEngine == RuleEngine.TOP_DOWN){
+			// one set of tables for all the Queries, so they can share subgoals
+			tTables = new TabledEvaluator(dp.getFactCatalog(), dp.getRuleList(), tPlanner);
+		}
+
+		List<AlgebraQueryEvaluator> qeList = new ArrayList<AlgebraQueryEvaluator>();
+		for(Query q : tQueries){
+			AlgebraQueryEvaluator qe;
+			int iVariant = tBatch.getVariantOf(qeList.size());
+			if(tEngine == RuleEngine.BOTTOM_UP){
+				QueryEvaluatorWithFixpoint tEvaluator = new QueryEvaluatorWithFixpoint(q, dp, tFixpoint);
+				if(tShared != null){
+					tEvaluator.setSharedAnswers(tShared, qeList.size());
+				}
+				qe = tEvaluator;
+			}else if(iVariant < qeList.size() && lLimit < 0 && !qeList.get(iVariant).isCancelled()){
+				// a variant of an earlier Query has the same answers
+				qe = new AlgebraQueryEvaluator(q, dp);
+				qe.setTuples(qeList.get(iVariant).getTuples());
+				qe.setCount(qeList.get(iVariant).getCount());
+			}else if(tEngine == RuleEngine.MAGIC_SETS){
+				MagicSetRewriter.MagicProgram tProgram = tRewriter.rewrite(q);
+				SemiNaiveEvaluator tMagic = new SemiNaiveEvaluator(dp.getFactCatalog(), tProgram.getRules(), tPlanner, tCompiler);
+				qe = new QueryEvaluatorWithFixpoint(q, dp, tMagic, tProgram.getAnswerName(), tProgram.getSeed());
+			}else{
+				qe = new QueryEvaluatorWithRules(q, dp, tTables);
+			}
+			qe.setResultMode(tMode);
+			qe.setLimit(lLimit);
 			qeList.add(qe);
 			qe.run();
 
@@ -79,8 +400,7 @@ public class Lab4 {
 //			tThread.start();
 		}
 
-		StringBuilder sb = new StringBuilder();
-		for(QueryEvaluatorWithRules qe : qeList){
+		for(AlgebraQueryEvaluator qe : qeList){
 			// this only makes sense if we're multithreading, which might not actually buy us much
 			while(!qe.isFinished()){
 				try {
@@ -89,6 +409,26 @@ public class Lab4 {
 					Logger.getLogger(DatalogProgram.class.getName()).log(Level.SEVERE, null, ex);
 				}
 			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+		int iNext = 0;
+		for(int i = 0; i < dp.getQueryList().size(); i++){
+			List<Query> tFactors = tFactorizer == null ? null : tFactorizer.getFactors(i);
+			if(tFactors == null){
+				sb.append(qeList.get(iNext++).toString());
+				continue;
+			}
+			// put the answers to the factors back together as the Query's
+			Query q = dp.getQueryList().get(i);
+			FactorizedResult tResult = new FactorizedResult(new AlgebraPlan(q).getAttributes());
+			for(Query tFactor : tFactors){
+				tResult.addFactor(new AlgebraPlan(tFactor).getAttributes(), qeList.get(iNext++).getTuples());
+			}
+			AlgebraQueryEvaluator qe = new AlgebraQueryEvaluator(q, dp);
+			qe.setResultMode(tMode);
+			qe.setFactors(tResult);
+			qe.run();
 			sb.append(qe.toString());
 		}
 
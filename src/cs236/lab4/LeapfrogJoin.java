@@ -0,0 +1,309 @@
+/*
+ * LeapfrogJoin.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * LeapfrogJoin is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * LeapfrogJoin is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.Relation;
+import cs236.lab2.TrieRelation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Joins a whole Rule body at once with leapfrog triejoin, one variable at a time instead of one
+ * Atom at a time.
+ *
+ * Every Atom is read through a TrieRelation sorted on its constants first and then its
+ * variables in a fixed global order.  The values of the first variable are the intersection of
+ * its values in every Atom it shows up in; the iterators leapfrog over each other with seek()
+ * until they agree on a key, so the intersection costs about the size of the smallest list.
+ * For each common value the next variable is done the same way under it.
+ *
+ * Pairwise joins can build intermediate results far bigger than the answer on cyclic bodies
+ * (a triangle e(X,Y), e(Y,Z), e(Z,X) joins every path of length two first), but this never
+ * does more work than the worst-case size of the answer, so it is used for cyclic bodies.
+ * Subclasses decide what to do with each binding in bound().
+ * @author T. Jameson Little
+ */
+public abstract class LeapfrogJoin {
+	private CompiledRule rule;
+	private int[] variables;
+	// for every variable, the Atoms it shows up in
+	private int[][] atomsOf;
+	private TrieRelation.TrieIterator[] iterators;
+	private TrieRelation.TrieIterator[][] participants;
+	private Relation[] sources;
+
+	/**
+	 * Creates a join over a Rule's body.  Check canJoin() first.
+	 * @param tRule the Rule
+	 * @param tSources the Relation each body Atom reads, in body order (none of them null)
+	 */
+	public LeapfrogJoin(CompiledRule tRule, Relation[] tSources){
+		this.rule = tRule;
+		this.sources = tSources;
+		this.variables = variableOrder(tRule);
+		CompiledRule.Atom[] tBody = tRule.getBody();
+		this.atomsOf = new int[this.variables.length][];
+		for(int v = 0; v < this.variables.length; v++){
+			List<Integer> tAtoms = new ArrayList<Integer>();
+			for(int i = 0; i < tBody.length; i++){
+				if(column(tBody[i], this.variables[v]) >= 0){
+					tAtoms.add(i);
+				}
+			}
+			this.atomsOf[v] = new int[tAtoms.size()];
+			for(int j = 0; j < tAtoms.size(); j++){
+				this.atomsOf[v][j] = tAtoms.get(j);
+			}
+		}
+	}
+
+	/**
+	 * Whether a Rule's body can be joined this way, which needs every variable to show up at
+	 * most once per Atom and at least two Atoms.
+	 * @param tRule the Rule
+	 * @return true if a LeapfrogJoin can run it
+	 */
+	public static boolean canJoin(CompiledRule tRule){
+		CompiledRule.Atom[] tBody = tRule.getBody();
+		if(tBody.length < 2){
+			return false;
+		}
+		for(CompiledRule.Atom tAtom : tBody){
+			for(int i = 0; i < tAtom.getArity(); i++){
+				for(int j = i + 1; j < tAtom.getArity(); j++){
+					if(tAtom.getSlot(i) != CompiledRule.UNBOUND && tAtom.getSlot(i) == tAtom.getSlot(j)){
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether a Rule's body is cyclic, found with the GYO reduction: variables that only show up
+	 * in one Atom are dropped, then Atoms whose variables are all in another Atom, until
+	 * nothing changes.  An acyclic body reduces to nothing.
+	 * @param tRule the Rule
+	 * @return true if something is left
+	 */
+	public static boolean isCyclic(CompiledRule tRule){
+		CompiledRule.Atom[] tBody = tRule.getBody();
+		List<long[]> tEdges = new ArrayList<long[]>();
+		for(CompiledRule.Atom tAtom : tBody){
+			long iSlots = 0;
+			for(int i = 0; i < tAtom.getArity(); i++){
+				if(tAtom.getSlot(i) != CompiledRule.UNBOUND && tAtom.getSlot(i) < 64){
+					iSlots |= 1L << tAtom.getSlot(i);
+				}
+			}
+			tEdges.add(new long[]{iSlots});
+		}
+
+		boolean bChanged = true;
+		while(bChanged){
+			bChanged = false;
+			long iSeenOnce = 0;
+			long iSeenTwice = 0;
+			for(long[] tEdge : tEdges){
+				iSeenTwice |= iSeenOnce & tEdge[0];
+				iSeenOnce |= tEdge[0];
+			}
+			for(long[] tEdge : tEdges){
+				long iKept = tEdge[0] & iSeenTwice;
+				if(iKept != tEdge[0]){
+					tEdge[0] = iKept;
+					bChanged = true;
+				}
+			}
+			for(int i = 0; i < tEdges.size(); i++){
+				long iSlots = tEdges.get(i)[0];
+				for(int j = 0; j < tEdges.size(); j++){
+					if(i != j && (iSlots & ~tEdges.get(j)[0]) == 0){
+						tEdges.remove(i--);
+						bChanged = true;
+						break;
+					}
+				}
+			}
+		}
+		return tEdges.size() > 1 || (tEdges.size() == 1 && tEdges.get(0)[0] != 0);
+	}
+
+	/**
+	 * Gets the order the variables are bound in.
+	 * @return the slots
+	 */
+	public int[] getVariableOrder(){
+		return this.variables.clone();
+	}
+
+	/**
+	 * Runs the join, calling bound() once for every binding of the body's variables.
+	 * @param env the environment to bind the variables in (UNBOUND for all of them)
+	 */
+	public void run(int[] env){
+		CompiledRule.Atom[] tBody = this.rule.getBody();
+		this.iterators = new TrieRelation.TrieIterator[tBody.length];
+		for(int i = 0; i < tBody.length; i++){
+			this.iterators[i] = this.sources[i].getTrie(this.trieOrder(tBody[i])).iterator();
+			// the constants come first in the trie, so walk down to them now
+			for(int j = 0; j < tBody[i].getArity(); j++){
+				if(tBody[i].getSlot(j) != CompiledRule.UNBOUND){
+					continue;
+				}
+				TrieRelation.TrieIterator it = this.iterators[i];
+				it.open();
+				it.seek(tBody[i].getConstant(j));
+				if(it.atEnd() || it.key() != tBody[i].getConstant(j)){
+					return;
+				}
+			}
+		}
+		this.participants = new TrieRelation.TrieIterator[this.variables.length][];
+		for(int v = 0; v < this.variables.length; v++){
+			this.participants[v] = new TrieRelation.TrieIterator[this.atomsOf[v].length];
+			for(int j = 0; j < this.atomsOf[v].length; j++){
+				this.participants[v][j] = this.iterators[this.atomsOf[v][j]];
+			}
+		}
+		this.join(0, env);
+	}
+
+	/**
+	 * Called with every binding of the body's variables.
+	 * @param env the environment, with every body variable bound
+	 */
+	protected abstract void bound(int[] env);
+
+	private void join(int iDepth, int[] env){
+		if(iDepth == this.variables.length){
+			this.bound(env);
+			return;
+		}
+		TrieRelation.TrieIterator[] tIterators = this.participants[iDepth].clone();
+		for(TrieRelation.TrieIterator it : tIterators){
+			it.open();
+		}
+		this.leapfrog(iDepth, tIterators, env);
+		for(TrieRelation.TrieIterator it : tIterators){
+			it.up();
+		}
+		env[this.variables[iDepth]] = CompiledRule.UNBOUND;
+	}
+
+	// binds the variable to every key all the iterators have, in order
+	private void leapfrog(int iDepth, TrieRelation.TrieIterator[] tIterators, int[] env){
+		for(TrieRelation.TrieIterator it : tIterators){
+			if(it.atEnd()){
+				return;
+			}
+		}
+		sortByKey(tIterators);
+		int k = tIterators.length;
+		int p = 0;
+		int iMax = tIterators[k - 1].key();
+		while(true){
+			TrieRelation.TrieIterator it = tIterators[p];
+			if(it.key() == iMax){
+				env[this.variables[iDepth]] = iMax;
+				this.join(iDepth + 1, env);
+				it.next();
+			}else{
+				it.seek(iMax);
+			}
+			if(it.atEnd()){
+				return;
+			}
+			iMax = it.key();
+			p = (p + 1) % k;
+		}
+	}
+
+	private static void sortByKey(TrieRelation.TrieIterator[] tIterators){
+		for(int i = 1; i < tIterators.length; i++){
+			TrieRelation.TrieIterator it = tIterators[i];
+			int j = i - 1;
+			while(j >= 0 && tIterators[j].key() > it.key()){
+				tIterators[j + 1] = tIterators[j];
+				j--;
+			}
+			tIterators[j + 1] = it;
+		}
+	}
+
+	// the constant columns, then the variable columns in the global variable order
+	private int[] trieOrder(CompiledRule.Atom tAtom){
+		int[] tOrder = new int[tAtom.getArity()];
+		int iPos = 0;
+		for(int j = 0; j < tAtom.getArity(); j++){
+			if(tAtom.getSlot(j) == CompiledRule.UNBOUND){
+				tOrder[iPos++] = j;
+			}
+		}
+		for(int iSlot : this.variables){
+			int iColumn = column(tAtom, iSlot);
+			if(iColumn >= 0){
+				tOrder[iPos++] = iColumn;
+			}
+		}
+		return tOrder;
+	}
+
+	private static int column(CompiledRule.Atom tAtom, int iSlot){
+		for(int j = 0; j < tAtom.getArity(); j++){
+			if(tAtom.getSlot(j) == iSlot){
+				return j;
+			}
+		}
+		return -1;
+	}
+
+	// variables in more Atoms go first, since their intersections prune the most
+	private static int[] variableOrder(CompiledRule tRule){
+		final int[] tCounts = new int[tRule.getSlotCount()];
+		List<Integer> tSlots = new ArrayList<Integer>();
+		for(CompiledRule.Atom tAtom : tRule.getBody()){
+			for(int j = 0; j < tAtom.getArity(); j++){
+				int iSlot = tAtom.getSlot(j);
+				if(iSlot != CompiledRule.UNBOUND){
+					if(tCounts[iSlot]++ == 0){
+						tSlots.add(iSlot);
+					}
+				}
+			}
+		}
+		Integer[] tOrder = tSlots.toArray(new Integer[tSlots.size()]);
+		// a stable sort keeps the variables in the order they first show up otherwise
+		Arrays.sort(tOrder, new java.util.Comparator<Integer>(){
+			public int compare(Integer a, Integer b){
+				return tCounts[b] - tCounts[a];
+			}
+		});
+		int[] tResult = new int[tOrder.length];
+		for(int i = 0; i < tOrder.length; i++){
+			tResult[i] = tOrder[i];
+		}
+		return tResult;
+	}
+}
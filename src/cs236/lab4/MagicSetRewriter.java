@@ -0,0 +1,316 @@
+/*
+ * MagicSetRewriter.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * MagicSetRewriter is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MagicSetRewriter is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab1.TokenType;
+import cs236.lab2.FactCatalog;
+import cs236.lab2.Parameter;
+import cs236.lab2.Predicate;
+import cs236.lab2.Relation;
+import cs236.lab2.Rule;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rewrites the Rules for one Query so bottom-up evaluation only derives tuples the Query can use.
+ *
+ * First every derived predicate is adorned with which of its arguments are bound (b) or free (f)
+ * when it is reached from the Query, passing bindings from left to right through each body.  The
+ * adorned copy of a predicate, say ancestor_bf, only derives tuples whose bound arguments are in
+ * its magic set (magic_ancestor_bf).  The magic sets start with the constants in the Query and
+ * grow with magic Rules that pass the bindings on to the body predicates that need them.
+ *
+ * The new predicates have an underscore in their names, which the Tokenizer never lets into an
+ * identifier, so they can't clash with the program's own predicates.
+ * @author T. Jameson Little
+ */
+public class MagicSetRewriter {
+	private static final char BOUND = 'b';
+	private static final char FREE = 'f';
+
+	private List<Rule> rules;
+	private FactCatalog catalog;
+	private Set<String> derived;
+
+	/**
+	 * Creates a rewriter for the Rules of a DatalogProgram.
+	 * @param tRules the Rules (they aren't modified)
+	 * @param tCatalog the FactCatalog, used to find derived predicates that also have Facts
+	 */
+	public MagicSetRewriter(List<Rule> tRules, FactCatalog tCatalog){
+		this.rules = tRules;
+		this.catalog = tCatalog;
+		this.derived = new HashSet<String>();
+		for(Rule tRule : tRules){
+			this.derived.add(FactCatalog.relationKey(tRule.getValue(), tRule.size()));
+		}
+	}
+
+	/**
+	 * Rewrites the Rules for a Query.
+	 * @param tQuery the Query
+	 * @return the rewritten Rules, the seed of the Query's magic set and where to find the answers
+	 */
+	public MagicProgram rewrite(Predicate tQuery){
+		MagicProgram tProgram = new MagicProgram();
+		if(!this.isDerived(tQuery)){
+			// nothing to derive, the answers are all in the Facts
+			tProgram.answerName = tQuery.getValue();
+			return tProgram;
+		}
+
+		String sAdornment = adorn(tQuery, new HashSet<String>());
+		tProgram.answerName = adornedName(tQuery.getValue(), sAdornment);
+		tProgram.seed = magicAtom(tQuery, sAdornment);
+
+		// every goal is a predicate name and its adornment (which also gives its arity)
+		Set<String> tSeen = new HashSet<String>();
+		LinkedList<String[]> tWork = new LinkedList<String[]>();
+		tWork.add(new String[]{tQuery.getValue(), sAdornment});
+		tSeen.add(tProgram.answerName);
+		while(!tWork.isEmpty()){
+			String[] tGoal = tWork.removeFirst();
+			String sGoalAdornment = tGoal[1];
+			String sAdorned = adornedName(tGoal[0], sGoalAdornment);
+
+			Relation tFacts = this.catalog.getRelation(tGoal[0], sGoalAdornment.length());
+			if(tFacts != null && tFacts.size() > 0){
+				tProgram.rules.add(factRule(tGoal[0], sGoalAdornment));
+			}
+
+			for(Rule tRule : this.rules){
+				if(!tRule.getValue().equals(tGoal[0]) || tRule.size() != sGoalAdornment.length()){
+					continue;
+				}
+				Set<String> tBound = new HashSet<String>();
+				for(int i = 0; i < tRule.size(); i++){
+					if(sGoalAdornment.charAt(i) == BOUND && !tRule.get(i).isConstant()){
+						tBound.add(tRule.get(i).getName());
+					}
+				}
+
+				Rule tAdorned = new Rule(sAdorned, duplicateParameters(tRule));
+				List<Predicate> tPrefix = new ArrayList<Predicate>();
+				Predicate tMagicHead = magicAtom(tRule, sGoalAdornment);
+				if(tMagicHead != null){
+					unbindHeadOnly(tMagicHead, tRule);
+					tAdorned.addPredicate(tMagicHead);
+					tPrefix.add(tMagicHead);
+				}
+
+				for(Predicate tBody : tRule.getPredicateList()){
+					Predicate tNext;
+					if(this.isDerived(tBody)){
+						String sBodyAdornment = adorn(tBody, tBound);
+						tNext = rename(tBody, adornedName(tBody.getValue(), sBodyAdornment));
+						if(tSeen.add(tNext.getValue())){
+							tWork.add(new String[]{tBody.getValue(), sBodyAdornment});
+						}
+						Predicate tMagicBody = magicAtom(tBody, sBodyAdornment);
+						if(tMagicBody != null){
+							Rule tMagicRule = new Rule(tMagicBody.getValue(), tMagicBody);
+							for(Predicate tPred : tPrefix){
+								tMagicRule.addPredicate(tPred.duplicate());
+							}
+							tProgram.rules.add(tMagicRule);
+						}
+					}else{
+						tNext = tBody.duplicate();
+					}
+					tAdorned.addPredicate(tNext);
+					tPrefix.add(tNext);
+					for(Parameter p : tBody){
+						if(!p.isConstant()){
+							tBound.add(p.getName());
+						}
+					}
+				}
+				tProgram.rules.add(tAdorned);
+			}
+		}
+		return tProgram;
+	}
+
+	private boolean isDerived(Predicate tPredicate){
+		return this.derived.contains(FactCatalog.relationKey(tPredicate.getValue(), tPredicate.size()));
+	}
+
+	/**
+	 * Renames the variables of a Rule's magic atom that aren't in its body.  The magic set would
+	 * bind them to whatever the caller asked for, even constants outside the domain, when the
+	 * Rule says they are every value of the domain; renamed, they stay free in the head and are
+	 * filled from the domain like in the Rule itself.  The new names start with an underscore,
+	 * so they can't clash with the Rule's variables.
+	 */
+	private static void unbindHeadOnly(Predicate tMagic, Rule tRule){
+		Set<String> tBody = new HashSet<String>();
+		for(Predicate tPred : tRule.getPredicateList()){
+			for(Parameter p : tPred){
+				if(!p.isConstant()){
+					tBody.add(p.getName());
+				}
+			}
+		}
+		for(int i = 0; i < tMagic.size(); i++){
+			Parameter p = tMagic.get(i);
+			if(!p.isConstant() && !tBody.contains(p.getName())){
+				tMagic.set(i, new Parameter("_" + i, TokenType.IDENT));
+			}
+		}
+	}
+
+	/**
+	 * Copies the Facts of a derived predicate into its adorned version.
+	 */
+	private static Rule factRule(String sName, String sAdornment){
+		List<Parameter> tParams = new ArrayList<Parameter>();
+		for(int i = 0; i < sAdornment.length(); i++){
+			tParams.add(new Parameter("V" + i, TokenType.IDENT));
+		}
+		Predicate tBody = new Predicate(sName);
+		tBody.addAll(tParams);
+		Rule tRule = new Rule(adornedName(sName, sAdornment), duplicateParameters(tBody));
+		Predicate tMagic = magicAtom(tBody, sAdornment);
+		if(tMagic != null){
+			tRule.addPredicate(tMagic);
+		}
+		tRule.addPredicate(tBody);
+		return tRule;
+	}
+
+	/**
+	 * Works out the adornment of a Predicate: b for constants and variables that are already
+	 * bound, f for everything else.
+	 */
+	private static String adorn(Predicate tPredicate, Set<String> tBound){
+		StringBuilder sb = new StringBuilder();
+		for(Parameter p : tPredicate){
+			sb.append(p.isConstant() || tBound.contains(p.getName()) ? BOUND : FREE);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Builds the magic atom for a Predicate: the magic predicate applied to its bound arguments.
+	 * @return the atom, or null if nothing is bound (there is no magic set to restrict with)
+	 */
+	private static Predicate magicAtom(Predicate tPredicate, String sAdornment){
+		if(sAdornment.indexOf(BOUND) < 0){
+			return null;
+		}
+		Predicate tMagic = new Predicate(magicName(tPredicate.getValue(), sAdornment));
+		for(int i = 0; i < tPredicate.size(); i++){
+			if(sAdornment.charAt(i) == BOUND){
+				tMagic.add(tPredicate.get(i).duplicate());
+			}
+		}
+		return tMagic;
+	}
+
+	private static Predicate rename(Predicate tPredicate, String sName){
+		Predicate tRenamed = new Predicate(sName);
+		tRenamed.addAll(duplicateParameters(tPredicate));
+		return tRenamed;
+	}
+
+	private static List<Parameter> duplicateParameters(Predicate tPredicate){
+		List<Parameter> tParams = new ArrayList<Parameter>(tPredicate.size());
+		for(Parameter p : tPredicate){
+			tParams.add(p.duplicate());
+		}
+		return tParams;
+	}
+
+	/**
+	 * Gets the name of the adorned version of a predicate, for example ancestor_bf.
+	 * @param sName the name of the predicate
+	 * @param sAdornment b or f for every argument
+	 * @return the adorned name
+	 */
+	public static String adornedName(String sName, String sAdornment){
+		return sName + "_" + sAdornment;
+	}
+
+	/**
+	 * Gets the name of the magic set of an adorned predicate, for example magic_ancestor_bf.
+	 * @param sName the name of the predicate
+	 * @param sAdornment b or f for every argument
+	 * @return the name of the magic predicate
+	 */
+	public static String magicName(String sName, String sAdornment){
+		return "magic_" + adornedName(sName, sAdornment);
+	}
+
+	/**
+	 * The Rules rewritten for one Query.
+	 */
+	public static class MagicProgram {
+		private List<Rule> rules = new ArrayList<Rule>();
+		private Predicate seed;
+		private String answerName;
+
+		/**
+		 * Gets the rewritten Rules.
+		 * @return the adorned and magic Rules
+		 */
+		public List<Rule> getRules(){
+			return this.rules;
+		}
+
+		/**
+		 * Gets the Fact that starts the Query's magic set.
+		 * @return the magic atom holding the Query's constants, or null if it has none
+		 */
+		public Predicate getSeed(){
+			return this.seed;
+		}
+
+		/**
+		 * Gets the name of the predicate that holds the answers to the Query.
+		 * @return the adorned name of the Query's predicate (it has the same columns)
+		 */
+		public String getAnswerName(){
+			return this.answerName;
+		}
+
+		/**
+		 * Formats the rewritten program.
+		 * @return the seed and every Rule, one per line
+		 */
+		@Override
+		public String toString(){
+			final String NEWLINE = System.getProperty("line.separator");
+
+			StringBuilder sb = new StringBuilder();
+			if(this.seed != null){
+				sb.append("  ").append(this.seed.toString()).append('.').append(NEWLINE);
+			}
+			for(Rule tRule : this.rules){
+				sb.append("  ").append(tRule.toString()).append(NEWLINE);
+			}
+			return sb.toString();
+		}
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * QueryEvaluatorWithFixpoint.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * QueryEvaluatorWithFixpoint is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * QueryEvaluatorWithFixpoint is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.DatalogProgram;
+import cs236.lab2.FactCatalog;
+import cs236.lab2.Predicate;
+import cs236.lab2.Query;
+import cs236.lab3.AlgebraQueryEvaluator;
+import cs236.lab3.QueryBatch;
+import java.util.List;
+
+/**
+ * Evaluates a Query bottom-up: a SemiNaiveEvaluator runs the Rules to their fixpoint, then the
+ * answers are read from the derived Relations like Facts.
+ *
+ * The fixpoint is worked out when the Query runs, so cancel() stops it too, and the tuples it
+ * derived are taken out again.  Evaluators can share a SemiNaiveEvaluator; the first one to
+ * run works out the fixpoint for all of them, and if it is cancelled the next one starts over.
+ * With the magic-sets rewriting each Query has its own Rules, and the seed of its magic set is
+ * added to the Facts first.
+ * @author T. Jameson Little
+ */
+public class QueryEvaluatorWithFixpoint extends AlgebraQueryEvaluator {
+	private SemiNaiveEvaluator fixpoint;
+	private Predicate seed;
+	private SharedAnswers shared;
+	private int index;
+
+	/**
+	 * Creates an evaluator that reads the answers from the Relation of the Query's predicate.
+	 * @param tQuery the Query to be evaluated
+	 * @param dp the DatalogProgram to evaluate the query against
+	 * @param tFixpoint the evaluator of dp's Rules, which may be shared with other Queries
+	 */
+	public QueryEvaluatorWithFixpoint(Query tQuery, DatalogProgram dp, SemiNaiveEvaluator tFixpoint){
+		this(tQuery, dp, tFixpoint, tQuery.getValue(), null);
+	}
+
+	/**
+	 * Creates an evaluator for Rules rewritten for the Query, which derive its answers into
+	 * another Relation with the same columns.
+	 * @param tQuery the Query to be evaluated
+	 * @param dp the DatalogProgram to evaluate the query against
+	 * @param tFixpoint the evaluator of the rewritten Rules
+	 * @param sRelation the name of the Relation holding the answers
+	 * @param tSeed a Fact to add before the Rules run, or null
+	 */
+	public QueryEvaluatorWithFixpoint(Query tQuery, DatalogProgram dp, SemiNaiveEvaluator tFixpoint, String sRelation, Predicate tSeed){
+		super(tQuery, dp, sRelation);
+		this.fixpoint = tFixpoint;
+		this.seed = tSeed;
+	}
+
+	/**
+	 * Takes the answers from a batch of Queries read together once the fixpoint is done,
+	 * instead of reading them alone.  Call it before run().
+	 * @param tShared the answers of the batch
+	 * @param iQuery the position of this evaluator's Query in the batch
+	 */
+	public void setSharedAnswers(SharedAnswers tShared, int iQuery){
+		this.shared = tShared;
+		this.index = iQuery;
+	}
+
+	/**
+	 * Works out the fixpoint, unless it is already done, and then answers the Query from it.
+	 * If it is cancelled, nothing derived is left and the answers only come from the Facts.
+	 * @param tQuery the Query to evaluate (a duplicate, it gets modified)
+	 * @return the List of Predicates that matched
+	 */
+	@Override
+	protected List<Predicate> evaluateQuery(Predicate tQuery){
+		if(this.seed != null){
+			this.getFactCatalog().addFact(this.seed);
+		}
+		if(this.fixpoint.evaluate(this.getCancelled()) && this.shared != null){
+			this.shared.give(this, this.index, this.getFactCatalog());
+		}
+		return super.evaluateQuery(tQuery);
+	}
+
+	/**
+	 * The answers to every Query of a QueryBatch, read with shared scans by the first evaluator
+	 * that needs them.
+	 */
+	public static class SharedAnswers {
+		private QueryBatch batch;
+		private boolean counted;
+		private List<List<int[]>> answers;
+		private long[] counts;
+
+		/**
+		 * Creates the answers of a batch, which are read the first time they are needed.
+		 * @param tBatch the Queries
+		 * @param bCounted true to only count the answers, for ResultMode.COUNT
+		 */
+		public SharedAnswers(QueryBatch tBatch, boolean bCounted){
+			this.batch = tBatch;
+			this.counted = bCounted;
+		}
+
+		// gives an evaluator the answers to its Query, reading everyone's the first time
+		private void give(AlgebraQueryEvaluator qe, int iQuery, FactCatalog tCatalog){
+			if(this.counted){
+				if(this.counts == null){
+					this.counts = this.batch.count(tCatalog);
+				}
+				qe.setCount(this.counts[iQuery]);
+			}else{
+				if(this.answers == null){
+					this.answers = this.batch.execute(tCatalog);
+				}
+				qe.setTuples(this.answers.get(iQuery));
+			}
+		}
+	}
+}
@@ -21,127 +21,64 @@
 
 package cs236.lab4;
 
-import cs236.lab1.TokenType;
 import cs236.lab2.DatalogProgram;
-import cs236.lab2.Parameter;
 import cs236.lab2.Predicate;
 import cs236.lab2.Query;
+import cs236.lab2.Relation;
 import cs236.lab2.Rule;
-import cs236.lab3.QueryEvaluator;
+import cs236.lab3.AlgebraQueryEvaluator;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
 
 /**
+ * Evaluates a Query top-down from the Rules.
  *
+ * The answers come from a TabledEvaluator, which works out every answer to the Query's subgoal
+ * (and the subgoals it calls) once and keeps them.  Evaluators that share a TabledEvaluator
+ * reuse each other's tables, so a subgoal that shows up in several Queries is only solved once.
  * @author T. Jameson Little
  */
-public class QueryEvaluatorWithRules extends QueryEvaluator {
-	// this way we don't have to evaluate the same rules over and over again
-	private SortedSet<Rule> truePredicates = new TreeSet<Rule>();
-	private SortedSet<Rule> failedPredicate = new TreeSet<Rule>();
-	private SortedSet<Rule> pendingRules = new TreeSet<Rule>();
+public class QueryEvaluatorWithRules extends AlgebraQueryEvaluator {
+	private TabledEvaluator tables;
+
 	/**
-	 * Calls the super constructor in QueryEvaluator.
+	 * Creates an evaluator with its own tables.
 	 * @param tQuery the Query to be evaluated
 	 * @param dp the DatalogProgram to evaluate the query against
 	 */
 	public QueryEvaluatorWithRules(Query tQuery, DatalogProgram dp){
+		this(tQuery, dp, new TabledEvaluator(dp.getFactCatalog(), dp.getRuleList()));
+	}
+
+	/**
+	 * Creates an evaluator that shares its tables with other Queries of the same DatalogProgram.
+	 * @param tQuery the Query to be evaluated
+	 * @param dp the DatalogProgram to evaluate the query against
+	 * @param tTables the tables of answers built from dp's Rules
+	 */
+	public QueryEvaluatorWithRules(Query tQuery, DatalogProgram dp, TabledEvaluator tTables){
 		super(tQuery, dp);
+		this.tables = tTables;
 	}
+
 	/**
 	 * Evaluates a query by using the rules.  This is over-ridden from QueryEvaluator.
-	 * @param tQuery the Query to validate
-	 * @return whether we a Rule exists that validates the Query
+	 * @param tQuery the Query to validate (identifiers with a value count as bound)
+	 * @return whether the Rules or the Facts have an answer that matches the Query
 	 */
 	@Override
 	public boolean validateUsingRules(Predicate tQuery){
-		for(Rule tRule : this.getRuleList()){
-			// duplicate the Rule so we don't do anything stupid
-			Rule tDuplicate = tRule.duplicate();
-			// check to see if we actually need to process this predicate
-			if(unify(tQuery, tDuplicate)){// this will assign values to all identifiers in the Rule
-				tDuplicate.propagateBoundVariables();
-
-				if(this.failedPredicate.contains(tDuplicate)){
-					return false;
-				}else if(this.truePredicates.contains(tDuplicate)){
-					return true;
-				}else if(this.pendingRules.contains(tDuplicate)){
-					return false;
-				}
-
-				this.pendingRules.add(tDuplicate.duplicate());
-				
-				// now let's worry about the predicates
-				SortedSet<Parameter> freeVariables = tDuplicate.getSetOfUnboundParameters();
-				Parameter[] tParamArray = freeVariables.toArray(new Parameter[freeVariables.size()]);
-				if(allResolve(0, tParamArray, tDuplicate.getPredicateList())){
-					this.truePredicates.add(tDuplicate.duplicate());
-					return true;
-				}else{
-					this.failedPredicate.add(tDuplicate.duplicate());
-				}
-			}
-		}
-		return false;
-	}
-
-	private boolean allResolve(int iPos, Parameter[] freeVars, List<Predicate> predList){
-		if(iPos == freeVars.length){
-			// add it to some kind of a list
-			boolean bPass = true;
-			for(Predicate predicate : predList){
-				for(Parameter p : freeVars){
-					predicate.bind(p.getName(), p.getValue());
-				}
-				if(!factExists(predicate) && !validateUsingRules(predicate)){
-					bPass = false;
-					break;
-				}
-
-				// it isn't really necessary to set all of these to null, that will just take time
-//				for(Parameter p : freeVars){
-//					predicate.bind(p.getName(), null);
-//				}
-			}
-			return bPass;
-		}else{
-			for(String s : this.getDomain()){
-				Parameter tQueryParam = freeVars[iPos];
-				tQueryParam.setValue(s);
-				if(allResolve(iPos + 1, freeVars, predList)){
-					return true;
-				}
-			}
-		}
-		return false;
+		return this.tables.solve(tQuery).size() > 0;
 	}
 
 	/**
-	 * Unifies a Predicate with a Rule.  If it fails, then it will return false.
-	 * @param tQuery the Query to unify (won't be modified)
-	 * @param tRule the Rule to unify (will be modified)
-	 * @return true if successful, false if unsuccessful
+	 * Gets the answers to a Query from the tables.  If the Query is cancelled while they are
+	 * being worked out, only the answers found by then are returned.
+	 * @param tQuery the Query being evaluated
+	 * @return every tuple of the Query's predicate that matches its constants
 	 */
-	private boolean unify(Predicate tQuery, Rule tRule){
-		if(tQuery.size() == tRule.size() && tQuery.getValue().equals(tRule.getValue())){
-			for(int i = 0; i < tQuery.size(); i++){
-				Parameter tRuleParam = tRule.get(i);
-				Parameter tQueryParam = tQuery.get(i);
-				// if the Rule parameter is a variable, assign the Query parameter's value
-				if(tRuleParam.getTokenType() == TokenType.IDENT){
-					// it doesn't matter whether the Query parameter is a constant or a variable
-					tRuleParam.setValue(tQueryParam.getValue());
-				}else if(tRuleParam.getTokenType() == TokenType.STRING &&
-						!tRuleParam.getValue().equals(tQueryParam.getValue())){
-					// if both are constants, but they are not equal, no unification possible
-					return false;
-				}
-			}
-			return true;
-		}
-		return false;
+	@Override
+	protected Relation getAnswers(Predicate tQuery){
+		return this.tables.solve(tQuery, this.getCancelled());
 	}
 
 	/**
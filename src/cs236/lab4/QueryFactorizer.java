@@ -0,0 +1,290 @@
+/*
+ * QueryFactorizer.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * QueryFactorizer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * QueryFactorizer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.DatalogProgram;
+import cs236.lab2.FactCatalog;
+import cs236.lab2.Parameter;
+import cs236.lab2.Predicate;
+import cs236.lab2.Query;
+import cs236.lab2.Relation;
+import cs236.lab2.Rule;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Splits Queries whose answers are a product into one Query per factor, before the Rules are
+ * evaluated, so the product itself is never derived.
+ *
+ * A predicate is split when it has no Facts, exactly one Rule, isn't recursive and isn't used in
+ * any body.  The Atoms of the body are grouped by the variables they share; if every group has a
+ * variable of the head and there are at least two, the answers are every combination of the
+ * answers of the groups.  pair(X,Y) :- a(X),b(Y) becomes pair_f1(X) :- a(X) and
+ * pair_f2(Y) :- b(Y), and its Rule is dropped.  A Query on it becomes a Query on each factor with
+ * its own Parameters in those columns, unless one of its variables shows up in two groups, in
+ * which case nothing is split for that predicate.
+ * @author T. Jameson Little
+ */
+public class QueryFactorizer {
+	private DatalogProgram program;
+	private List<List<Query>> factors;
+
+	/**
+	 * Creates a factorizer for a DatalogProgram that has been parsed.
+	 * @param dp the DatalogProgram, whose Rules factorize() changes
+	 */
+	public QueryFactorizer(DatalogProgram dp){
+		this.program = dp;
+	}
+
+	/**
+	 * Replaces the Rules of the predicates that split with a Rule per factor.
+	 */
+	public void factorize(){
+		List<Rule> tRules = this.program.getRuleList();
+		List<Query> tQueries = this.program.getQueryList();
+		this.factors = new ArrayList<List<Query>>();
+
+		Map<String, List<Rule>> tByHead = new HashMap<String, List<Rule>>();
+		Set<String> tUsed = new HashSet<String>();
+		for(Rule tRule : tRules){
+			List<Rule> tList = tByHead.get(key(tRule));
+			if(tList == null){
+				tList = new ArrayList<Rule>();
+				tByHead.put(key(tRule), tList);
+			}
+			tList.add(tRule);
+			for(Predicate tAtom : tRule.getPredicateList()){
+				tUsed.add(key(tAtom));
+			}
+		}
+		Set<String> tRecursive = new HashSet<String>();
+		for(DependencyGraph.Stratum tStratum : new DependencyGraph(tRules).getStrata()){
+			if(tStratum.isRecursive()){
+				tRecursive.addAll(tStratum.getPredicates());
+			}
+		}
+
+		// the group of each head column of the predicates that split
+		Map<String, int[]> tSplits = new LinkedHashMap<String, int[]>();
+		Set<String> tRejected = new HashSet<String>();
+		for(Query q : tQueries){
+			String sKey = key(q);
+			if(tRejected.contains(sKey) || tSplits.containsKey(sKey)){
+				continue;
+			}
+			List<Rule> tDefinition = tByHead.get(sKey);
+			Relation tFacts = this.program.getFactCatalog().getRelation(q.getValue(), q.size());
+			int[] tGroups = null;
+			if(tDefinition != null && tDefinition.size() == 1 && !tUsed.contains(sKey) && !tRecursive.contains(sKey)
+					&& (tFacts == null || tFacts.size() == 0)){
+				tGroups = groups(tDefinition.get(0));
+			}
+			if(tGroups == null){
+				tRejected.add(sKey);
+			}else{
+				tSplits.put(sKey, tGroups);
+			}
+		}
+		// every Query on a predicate has to split, or it is derived after all
+		for(Query q : tQueries){
+			int[] tGroups = tSplits.get(key(q));
+			if(tGroups != null && !splits(q, tGroups)){
+				tSplits.remove(key(q));
+			}
+		}
+
+		for(Map.Entry<String, int[]> tEntry : tSplits.entrySet()){
+			Rule tRule = tByHead.get(tEntry.getKey()).get(0);
+			// Rule.equals() is never true, so it is found by identity
+			for(int r = 0; r < tRules.size(); r++){
+				if(tRules.get(r) == tRule){
+					tRules.remove(r);
+					break;
+				}
+			}
+			tRules.addAll(factorRules(tRule, tEntry.getValue()));
+		}
+		for(Query q : tQueries){
+			int[] tGroups = tSplits.get(key(q));
+			this.factors.add(tGroups == null ? null : factorQueries(q, tGroups));
+		}
+	}
+
+	/**
+	 * Gets the Queries that answer a Query one factor at a time.
+	 * @param iQuery the position of the Query in the DatalogProgram
+	 * @return a Query per factor, in the order of the first variable of each, or null if the
+	 * Query isn't split
+	 */
+	public List<Query> getFactors(int iQuery){
+		return this.factors.get(iQuery);
+	}
+
+	/**
+	 * Gets the Queries to evaluate in place of the DatalogProgram's.
+	 * @return the Queries that aren't split, and the factors of the ones that are, in order
+	 */
+	public List<Query> getQueries(){
+		List<Query> tQueries = new ArrayList<Query>();
+		for(int i = 0; i < this.factors.size(); i++){
+			if(this.factors.get(i) == null){
+				tQueries.add(this.program.getQueryList().get(i));
+			}else{
+				tQueries.addAll(this.factors.get(i));
+			}
+		}
+		return tQueries;
+	}
+
+	/**
+	 * Groups the body Atoms of a Rule by the variables they share.
+	 * @return the group of each head column and then of each body Atom, numbered in the order of
+	 * the first head column in each, or null if the Rule doesn't split
+	 */
+	private static int[] groups(Rule tRule){
+		List<Predicate> tBody = tRule.getPredicateList();
+		int[] tParent = new int[tBody.size()];
+		Map<String, Integer> tAtomOf = new HashMap<String, Integer>();
+		for(int a = 0; a < tBody.size(); a++){
+			tParent[a] = a;
+			for(Parameter p : tBody.get(a)){
+				if(p.isConstant()){
+					continue;
+				}
+				Integer iOther = tAtomOf.get(p.getName());
+				if(iOther == null){
+					tAtomOf.put(p.getName(), a);
+				}else{
+					tParent[find(tParent, a)] = find(tParent, iOther);
+				}
+			}
+		}
+
+		// the head has to be distinct variables that are all in the body
+		int[] tGroups = new int[tRule.size() + tBody.size()];
+		Map<Integer, Integer> tNumbers = new HashMap<Integer, Integer>();
+		Set<String> tNames = new HashSet<String>();
+		for(int i = 0; i < tRule.size(); i++){
+			Parameter p = tRule.get(i);
+			if(p.isConstant() || !tNames.add(p.getName()) || !tAtomOf.containsKey(p.getName())){
+				return null;
+			}
+			int iRoot = find(tParent, tAtomOf.get(p.getName()));
+			if(!tNumbers.containsKey(iRoot)){
+				tNumbers.put(iRoot, tNumbers.size());
+			}
+			tGroups[i] = tNumbers.get(iRoot);
+		}
+		// a group without a head variable would only be a guard
+		for(int a = 0; a < tBody.size(); a++){
+			Integer iGroup = tNumbers.get(find(tParent, a));
+			if(iGroup == null){
+				return null;
+			}
+			tGroups[tRule.size() + a] = iGroup;
+		}
+		return tNumbers.size() < 2 ? null : tGroups;
+	}
+
+	private static int find(int[] tParent, int a){
+		while(tParent[a] != a){
+			tParent[a] = tParent[tParent[a]];
+			a = tParent[a];
+		}
+		return a;
+	}
+
+	// whether no variable of the Query is in two groups
+	private static boolean splits(Query q, int[] tGroups){
+		Map<String, Integer> tGroupOf = new HashMap<String, Integer>();
+		for(int i = 0; i < q.size(); i++){
+			Parameter p = q.get(i);
+			if(p.isConstant()){
+				continue;
+			}
+			Integer iGroup = tGroupOf.put(p.getName(), tGroups[i]);
+			if(iGroup != null && iGroup != tGroups[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<Rule> factorRules(Rule tRule, int[] tGroups){
+		List<Rule> tFactors = new ArrayList<Rule>();
+		List<Predicate> tBody = tRule.getPredicateList();
+		for(int g = 0; g < count(tRule, tGroups); g++){
+			List<Parameter> tHead = new ArrayList<Parameter>();
+			for(int i = 0; i < tRule.size(); i++){
+				if(tGroups[i] == g){
+					tHead.add(tRule.get(i).duplicate());
+				}
+			}
+			Rule tFactor = new Rule(factorName(tRule.getValue(), g), tHead);
+			for(int a = 0; a < tBody.size(); a++){
+				if(tGroups[tRule.size() + a] == g){
+					tFactor.addPredicate(tBody.get(a).duplicate());
+				}
+			}
+			tFactors.add(tFactor);
+		}
+		return tFactors;
+	}
+
+	private static List<Query> factorQueries(Query q, int[] tGroups){
+		List<Query> tQueries = new ArrayList<Query>();
+		for(int g = 0; g < count(q, tGroups); g++){
+			List<Parameter> tParams = new ArrayList<Parameter>();
+			for(int i = 0; i < q.size(); i++){
+				if(tGroups[i] == g){
+					tParams.add(q.get(i).duplicate());
+				}
+			}
+			tQueries.add(new Query(factorName(q.getValue(), g), tParams));
+		}
+		return tQueries;
+	}
+
+	// the number of groups of a predicate's head columns
+	private static int count(Predicate tHead, int[] tGroups){
+		int iCount = 0;
+		for(int i = 0; i < tHead.size(); i++){
+			iCount = Math.max(iCount, tGroups[i] + 1);
+		}
+		return iCount;
+	}
+
+	// the underscore keeps it from clashing with the program's own predicates
+	private static String factorName(String sName, int iGroup){
+		return sName + "_f" + (iGroup + 1);
+	}
+
+	private static String key(Predicate tPredicate){
+		return FactCatalog.relationKey(tPredicate.getValue(), tPredicate.size());
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * QueryPruner.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * QueryPruner is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * QueryPruner is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.DatalogProgram;
+import cs236.lab2.Fact;
+import cs236.lab2.FactCatalog;
+import cs236.lab2.Predicate;
+import cs236.lab2.Query;
+import cs236.lab2.Relation;
+import cs236.lab2.Rule;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Drops the Rules and Facts a DatalogProgram's Queries can never use, before it is evaluated.
+ *
+ * First the Rules that can never fire are dropped: the ones with a body Atom whose predicate has
+ * no Facts and no Rules left.  Then the predicates the Queries reach are found by walking back
+ * from each Query's predicate through the bodies of the Rules for it.  Rules for any other
+ * predicate are dropped, and so are their Relations and Facts, so the memory goes with them.
+ * @author T. Jameson Little
+ */
+public class QueryPruner {
+	private DatalogProgram program;
+
+	// what was dropped from each predicate: Rules that can't fire, unreachable Rules and Facts
+	private Map<String, int[]> pruned;
+	private int rulesBefore;
+	private int unfireable;
+	private int unreachable;
+	private int relations;
+	private int facts;
+
+	/**
+	 * Creates a pruner for a DatalogProgram that has been parsed.
+	 * @param dp the DatalogProgram, which prune() changes
+	 */
+	public QueryPruner(DatalogProgram dp){
+		this.program = dp;
+		this.pruned = new LinkedHashMap<String, int[]>();
+	}
+
+	/**
+	 * Drops the Rules, Relations and Facts the Queries can't use from the DatalogProgram.
+	 */
+	public void prune(){
+		FactCatalog tCatalog = this.program.getFactCatalog();
+		List<Rule> tRules = new ArrayList<Rule>(this.program.getRuleList());
+		this.rulesBefore = tRules.size();
+
+		Map<String, List<Integer>> tByHead = new HashMap<String, List<Integer>>();
+		Map<String, List<Integer>> tUsers = new HashMap<String, List<Integer>>();
+		for(int r = 0; r < tRules.size(); r++){
+			add(tByHead, key(tRules.get(r)), r);
+			for(Predicate tAtom : tRules.get(r).getPredicateList()){
+				add(tUsers, key(tAtom), r);
+			}
+		}
+
+		// a Rule that can't fire can make the Rules that use its head unable to fire too
+		boolean[] tGone = new boolean[tRules.size()];
+		Map<String, Integer> tLeft = new HashMap<String, Integer>();
+		for(Map.Entry<String, List<Integer>> tEntry : tByHead.entrySet()){
+			tLeft.put(tEntry.getKey(), tEntry.getValue().size());
+		}
+		LinkedList<Integer> tCheck = new LinkedList<Integer>();
+		for(int r = 0; r < tRules.size(); r++){
+			tCheck.add(r);
+		}
+		while(!tCheck.isEmpty()){
+			int r = tCheck.removeFirst();
+			if(tGone[r] || !this.cantFire(tRules.get(r), tLeft)){
+				continue;
+			}
+			tGone[r] = true;
+			String sHead = key(tRules.get(r));
+			this.count(sHead)[0]++;
+			this.unfireable++;
+			tLeft.put(sHead, tLeft.get(sHead) - 1);
+			if(tLeft.get(sHead) == 0 && tUsers.containsKey(sHead)){
+				tCheck.addAll(tUsers.get(sHead));
+			}
+		}
+
+		Set<String> tLive = new HashSet<String>();
+		LinkedList<String> tWork = new LinkedList<String>();
+		for(Query q : this.program.getQueryList()){
+			if(tLive.add(key(q))){
+				tWork.add(key(q));
+			}
+		}
+		while(!tWork.isEmpty()){
+			List<Integer> tHeadRules = tByHead.get(tWork.removeFirst());
+			if(tHeadRules == null){
+				continue;
+			}
+			for(int r : tHeadRules){
+				if(tGone[r]){
+					continue;
+				}
+				for(Predicate tAtom : tRules.get(r).getPredicateList()){
+					if(tLive.add(key(tAtom))){
+						tWork.add(key(tAtom));
+					}
+				}
+			}
+		}
+
+		List<Rule> tKept = new ArrayList<Rule>();
+		for(int r = 0; r < tRules.size(); r++){
+			Rule tRule = tRules.get(r);
+			if(tGone[r]){
+				continue;
+			}else if(tLive.contains(key(tRule))){
+				tKept.add(tRule);
+			}else{
+				this.count(key(tRule))[1]++;
+				this.unreachable++;
+			}
+		}
+		this.program.getRuleList().clear();
+		this.program.getRuleList().addAll(tKept);
+
+		for(Relation tRelation : new ArrayList<Relation>(tCatalog.getRelations())){
+			String sKey = FactCatalog.relationKey(tRelation.getName(), tRelation.getArity());
+			if(!tLive.contains(sKey)){
+				tCatalog.removeRelation(tRelation.getName(), tRelation.getArity());
+				this.relations++;
+			}
+		}
+		List<Fact> tFacts = new ArrayList<Fact>();
+		for(Fact tFact : this.program.getFactList()){
+			if(tLive.contains(key(tFact))){
+				tFacts.add(tFact);
+			}else{
+				this.count(key(tFact))[2]++;
+				this.facts++;
+			}
+		}
+		this.program.getFactList().clear();
+		this.program.getFactList().addAll(tFacts);
+	}
+
+	/**
+	 * Gets what was pruned from each predicate, and the totals.
+	 * @return a formatted report
+	 */
+	public String getReport(){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Pruned(%d):", this.pruned.size())).append(NEWLINE);
+		for(Map.Entry<String, int[]> tEntry : this.pruned.entrySet()){
+			int[] tCounts = tEntry.getValue();
+			sb.append(String.format("  %s: %d rules can't fire, %d rules unreachable, %d facts",
+					tEntry.getKey(), tCounts[0], tCounts[1], tCounts[2])).append(NEWLINE);
+		}
+		sb.append(String.format("Kept %d of %d rules; dropped %d that can't fire, %d unreachable, %d relations and %d facts",
+				this.rulesBefore - this.unfireable - this.unreachable, this.rulesBefore,
+				this.unfireable, this.unreachable, this.relations, this.facts)).append(NEWLINE);
+		return sb.toString();
+	}
+
+	// a body Atom whose predicate has no Facts and no Rules left
+	private boolean cantFire(Rule tRule, Map<String, Integer> tLeft){
+		FactCatalog tCatalog = this.program.getFactCatalog();
+		for(Predicate tAtom : tRule.getPredicateList()){
+			Integer iLeft = tLeft.get(key(tAtom));
+			Relation tFacts = tCatalog.getRelation(tAtom.getValue(), tAtom.size());
+			if((iLeft == null || iLeft == 0) && (tFacts == null || tFacts.size() == 0)){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static void add(Map<String, List<Integer>> tIndex, String sKey, int iRule){
+		List<Integer> tList = tIndex.get(sKey);
+		if(tList == null){
+			tList = new ArrayList<Integer>();
+			tIndex.put(sKey, tList);
+		}
+		tList.add(iRule);
+	}
+
+	private int[] count(String sKey){
+		int[] tCounts = this.pruned.get(sKey);
+		if(tCounts == null){
+			tCounts = new int[3];
+			this.pruned.put(sKey, tCounts);
+		}
+		return tCounts;
+	}
+
+	private static String key(Predicate tPredicate){
+		return FactCatalog.relationKey(tPredicate.getValue(), tPredicate.size());
+	}
+}
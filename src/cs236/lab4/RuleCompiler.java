@@ -0,0 +1,505 @@
+/*
+ * RuleCompiler.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * RuleCompiler is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RuleCompiler is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.IntList;
+import cs236.lab2.Relation;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/**
+ * Compiles hot Rules, with the order the JoinPlanner picked, into Java classes that join their
+ * body without looking anything up about the Rule while they run.
+ *
+ * The class for a Rule is written out as Java source with one nested loop per body Atom, in the
+ * planned order, and every column, slot and constant written in as a literal: a Lookup checks a
+ * tuple whose columns are all bound, a Scan reads every row when none of its variables are bound
+ * yet, and a Probe reads the rows of an index on the bound columns.  The source is compiled in
+ * memory with the system Java compiler and loaded by a class loader of this compiler's own, so
+ * the JIT sees a loop nest it can inline and unroll instead of the interpreted joins' loops over
+ * arrays that describe the Rule.
+ *
+ * Starting the compiler takes about a second and each class tens of milliseconds more, while
+ * the joins of most Rules spend their time hashing the tuples they derive rather than in the
+ * loops, so compiling is off unless it is asked for.  Even then a Rule is only compiled once it
+ * has been joined HOT_THRESHOLD times with the same delta Atom and those joins read at least
+ * HOT_ROWS rows between them.  Until then, when compiling is off, or when there is no Java
+ * compiler to compile with (a JRE without one), the interpreted joins run it.  With checking
+ * turned on every Rule is compiled the first time it is joined, and the interpreted join is run
+ * as well and the answers are compared.
+ * @author T. Jameson Little
+ */
+public class RuleCompiler {
+	/**
+	 * The number of times a Rule is joined before it is compiled.
+	 */
+	public static final int HOT_THRESHOLD = 3;
+	/**
+	 * The number of rows the body Relations of a Rule have to add up to, over its joins, before
+	 * it is compiled.
+	 */
+	public static final long HOT_ROWS = 1000000;
+
+	// the package of the generated classes, which is only ever defined by a Loader
+	private static final String PACKAGE = "cs236.lab4.compiled";
+
+	private Map<CompiledRule, Map<String, Program>> programs;
+	// the joins and the rows they read, per Rule and delta Atom
+	private Map<CompiledRule, Map<Integer, long[]>> runs;
+	private boolean enabled;
+	private boolean checked;
+	private JavaCompiler javac;
+	private Loader loader;
+	private int compiled;
+	private int failed;
+	private long compiledRuns;
+	private long checks;
+	private long compileNanos;
+
+	/**
+	 * Creates a compiler that is turned off until setEnabled(true).
+	 */
+	public RuleCompiler(){
+		this.programs = new IdentityHashMap<CompiledRule, Map<String, Program>>();
+		this.runs = new IdentityHashMap<CompiledRule, Map<Integer, long[]>>();
+		this.javac = ToolProvider.getSystemJavaCompiler();
+		this.loader = new Loader(RuleCompiler.class.getClassLoader());
+	}
+
+	/**
+	 * Whether Rules are compiled at all.
+	 * @return false by default, and always false if there is no Java compiler
+	 */
+	public boolean isEnabled(){
+		return this.enabled && this.javac != null;
+	}
+
+	/**
+	 * Sets whether Rules are compiled.  Turned off, every join is interpreted.
+	 * @param bEnabled false to interpret every join
+	 */
+	public void setEnabled(boolean bEnabled){
+		this.enabled = bEnabled;
+	}
+
+	/**
+	 * Whether every compiled join is checked against the interpreted one.
+	 * @return false by default
+	 */
+	public boolean isChecked(){
+		return this.checked;
+	}
+
+	/**
+	 * Sets whether every compiled join is checked against the interpreted one.
+	 * @param bChecked true to run both and compare
+	 */
+	public void setChecked(boolean bChecked){
+		this.checked = bChecked;
+	}
+
+	/**
+	 * Counts a join of a Rule and says whether it should run compiled.
+	 * @param tRule the Rule
+	 * @param iDelta the body Atom reading a delta, or -1
+	 * @param tSources the Relation each body Atom reads
+	 * @return true if compiling is on and the Rule has been joined HOT_THRESHOLD times with
+	 * this delta Atom over HOT_ROWS rows, or right away when checking
+	 */
+	public boolean isHot(CompiledRule tRule, int iDelta, Relation[] tSources){
+		if(!this.isEnabled()){
+			return false;
+		}else if(this.checked){
+			return true;
+		}
+		Map<Integer, long[]> tRuns = this.runs.get(tRule);
+		if(tRuns == null){
+			tRuns = new HashMap<Integer, long[]>();
+			this.runs.put(tRule, tRuns);
+		}
+		long[] tCounts = tRuns.get(iDelta);
+		if(tCounts == null){
+			tCounts = new long[2];
+			tRuns.put(iDelta, tCounts);
+		}
+		tCounts[0]++;
+		for(Relation tSource : tSources){
+			tCounts[1] += tSource == null ? 0 : tSource.size();
+		}
+		return tCounts[0] >= HOT_THRESHOLD && tCounts[1] >= HOT_ROWS;
+	}
+
+	/**
+	 * Gets the Program for a Rule and join order, compiling it the first time.
+	 * @param tRule the Rule
+	 * @param tOrder the order the JoinPlanner picked
+	 * @return the Program, or null if it couldn't be compiled and has to be interpreted
+	 */
+	public Program getProgram(CompiledRule tRule, int[] tOrder){
+		Map<String, Program> tPrograms = this.programs.get(tRule);
+		if(tPrograms == null){
+			tPrograms = new HashMap<String, Program>();
+			this.programs.put(tRule, tPrograms);
+		}
+		String sKey = Arrays.toString(tOrder);
+		if(!tPrograms.containsKey(sKey)){
+			// a failure is kept as null too, so it isn't tried again
+			tPrograms.put(sKey, this.compile(tRule, tOrder));
+		}
+		Program tProgram = tPrograms.get(sKey);
+		if(tProgram != null){
+			this.compiledRuns++;
+		}
+		return tProgram;
+	}
+
+	/**
+	 * Counts a compiled join that was checked against the interpreted one.
+	 */
+	void recordCheck(){
+		this.checks++;
+	}
+
+	/**
+	 * Gets the number of Programs compiled.
+	 * @return the number of Programs
+	 */
+	public int getCompiled(){
+		return this.compiled;
+	}
+
+	/**
+	 * Gets the number of joins run by compiled Programs.
+	 * @return the number of compiled runs
+	 */
+	public long getCompiledRuns(){
+		return this.compiledRuns;
+	}
+
+	/**
+	 * Formats the counters of this compiler.
+	 * @return a short report
+	 */
+	public String getReport(){
+		final String NEWLINE = System.getProperty("line.separator");
+		if(this.javac == null){
+			return "Compiled rules: no Java compiler, every join was interpreted" + NEWLINE;
+		}
+		return String.format("Compiled rules: %d programs in %.1f ms, %d failed, %d compiled joins, %d checked",
+				this.compiled, this.compileNanos / 1e6, this.failed, this.compiledRuns, this.checks) + NEWLINE;
+	}
+
+	private Program compile(CompiledRule tRule, int[] tOrder){
+		long lStart = System.nanoTime();
+		String sName = "Rule" + (this.compiled + this.failed);
+		String sSource = new Generator(tRule, tOrder).write(sName);
+		Program tProgram = null;
+		try{
+			Class<?> tClass = this.loader.compile(this.javac, PACKAGE + "." + sName, sSource);
+			tProgram = (Program)tClass.getConstructor().newInstance();
+			tProgram.init(tRule, tOrder);
+			this.compiled++;
+		}catch(Exception e){
+			if(this.checked){
+				throw new IllegalStateException("couldn't compile " + tRule + ": " + e.getMessage(), e);
+			}
+			this.failed++;
+		}
+		this.compileNanos += System.nanoTime() - lStart;
+		return tProgram;
+	}
+
+	/**
+	 * Gets what a Program does with every binding of the body's variables.
+	 */
+	public interface Sink {
+		/**
+		 * Called with every binding of the body's variables.
+		 * @param env the environment, with every body variable bound
+		 */
+		void bound(int[] env);
+	}
+
+	/**
+	 * A Rule compiled for one join order.  The subclasses are generated; this only holds what
+	 * they were generated from.
+	 */
+	public abstract static class Program {
+		private CompiledRule rule;
+		private int[] order;
+
+		/**
+		 * Called by the generated subclasses.
+		 */
+		protected Program(){
+		}
+
+		private void init(CompiledRule tRule, int[] tOrder){
+			this.rule = tRule;
+			this.order = tOrder.clone();
+		}
+
+		/**
+		 * Gets the Rule this Program joins.
+		 * @return the Rule
+		 */
+		public CompiledRule getRule(){
+			return this.rule;
+		}
+
+		/**
+		 * Runs the join.
+		 * @param tSources the Relation each body Atom reads, in body order (none of them null)
+		 * @param env the environment to bind the variables in (UNBOUND for all of them)
+		 * @param tSink what to do with each binding
+		 */
+		public abstract void run(Relation[] tSources, int[] env, Sink tSink);
+
+		/**
+		 * Formats the Rule and its order, for example tri(X,Y,Z) [1, 0, 2].
+		 * @return the formatted Program
+		 */
+		@Override
+		public String toString(){
+			return this.rule.getHead() + " " + Arrays.toString(this.order);
+		}
+	}
+
+	/**
+	 * Writes the source of the class for a Rule and join order.
+	 */
+	private static class Generator {
+		private CompiledRule rule;
+		private int[] order;
+		private StringBuilder fields;
+		private StringBuilder body;
+		private int indent;
+
+		Generator(CompiledRule tRule, int[] tOrder){
+			this.rule = tRule;
+			this.order = tOrder;
+			this.fields = new StringBuilder();
+			this.body = new StringBuilder();
+		}
+
+		String write(String sName){
+			CompiledRule.Atom[] tBody = this.rule.getBody();
+			boolean[] tBound = new boolean[this.rule.getSlotCount()];
+			List<int[]> tOpened = new ArrayList<int[]>();
+			this.indent = 2;
+			for(int d = 0; d < this.order.length; d++){
+				this.line("Relation r%d = tSources[%d];", d, this.order[d]);
+			}
+			for(int d = 0; d < this.order.length; d++){
+				tOpened.add(this.step(d, tBody[this.order[d]], tBound));
+			}
+			this.line("tSink.bound(env);");
+			for(int d = this.order.length - 1; d >= 0; d--){
+				int[] tFreeSlots = tOpened.get(d);
+				if(tFreeSlots == null){
+					this.indent--;
+					this.line("}");
+					continue;
+				}
+				this.indent--;
+				this.line("}");
+				for(int iSlot : tFreeSlots){
+					this.line("env[%d] = %d;", iSlot, CompiledRule.UNBOUND);
+				}
+			}
+
+			return "package " + PACKAGE + ";\n"
+					+ "import cs236.lab2.IntList;\n"
+					+ "import cs236.lab2.Relation;\n"
+					+ "import cs236.lab4.RuleCompiler;\n"
+					+ "/** " + this.rule.getRule().toString().replace("*/", "* /") + " */\n"
+					+ "public final class " + sName + " extends RuleCompiler.Program {\n"
+					+ this.fields
+					+ "\tpublic void run(Relation[] tSources, int[] env, RuleCompiler.Sink tSink){\n"
+					+ this.body
+					+ "\t}\n"
+					+ "}\n";
+		}
+
+		/**
+		 * Opens the loop, or the if, of the Atom at depth d.
+		 * @return the slots it binds, which are unbound after its loop, or null for a Lookup
+		 */
+		private int[] step(int d, CompiledRule.Atom tAtom, boolean[] tBound){
+			int iArity = tAtom.getArity();
+			IntList tKeys = new IntList();
+			IntList tFree = new IntList();
+			IntList tChecks = new IntList();
+			int[] tProbe = new int[iArity];
+			int iMask = 0;
+			int iConstants = 0;
+			for(int i = 0; i < iArity; i++){
+				int iSlot = tAtom.getSlot(i);
+				if(iSlot == CompiledRule.UNBOUND){
+					tProbe[i] = tAtom.getConstant(i);
+					iMask |= 1 << i;
+					iConstants++;
+				}else if(tBound[iSlot]){
+					tKeys.add(i);
+					iMask |= 1 << i;
+				}else{
+					int iFirst = -1;
+					for(int j = 0; j < tFree.size(); j++){
+						if(tAtom.getSlot(tFree.get(j)) == iSlot){
+							iFirst = tFree.get(j);
+						}
+					}
+					if(iFirst >= 0){
+						tChecks.add(iFirst);
+						tChecks.add(i);
+					}else{
+						tFree.add(i);
+					}
+				}
+			}
+
+			this.line("// %s", tAtom.getName());
+			if(tKeys.size() > 0 || iConstants > 0){
+				StringBuilder sb = new StringBuilder();
+				for(int i = 0; i < iArity; i++){
+					sb.append(i > 0 ? ", " : "").append(tProbe[i]);
+				}
+				this.fields.append(String.format("\tprivate final int[] probe%d = {%s};%n", d, sb));
+				for(int i = 0; i < tKeys.size(); i++){
+					this.line("probe%d[%d] = env[%d];", d, tKeys.get(i), tAtom.getSlot(tKeys.get(i)));
+				}
+			}
+			if(tFree.size() == 0 && tChecks.size() == 0){
+				this.line("if(r%d.contains(probe%d)){", d, d);
+				this.indent++;
+				return null;
+			}
+			if(tKeys.size() == 0 && iConstants == 0){
+				// rows added while this runs aren't looked at, like a scan() snapshot
+				this.line("for(int row%d = 0, n%d = r%d.size(); row%d < n%d; row%d++){", d, d, d, d, d, d);
+				this.indent++;
+			}else{
+				this.fields.append(String.format("\tprivate final IntList rows%d = new IntList();%n", d));
+				this.line("rows%d.clear();", d);
+				this.line("r%d.scan(%d, probe%d, rows%d);", d, iMask, d, d);
+				this.line("for(int i%d = 0, n%d = rows%d.size(); i%d < n%d; i%d++){", d, d, d, d, d, d);
+				this.indent++;
+				this.line("int row%d = rows%d.get(i%d);", d, d, d);
+			}
+			for(int i = 0; i < tChecks.size(); i += 2){
+				this.line("if(r%d.get(row%d, %d) != r%d.get(row%d, %d)){", d, d, tChecks.get(i), d, d, tChecks.get(i + 1));
+				this.line("\tcontinue;");
+				this.line("}");
+			}
+			int[] tFreeSlots = new int[tFree.size()];
+			for(int i = 0; i < tFree.size(); i++){
+				tFreeSlots[i] = tAtom.getSlot(tFree.get(i));
+				this.line("env[%d] = r%d.get(row%d, %d);", tFreeSlots[i], d, d, tFree.get(i));
+				tBound[tFreeSlots[i]] = true;
+			}
+			return tFreeSlots;
+		}
+
+		private void line(String sFormat, Object... tArgs){
+			for(int i = 0; i < this.indent; i++){
+				this.body.append('\t');
+			}
+			this.body.append(String.format(sFormat, tArgs)).append('\n');
+		}
+	}
+
+	/**
+	 * Compiles generated source in memory and defines the classes it compiles to.
+	 */
+	private static class Loader extends ClassLoader {
+		private Map<String, byte[]> classes;
+
+		Loader(ClassLoader tParent){
+			super(tParent);
+			this.classes = new HashMap<String, byte[]>();
+		}
+
+		Class<?> compile(JavaCompiler tJavac, String sClass, final String sSource) throws Exception {
+			String sFile = sClass.replace('.', '/') + ".java";
+			JavaFileObject tSource = new SimpleJavaFileObject(URI.create("string:///" + sFile), JavaFileObject.Kind.SOURCE){
+				@Override
+				public CharSequence getCharContent(boolean bIgnoreEncodingErrors){
+					return sSource;
+				}
+			};
+			DiagnosticCollector<JavaFileObject> tDiagnostics = new DiagnosticCollector<JavaFileObject>();
+			StandardJavaFileManager tFiles = tJavac.getStandardFileManager(tDiagnostics, null, null);
+			ForwardingJavaFileManager<StandardJavaFileManager> tOutput = new ForwardingJavaFileManager<StandardJavaFileManager>(tFiles){
+				@Override
+				public JavaFileObject getJavaFileForOutput(Location tLocation, final String sName, JavaFileObject.Kind tKind, FileObject tSibling){
+					return new SimpleJavaFileObject(URI.create("bytes:///" + sName.replace('.', '/') + tKind.extension), tKind){
+						@Override
+						public OutputStream openOutputStream(){
+							return new ByteArrayOutputStream(){
+								@Override
+								public void close(){
+									Loader.this.classes.put(sName, this.toByteArray());
+								}
+							};
+						}
+					};
+				}
+			};
+			List<String> tOptions = Arrays.asList("-classpath", System.getProperty("java.class.path"), "-g:none", "-nowarn");
+			boolean bCompiled = tJavac.getTask(null, tOutput, tDiagnostics, tOptions, null, Arrays.asList(tSource)).call();
+			tOutput.close();
+			if(!bCompiled){
+				StringBuilder sb = new StringBuilder();
+				for(Diagnostic<? extends JavaFileObject> tDiagnostic : tDiagnostics.getDiagnostics()){
+					sb.append(tDiagnostic.getMessage(null)).append("; ");
+				}
+				throw new IllegalStateException(sb.toString());
+			}
+			return this.loadClass(sClass);
+		}
+
+		@Override
+		protected Class<?> findClass(String sName) throws ClassNotFoundException {
+			byte[] tBytes = this.classes.remove(sName);
+			if(tBytes == null){
+				throw new ClassNotFoundException(sName);
+			}
+			return this.defineClass(sName, tBytes, 0, tBytes.length);
+		}
+	}
+}
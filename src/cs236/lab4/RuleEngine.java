@@ -0,0 +1,41 @@
+/*
+ * RuleEngine.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * RuleEngine is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RuleEngine is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+/**
+ * How Lab4 uses the Rules to answer its Queries.
+ * @author T. Jameson Little
+ */
+public enum RuleEngine {
+	/**
+	 * Derives every tuple up front with SemiNaiveEvaluator, then looks the Queries up
+	 */
+	BOTTOM_UP,
+	/**
+	 * Rewrites the Rules for each Query with MagicSetRewriter, then derives only what it needs
+	 */
+	MAGIC_SETS,
+	/**
+	 * Solves each Query from the Rules with tabling (TabledEvaluator), sharing subgoals between Queries
+	 */
+	TOP_DOWN
+}
@@ -0,0 +1,545 @@
+/*
+ * RuleOptimizer.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * RuleOptimizer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RuleOptimizer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab1.TokenType;
+import cs236.lab2.FactCatalog;
+import cs236.lab2.Parameter;
+import cs236.lab2.Predicate;
+import cs236.lab2.Relation;
+import cs236.lab2.Rule;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites the Rules of a program into ones that give the same answers to its Queries with less
+ * work, before any of them are evaluated.
+ *
+ * Until nothing changes:
+ * - a predicate with one non-recursive Rule and no Facts that is used in exactly one body (and
+ * isn't queried) is inlined: its body replaces the Atom, with its variables renamed apart.
+ * - if every Rule for a predicate without Facts has the same constant in a column, that constant
+ * replaces the variable in every Atom that uses the predicate.  Rules with an Atom that has a
+ * different constant there can never fire and are dropped.
+ * - an Atom that shows up twice in the same body is only joined once.
+ * Then, in bodies with more than one Atom, every Atom with a variable that isn't used anywhere
+ * else in the Rule is read through a projection that leaves the variable out, so the joins don't
+ * carry it and duplicates that only differed in it are gone.  Projections of the same Atom
+ * pattern share one predicate.
+ *
+ * The new predicates and variables have an underscore in their names, which the Tokenizer never
+ * lets into an identifier, so they can't clash with the program's own.
+ * @author T. Jameson Little
+ */
+public class RuleOptimizer {
+	private List<Rule> rules;
+	private FactCatalog catalog;
+	private Set<String> queried;
+
+	private Map<String, String> projections;
+	private int renamed;
+	private int removedAtoms;
+	private int propagated;
+	private int inlined;
+	private int projected;
+	private int dropped;
+
+	/**
+	 * Creates an optimizer for the Rules of a DatalogProgram.
+	 * @param tRules the Rules (they aren't modified)
+	 * @param tCatalog the FactCatalog, used to find predicates that have Facts
+	 * @param tQueries the Queries, whose predicates have to keep their Rules as they are
+	 */
+	public RuleOptimizer(List<Rule> tRules, FactCatalog tCatalog, List<? extends Predicate> tQueries){
+		this.rules = new ArrayList<Rule>();
+		for(Rule tRule : tRules){
+			this.rules.add(tRule.duplicate());
+		}
+		this.catalog = tCatalog;
+		this.queried = new HashSet<String>();
+		for(Predicate tQuery : tQueries){
+			this.queried.add(key(tQuery));
+		}
+		this.projections = new LinkedHashMap<String, String>();
+	}
+
+	/**
+	 * Rewrites the Rules.
+	 * @return the rewritten Rules
+	 */
+	public List<Rule> optimize(){
+		boolean bChanged = true;
+		while(bChanged){
+			bChanged = this.inline();
+			bChanged |= this.propagateConstants();
+			bChanged |= this.removeDuplicateAtoms();
+		}
+		this.pushProjections();
+		return this.rules;
+	}
+
+	/**
+	 * Gets what was rewritten and the rewritten program.
+	 * @return a formatted report
+	 */
+	public String getReport(){
+		final String NEWLINE = System.getProperty("line.separator");
+
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Rewritten rules(%d):", this.rules.size())).append(NEWLINE);
+		for(Rule tRule : this.rules){
+			sb.append("  ").append(tRule.toString()).append(NEWLINE);
+		}
+		sb.append(String.format("Optimizer: %d rules inlined, %d constants propagated, %d rules dropped, %d duplicate atoms removed, %d atoms projected",
+				this.inlined, this.propagated, this.dropped, this.removedAtoms, this.projected)).append(NEWLINE);
+		return sb.toString();
+	}
+
+	/**
+	 * Inlines every predicate that can be inlined.  Which Rules define and use each predicate is
+	 * worked out once and kept up to date as Rules are rewritten, and a predicate is looked at
+	 * again only when its definitions or uses change, so a chain of n single-use predicates takes
+	 * n steps.
+	 */
+	private boolean inline(){
+		// the Rules by position, null once a Rule is gone
+		List<Rule> tSlots = new ArrayList<Rule>(this.rules);
+		Map<String, List<Integer>> tDefinitions = new LinkedHashMap<String, List<Integer>>();
+		Map<String, List<Integer>> tUsers = new HashMap<String, List<Integer>>();
+		Map<String, Integer> tUses = new HashMap<String, Integer>();
+		for(int r = 0; r < tSlots.size(); r++){
+			add(tDefinitions, key(tSlots.get(r)), r);
+			for(Predicate tAtom : tSlots.get(r).getPredicateList()){
+				add(tUsers, key(tAtom), r);
+				tUses.put(key(tAtom), uses(tUses, key(tAtom)) + 1);
+			}
+		}
+		// inlining a predicate that isn't recursive never changes which predicates are
+		Set<String> tRecursive = new HashSet<String>();
+		for(DependencyGraph.Stratum tStratum : new DependencyGraph(this.rules).getStrata()){
+			if(tStratum.isRecursive()){
+				tRecursive.addAll(tStratum.getPredicates());
+			}
+		}
+
+		boolean bChanged = false;
+		Set<String> tQueued = new LinkedHashSet<String>(tDefinitions.keySet());
+		while(!tQueued.isEmpty()){
+			String sKey = tQueued.iterator().next();
+			tQueued.remove(sKey);
+			List<Integer> tDefinedBy = tDefinitions.get(sKey);
+			if(tDefinedBy == null || tDefinedBy.size() != 1 || uses(tUses, sKey) != 1 || tRecursive.contains(sKey)
+					|| this.queried.contains(sKey) || !this.isPlain(sKey)){
+				continue;
+			}
+			int iDefinition = tDefinedBy.get(0);
+			Rule tDefinition = tSlots.get(iDefinition);
+			if(!isSafe(tDefinition)){
+				continue;
+			}
+			// the one Rule that still uses it (the list can hold Rules that no longer do)
+			int iCaller = -1;
+			int iAtom = -1;
+			for(int r : tUsers.get(sKey)){
+				Rule tRule = tSlots.get(r);
+				for(int i = 0; tRule != null && i < tRule.getPredicateList().size(); i++){
+					if(key(tRule.getPredicateList().get(i)).equals(sKey)){
+						iCaller = r;
+						iAtom = i;
+						break;
+					}
+				}
+				if(iCaller >= 0){
+					break;
+				}
+			}
+
+			Rule tCaller = tSlots.get(iCaller);
+			Rule tInlined = this.inline(tCaller, iAtom, tDefinition);
+			tSlots.set(iDefinition, null);
+			tDefinitions.remove(sKey);
+			tUses.remove(sKey);
+			tUsers.remove(sKey);
+			if(tInlined == null){
+				// neither the caller's nor the definition's body Atoms are used any more
+				tSlots.set(iCaller, null);
+				tDefinitions.get(key(tCaller)).remove((Integer)iCaller);
+				tQueued.add(key(tCaller));
+				List<Predicate> tGone = new ArrayList<Predicate>(tCaller.getPredicateList());
+				tGone.remove(iAtom);
+				tGone.addAll(tDefinition.getPredicateList());
+				for(Predicate tAtom : tGone){
+					tUses.put(key(tAtom), uses(tUses, key(tAtom)) - 1);
+					tQueued.add(key(tAtom));
+				}
+				this.dropped++;
+			}else{
+				tSlots.set(iCaller, tInlined);
+				for(Predicate tAtom : tDefinition.getPredicateList()){
+					add(tUsers, key(tAtom), iCaller);
+				}
+				tQueued.add(key(tCaller));
+			}
+			this.inlined++;
+			bChanged = true;
+		}
+
+		this.rules.clear();
+		for(Rule tRule : tSlots){
+			if(tRule != null){
+				this.rules.add(tRule);
+			}
+		}
+		return bChanged;
+	}
+
+	private static void add(Map<String, List<Integer>> tIndex, String sKey, int iRule){
+		List<Integer> tList = tIndex.get(sKey);
+		if(tList == null){
+			tList = new ArrayList<Integer>();
+			tIndex.put(sKey, tList);
+		}
+		tList.add(iRule);
+	}
+
+	private static int uses(Map<String, Integer> tUses, String sKey){
+		Integer iUses = tUses.get(sKey);
+		return iUses == null ? 0 : iUses;
+	}
+
+	/**
+	 * Replaces the body Atom at iAtom with the body of the Rule that defines it.
+	 * @return the new Rule, or null if the Atom can't match the definition's head
+	 */
+	private Rule inline(Rule tCaller, int iAtom, Rule tDefinition){
+		Rule tRenamed = this.renameApart(tDefinition);
+		Predicate tAtom = tCaller.getPredicateList().get(iAtom);
+		Map<String, Parameter> tSubstitution = new HashMap<String, Parameter>();
+		for(int i = 0; i < tAtom.size(); i++){
+			Parameter a = resolve(tRenamed.get(i), tSubstitution);
+			Parameter b = resolve(tAtom.get(i), tSubstitution);
+			if(a.isConstant() && b.isConstant()){
+				if(!a.sameValue(b)){
+					return null;
+				}
+			}else if(!a.isConstant()){
+				if(!a.equals(b)){
+					tSubstitution.put(a.getName(), b);
+				}
+			}else{
+				tSubstitution.put(b.getName(), a);
+			}
+		}
+
+		List<Predicate> tBody = new ArrayList<Predicate>();
+		for(int i = 0; i < tCaller.getPredicateList().size(); i++){
+			if(i == iAtom){
+				for(Predicate tInlined : tRenamed.getPredicateList()){
+					tBody.add(substitute(tInlined, tSubstitution));
+				}
+			}else{
+				tBody.add(substitute(tCaller.getPredicateList().get(i), tSubstitution));
+			}
+		}
+		return rule(substitute(tCaller, tSubstitution), tBody);
+	}
+
+	private Rule renameApart(Rule tRule){
+		Map<String, Parameter> tNames = new HashMap<String, Parameter>();
+		this.renamed++;
+		for(Parameter p : variables(tRule)){
+			// a name that was already renamed keeps only its original part
+			String sName = p.getName();
+			if(sName.indexOf('_') >= 0){
+				sName = sName.substring(0, sName.indexOf('_'));
+			}
+			tNames.put(p.getName(), new Parameter(sName + "_" + this.renamed, TokenType.IDENT));
+		}
+		List<Predicate> tBody = new ArrayList<Predicate>();
+		for(Predicate tAtom : tRule.getPredicateList()){
+			tBody.add(substitute(tAtom, tNames));
+		}
+		return rule(substitute(tRule, tNames), tBody);
+	}
+
+	private boolean propagateConstants(){
+		Map<String, List<Integer>> tUsers = new HashMap<String, List<Integer>>();
+		for(int r = 0; r < this.rules.size(); r++){
+			for(Predicate tAtom : this.rules.get(r).getPredicateList()){
+				List<Integer> tList = tUsers.get(key(tAtom));
+				// a Rule is only listed once even if it uses the predicate more than once
+				if(tList == null || tList.get(tList.size() - 1).intValue() != r){
+					add(tUsers, key(tAtom), r);
+				}
+			}
+		}
+
+		boolean bChanged = false;
+		boolean[] tDropped = new boolean[this.rules.size()];
+		for(Map.Entry<String, List<Rule>> tEntry : this.definitions().entrySet()){
+			List<Integer> tUsedBy = tUsers.get(tEntry.getKey());
+			if(tUsedBy == null || !this.isPlain(tEntry.getKey())){
+				continue;
+			}
+			Parameter[] tConstants = commonConstants(tEntry.getValue());
+			for(int r : tUsedBy){
+				if(tDropped[r]){
+					continue;
+				}
+				Rule tRule = this.rules.get(r);
+				Map<String, Parameter> tSubstitution = new HashMap<String, Parameter>();
+				boolean bFires = true;
+				for(Predicate tAtom : tRule.getPredicateList()){
+					if(!key(tAtom).equals(tEntry.getKey())){
+						continue;
+					}
+					for(int i = 0; i < tConstants.length; i++){
+						if(tConstants[i] == null){
+							continue;
+						}
+						Parameter p = resolve(tAtom.get(i), tSubstitution);
+						if(p.isConstant()){
+							bFires &= p.sameValue(tConstants[i]);
+						}else{
+							tSubstitution.put(p.getName(), tConstants[i]);
+						}
+					}
+				}
+				if(!bFires){
+					tDropped[r] = true;
+					this.dropped++;
+					bChanged = true;
+				}else if(!tSubstitution.isEmpty()){
+					List<Predicate> tBody = new ArrayList<Predicate>();
+					for(Predicate tAtom : tRule.getPredicateList()){
+						tBody.add(substitute(tAtom, tSubstitution));
+					}
+					this.rules.set(r, rule(substitute(tRule, tSubstitution), tBody));
+					this.propagated += tSubstitution.size();
+					bChanged = true;
+				}
+			}
+		}
+
+		List<Rule> tKept = new ArrayList<Rule>();
+		for(int r = 0; r < this.rules.size(); r++){
+			if(!tDropped[r]){
+				tKept.add(this.rules.get(r));
+			}
+		}
+		this.rules = tKept;
+		return bChanged;
+	}
+
+	// the constant every Rule has in each head column, or null where they differ
+	private static Parameter[] commonConstants(List<Rule> tRules){
+		Parameter[] tConstants = new Parameter[tRules.get(0).size()];
+		for(int i = 0; i < tConstants.length; i++){
+			Parameter p = tRules.get(0).get(i);
+			if(!p.isConstant()){
+				continue;
+			}
+			tConstants[i] = p;
+			for(Rule tRule : tRules){
+				if(!tRule.get(i).isConstant() || !tRule.get(i).sameValue(p)){
+					tConstants[i] = null;
+					break;
+				}
+			}
+		}
+		return tConstants;
+	}
+
+	private boolean removeDuplicateAtoms(){
+		boolean bChanged = false;
+		for(Rule tRule : this.rules){
+			Set<String> tSeen = new HashSet<String>();
+			List<Predicate> tBody = tRule.getPredicateList();
+			for(int i = 0; i < tBody.size(); i++){
+				if(!tSeen.add(tBody.get(i).toString())){
+					tBody.remove(i--);
+					this.removedAtoms++;
+					bChanged = true;
+				}
+			}
+		}
+		return bChanged;
+	}
+
+	private void pushProjections(){
+		List<Rule> tProjections = new ArrayList<Rule>();
+		for(Rule tRule : this.rules){
+			List<Predicate> tBody = tRule.getPredicateList();
+			if(tBody.size() < 2){
+				continue;
+			}
+			Map<String, Integer> tCounts = new HashMap<String, Integer>();
+			count(tRule, tCounts);
+			for(Predicate tAtom : tBody){
+				count(tAtom, tCounts);
+			}
+			for(int i = 0; i < tBody.size(); i++){
+				Predicate tAtom = tBody.get(i);
+				Map<String, Integer> tOwn = new HashMap<String, Integer>();
+				count(tAtom, tOwn);
+				// the distinct variables the rest of the Rule needs, in order
+				List<Parameter> tKept = new ArrayList<Parameter>();
+				Set<String> tNames = new HashSet<String>();
+				for(Parameter p : tAtom){
+					if(!p.isConstant() && tCounts.get(p.getName()) > tOwn.get(p.getName()) && tNames.add(p.getName())){
+						tKept.add(p);
+					}
+				}
+				if(tKept.isEmpty() || tKept.size() == tOwn.size()){
+					continue;
+				}
+				Predicate tProjected = new Predicate(this.projection(tAtom, tKept, tProjections));
+				for(Parameter p : tKept){
+					tProjected.add(p.duplicate());
+				}
+				tBody.set(i, tProjected);
+				this.projected++;
+			}
+		}
+		this.rules.addAll(tProjections);
+	}
+
+	// gets the predicate for a projection of an Atom, adding its Rule the first time
+	private String projection(Predicate tAtom, List<Parameter> tKept, List<Rule> tProjections){
+		Map<String, Parameter> tCanonical = new HashMap<String, Parameter>();
+		for(Parameter p : variables(tAtom)){
+			tCanonical.put(p.getName(), new Parameter("V" + tCanonical.size(), TokenType.IDENT));
+		}
+		Predicate tPattern = substitute(tAtom, tCanonical);
+		List<Parameter> tHead = new ArrayList<Parameter>();
+		for(Parameter p : tKept){
+			tHead.add(tCanonical.get(p.getName()).duplicate());
+		}
+		String sPatternKey = tPattern.toString() + tHead.toString();
+		String sName = this.projections.get(sPatternKey);
+		if(sName == null){
+			sName = tAtom.getValue() + "_p" + (this.projections.size() + 1);
+			this.projections.put(sPatternKey, sName);
+			Rule tProjection = new Rule(sName, tHead);
+			tProjection.addPredicate(tPattern);
+			tProjections.add(tProjection);
+		}
+		return sName;
+	}
+
+	private static void count(Predicate tAtom, Map<String, Integer> tCounts){
+		for(Parameter p : tAtom){
+			if(!p.isConstant()){
+				Integer iCount = tCounts.get(p.getName());
+				tCounts.put(p.getName(), iCount == null ? 1 : iCount + 1);
+			}
+		}
+	}
+
+	private Map<String, List<Rule>> definitions(){
+		Map<String, List<Rule>> tDefinitions = new LinkedHashMap<String, List<Rule>>();
+		for(Rule tRule : this.rules){
+			List<Rule> tList = tDefinitions.get(key(tRule));
+			if(tList == null){
+				tList = new ArrayList<Rule>();
+				tDefinitions.put(key(tRule), tList);
+			}
+			tList.add(tRule);
+		}
+		return tDefinitions;
+	}
+
+	// a predicate that only gets its tuples from Rules
+	private boolean isPlain(String sKey){
+		int iSlash = sKey.lastIndexOf('/');
+		Relation tFacts = this.catalog.getRelation(sKey.substring(0, iSlash), Integer.parseInt(sKey.substring(iSlash + 1)));
+		return tFacts == null || tFacts.size() == 0;
+	}
+
+	// every head variable shows up in the body
+	private static boolean isSafe(Rule tRule){
+		Set<String> tNames = new HashSet<String>();
+		for(Predicate tAtom : tRule.getPredicateList()){
+			for(Parameter p : tAtom){
+				tNames.add(p.getName());
+			}
+		}
+		for(Parameter p : tRule){
+			if(!p.isConstant() && !tNames.contains(p.getName())){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static List<Parameter> variables(Predicate tAtom){
+		List<Parameter> tVariables = new ArrayList<Parameter>();
+		Set<String> tNames = new HashSet<String>();
+		List<Predicate> tAtoms = new ArrayList<Predicate>();
+		tAtoms.add(tAtom);
+		if(tAtom instanceof Rule){
+			tAtoms.addAll(((Rule)tAtom).getPredicateList());
+		}
+		for(Predicate tNext : tAtoms){
+			for(Parameter p : tNext){
+				if(!p.isConstant() && tNames.add(p.getName())){
+					tVariables.add(p);
+				}
+			}
+		}
+		return tVariables;
+	}
+
+	private static Parameter resolve(Parameter p, Map<String, Parameter> tSubstitution){
+		while(!p.isConstant() && tSubstitution.containsKey(p.getName())){
+			p = tSubstitution.get(p.getName());
+		}
+		return p;
+	}
+
+	// a copy of an Atom (just its own Parameters, even for a Rule) with the substitution applied
+	private static Predicate substitute(Predicate tAtom, Map<String, Parameter> tSubstitution){
+		Predicate tResult = new Predicate(tAtom.getValue());
+		for(Parameter p : tAtom){
+			tResult.add(resolve(p, tSubstitution).duplicate());
+		}
+		return tResult;
+	}
+
+	private static Rule rule(Predicate tHead, List<Predicate> tBody){
+		Rule tRule = new Rule(tHead.getValue(), new ArrayList<Parameter>(tHead));
+		for(Predicate tAtom : tBody){
+			tRule.addPredicate(tAtom);
+		}
+		return tRule;
+	}
+
+	private static String key(Predicate tPredicate){
+		return FactCatalog.relationKey(tPredicate.getValue(), tPredicate.size());
+	}
+}
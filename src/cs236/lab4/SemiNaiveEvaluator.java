@@ -0,0 +1,583 @@
+/*
+ * SemiNaiveEvaluator.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * SemiNaiveEvaluator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * SemiNaiveEvaluator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.FactCatalog;
+import cs236.lab2.IntList;
+import cs236.lab2.Relation;
+import cs236.lab2.Rule;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Evaluates the Rules bottom-up, adding every tuple they derive to the FactCatalog.
+ *
+ * The Rules are split into strata by a DependencyGraph and each stratum is finished before the
+ * ones that use it.  The first round of a stratum runs its Rules over everything derived so far.
+ * After that each round only joins the tuples that are new since the last round (the delta)
+ * against the full Relations, so no derivation is repeated from scratch.  It stops when a round
+ * derives nothing new.  Once it's done a Query is
+ * answered by looking it up in the FactCatalog like any other Fact.
+ *
+ * cancel(), or the flag given to evaluate(), stops it from another thread before it starts the
+ * next join.  The tuples it derived up to then are taken out of the FactCatalog again, since a
+ * Relation that is only part of a fixpoint would look like all of it to whatever reads it next.
+ * @author T. Jameson Little
+ */
+public class SemiNaiveEvaluator {
+	// rows of the first Atom to join between chances to reorder the rest
+	private static final int ADAPTIVE_BATCH = 256;
+
+	private FactCatalog catalog;
+	private List<CompiledRule> rules;
+	private Set<String> derivedKeys;
+	private DependencyGraph graph;
+	private Map<Rule, CompiledRule> compiled;
+	private JoinPlanner planner;
+	private RuleCompiler compiler;
+	// deltas are usually about as big as the last one, so make room for that many rows up front
+	private Map<String, Integer> lastDeltaSize;
+
+	private AtomicBoolean cancelled;
+	// the flag evaluate() was called with, which stops it as well
+	private AtomicBoolean stop;
+	private boolean complete;
+
+	private int iterations;
+	private long derivedCount;
+	private long elapsedNanos;
+
+	/**
+	 * Creates an evaluator for some Rules.  Nothing is evaluated until evaluate() is called.
+	 * @param tCatalog the FactCatalog holding the Facts (derived tuples are added to it)
+	 * @param tRules the Rules to evaluate
+	 */
+	public SemiNaiveEvaluator(FactCatalog tCatalog, List<Rule> tRules){
+		this(tCatalog, tRules, new JoinPlanner());
+	}
+
+	/**
+	 * Creates an evaluator that shares a JoinPlanner with other evaluators, so one report covers
+	 * all of them.
+	 * @param tCatalog the FactCatalog holding the Facts (derived tuples are added to it)
+	 * @param tRules the Rules to evaluate
+	 * @param tPlanner the JoinPlanner to order the Rule bodies with
+	 */
+	public SemiNaiveEvaluator(FactCatalog tCatalog, List<Rule> tRules, JoinPlanner tPlanner){
+		this(tCatalog, tRules, tPlanner, new RuleCompiler());
+	}
+
+	/**
+	 * Creates an evaluator that shares a JoinPlanner and a RuleCompiler with other evaluators.
+	 * @param tCatalog the FactCatalog holding the Facts (derived tuples are added to it)
+	 * @param tRules the Rules to evaluate
+	 * @param tPlanner the JoinPlanner to order the Rule bodies with
+	 * @param tCompiler the RuleCompiler to compile hot Rules with
+	 */
+	public SemiNaiveEvaluator(FactCatalog tCatalog, List<Rule> tRules, JoinPlanner tPlanner, RuleCompiler tCompiler){
+		this.catalog = tCatalog;
+		this.rules = new ArrayList<CompiledRule>(tRules.size());
+		this.derivedKeys = new HashSet<String>();
+		this.lastDeltaSize = new HashMap<String, Integer>();
+		this.graph = new DependencyGraph(tRules);
+		this.compiled = new IdentityHashMap<Rule, CompiledRule>();
+		this.planner = tPlanner;
+		this.compiler = tCompiler;
+		this.cancelled = new AtomicBoolean(false);
+		for(Rule tRule : tRules){
+			CompiledRule tCompiled = new CompiledRule(tRule, tCatalog.getSymbolTable());
+			this.rules.add(tCompiled);
+			this.compiled.put(tRule, tCompiled);
+			this.derivedKeys.add(tCompiled.getHead().getKey());
+		}
+	}
+
+	/**
+	 * Runs the Rules until no new tuples can be derived.
+	 * The strata are evaluated in dependency order.  A stratum that isn't recursive only needs
+	 * one pass over its Rules; a recursive one is iterated until its delta is empty.
+	 * If it is cancelled it returns early, and the FactCatalog is left as it was before.
+	 */
+	public void evaluate(){
+		this.evaluate(null);
+	}
+
+	/**
+	 * Runs the Rules until no new tuples can be derived, like evaluate(), unless a flag is set
+	 * from another thread first.  Then it stops and takes every tuple it derived out of the
+	 * FactCatalog again, so the next call starts over.  Once a call finishes, later ones return
+	 * right away, so evaluators that share the fixpoint can each ask for it.
+	 * @param tCancelled the flag that stops it, or null
+	 * @return true if the fixpoint is complete, false if it was cancelled
+	 */
+	public boolean evaluate(AtomicBoolean tCancelled){
+		if(this.complete){
+			return true;
+		}
+		long lStart = System.nanoTime();
+		this.stop = tCancelled;
+		Map<String, Integer> tSizes = new HashMap<String, Integer>();
+		for(CompiledRule tRule : this.rules){
+			Relation tHead = this.catalog.getOrCreateRelation(tRule.getHead().getName(), tRule.getHead().getArity());
+			tSizes.put(tRule.getHead().getKey(), tHead.size());
+		}
+
+		for(DependencyGraph.Stratum tStratum : this.graph.getStrata()){
+			if(this.isStopped()){
+				break;
+			}
+			List<CompiledRule> tRules = new ArrayList<CompiledRule>();
+			for(Rule tRule : tStratum.getRules()){
+				tRules.add(this.compiled.get(tRule));
+			}
+
+			// the first round can only use what the earlier strata derived
+			Map<String, Relation> tDelta = new LinkedHashMap<String, Relation>();
+			for(int r = 0; r < tRules.size() && !this.isStopped(); r++){
+				new Join(tRules.get(r), -1, null, tDelta).run();
+			}
+			this.iterations++;
+			if(!tStratum.isRecursive()){
+				this.merge(tDelta);
+				continue;
+			}
+
+			while(this.merge(tDelta) && !this.isStopped()){
+				Map<String, Relation> tNext = new LinkedHashMap<String, Relation>();
+				for(CompiledRule tRule : tRules){
+					CompiledRule.Atom[] tBody = tRule.getBody();
+					for(int i = 0; i < tBody.length && !this.isStopped(); i++){
+						// only the predicates of this stratum can have changed
+						Relation tChanged = tDelta.get(tBody[i].getKey());
+						if(tChanged != null && tStratum.contains(tBody[i].getKey())){
+							new Join(tRule, i, tChanged, tNext).run();
+						}
+					}
+				}
+				tDelta = tNext;
+				this.iterations++;
+			}
+		}
+		this.complete = !this.isStopped();
+		if(!this.complete){
+			this.rollBack(tSizes);
+		}
+		this.stop = null;
+		this.elapsedNanos += System.nanoTime() - lStart;
+		return this.complete;
+	}
+
+	/**
+	 * Stops evaluate() before the next join it would start; the join that is running finishes.
+	 * It can be called from another thread.  What was derived is taken out of the FactCatalog
+	 * again, and later calls to evaluate() stop right away.
+	 */
+	public void cancel(){
+		this.cancelled.set(true);
+	}
+
+	private boolean isStopped(){
+		return this.cancelled.get() || (this.stop != null && this.stop.get());
+	}
+
+	// puts every derived Relation back to the rows it had before evaluate() started
+	private void rollBack(Map<String, Integer> tSizes){
+		for(CompiledRule tRule : this.rules){
+			CompiledRule.Atom tHead = tRule.getHead();
+			Relation tDerived = this.catalog.getRelation(tHead.getName(), tHead.getArity());
+			int iKept = tSizes.get(tHead.getKey());
+			if(tDerived.size() == iKept){
+				continue;
+			}
+			// rows are never taken out of a Relation, so it is built again from the ones to keep
+			this.catalog.removeRelation(tHead.getName(), tHead.getArity());
+			Relation tKept = this.catalog.getOrCreateRelation(tHead.getName(), tHead.getArity());
+			int[] tRow = new int[tHead.getArity()];
+			for(int iRow = 0; iRow < iKept; iRow++){
+				tDerived.getRow(iRow, tRow);
+				tKept.add(tRow);
+			}
+		}
+	}
+
+	/**
+	 * Whether cancel() was called.
+	 * @return true if the evaluation was cancelled
+	 */
+	public boolean isCancelled(){
+		return this.cancelled.get();
+	}
+
+	/**
+	 * Adds the tuples of a delta to the full Relations.
+	 * @return true if there was anything to add
+	 */
+	private boolean merge(Map<String, Relation> tDelta){
+		boolean bChanged = false;
+		for(Relation tNew : tDelta.values()){
+			Relation tFull = this.catalog.getRelation(tNew.getName(), tNew.getArity());
+			int[] tRow = new int[tNew.getArity()];
+			for(int iRow = 0; iRow < tNew.size(); iRow++){
+				tNew.getRow(iRow, tRow);
+				tFull.add(tRow);
+			}
+			this.lastDeltaSize.put(FactCatalog.relationKey(tNew.getName(), tNew.getArity()), tNew.size());
+			this.derivedCount += tNew.size();
+			bChanged |= tNew.size() > 0;
+		}
+		return bChanged;
+	}
+
+	/**
+	 * Whether a predicate is derived by at least one of the Rules.
+	 * @param sName the name of the predicate
+	 * @param iArity the number of Parameters
+	 * @return true if some Rule has it as its head
+	 */
+	public boolean isDerived(String sName, int iArity){
+		return this.derivedKeys.contains(FactCatalog.relationKey(sName, iArity));
+	}
+
+	/**
+	 * Gets the strata the Rules are evaluated in.
+	 * @return the DependencyGraph of the Rules
+	 */
+	public DependencyGraph getDependencyGraph(){
+		return this.graph;
+	}
+
+	/**
+	 * Gets the planner that orders the Rule bodies, which keeps count of the plans it made.
+	 * @return the JoinPlanner
+	 */
+	public JoinPlanner getJoinPlanner(){
+		return this.planner;
+	}
+
+	/**
+	 * Gets the compiler for hot Rules, which keeps count of what it compiled.
+	 * @return the RuleCompiler
+	 */
+	public RuleCompiler getRuleCompiler(){
+		return this.compiler;
+	}
+
+	/**
+	 * Gets the number of rounds the evaluation took over all strata, including the ones that
+	 * found nothing.
+	 * @return the number of rounds
+	 */
+	public int getIterations(){
+		return this.iterations;
+	}
+
+	/**
+	 * Gets the number of new tuples the Rules derived.
+	 * @return the number of tuples added to the FactCatalog
+	 */
+	public long getDerivedCount(){
+		return this.derivedCount;
+	}
+
+	/**
+	 * Gets the time spent evaluating.
+	 * @return the time in nanoseconds
+	 */
+	public long getElapsedNanos(){
+		return this.elapsedNanos;
+	}
+
+	/**
+	 * Joins the body of one Rule, with one body Atom reading from a delta instead of the full
+	 * Relation, and adds the head tuples that aren't known yet to the output.  The delta is
+	 * joined first and the JoinPlanner orders the rest.
+	 *
+	 * The rows of the first Atom are joined in batches, and after each batch the plan gets a
+	 * chance to reorder the rest of the body if the Atoms returned a lot more or fewer rows than
+	 * it expected.  Each row of the first Atom is joined on its own, so the order can change
+	 * between any two of them.
+	 *
+	 * That is how the body is joined when the JoinPlanner isn't batched.  Otherwise a BatchJoin
+	 * does the same a batch of bindings at a time, and a cyclic body is joined with a
+	 * LeapfrogJoin, all of its Atoms at once, unless the JoinPlanner finds its delta too small
+	 * to be worth it.  Once the RuleCompiler says a Rule is hot it is
+	 * joined by the class the RuleCompiler generated for the planned order instead, unless it
+	 * couldn't be compiled.
+	 */
+	private class Join implements RuleCompiler.Sink {
+		private CompiledRule rule;
+		private int delta;
+		private Relation[] bodySources;
+		private JoinPlanner.AdaptivePlan plan;
+		private CompiledRule.Atom[] order;
+		private Relation[] sources;
+		private Map<String, Relation> output;
+
+		private int[] env;
+		private int[][] tuples;
+		private IntList[] rows;
+		private int[] head;
+		// the Relations the head goes to, looked up the first time they are needed
+		private Relation headFull;
+		private Relation headNew;
+		// where the head tuples go instead while a compiled join is being checked
+		private Relation collected;
+
+		Join(CompiledRule tRule, int iDelta, Relation tDelta, Map<String, Relation> tOutput){
+			this.rule = tRule;
+			this.output = tOutput;
+
+			// in body order until run() plans the join
+			CompiledRule.Atom[] tBody = tRule.getBody();
+			this.delta = iDelta;
+			this.bodySources = new Relation[tBody.length];
+			for(int i = 0; i < tBody.length; i++){
+				this.bodySources[i] = i == iDelta ? tDelta : catalog.getRelation(tBody[i].getName(), tBody[i].getArity());
+			}
+			this.order = new CompiledRule.Atom[tBody.length];
+			this.sources = new Relation[tBody.length];
+
+			this.env = new int[tRule.getSlotCount()];
+			Arrays.fill(this.env, CompiledRule.UNBOUND);
+			this.tuples = new int[tBody.length][];
+			this.rows = new IntList[tBody.length];
+			for(int i = 0; i < tBody.length; i++){
+				this.rows[i] = new IntList();
+			}
+			this.head = new int[tRule.getHead().getArity()];
+		}
+
+		void run(){
+			for(Relation tSource : this.bodySources){
+				if(tSource == null || tSource.size() == 0){
+					// an empty Relation in the body means the Rule can't fire
+					return;
+				}
+			}
+			if(this.bodySources.length == 0){
+				// a Rule with no body (the magic rewriting makes these) is just its head
+				this.emit(0);
+				return;
+			}
+			if(planner.isLeapfrog(this.rule, this.delta, this.bodySources)){
+				new LeapfrogJoin(this.rule, this.bodySources){
+					@Override
+					protected void bound(int[] env){
+						Join.this.emit(0);
+					}
+				}.run(this.env);
+				return;
+			}
+			if(compiler.isHot(this.rule, this.delta, this.bodySources)){
+				int[] tOrder = planner.getOrder(this.rule, this.delta, 0, this.bodySources,
+						catalog.getSymbolTable().getDomainSize());
+				RuleCompiler.Program tProgram = compiler.getProgram(this.rule, tOrder);
+				if(tProgram != null && compiler.isChecked()){
+					this.check(tProgram);
+					return;
+				}else if(tProgram != null){
+					tProgram.run(this.bodySources, this.env, this);
+					return;
+				}
+			}
+			this.interpret();
+		}
+
+		public void bound(int[] env){
+			this.emit(0);
+		}
+
+		// runs the interpreted join and the Program into their own Relations and compares them
+		private void check(RuleCompiler.Program tProgram){
+			CompiledRule.Atom tHead = this.rule.getHead();
+			this.collected = new Relation(tHead.getName(), tHead.getArity());
+			this.interpret();
+			Relation tExpected = this.collected;
+			this.collected = new Relation(tHead.getName(), tHead.getArity());
+			tProgram.run(this.bodySources, this.env, this);
+			Relation tActual = this.collected;
+			this.collected = null;
+
+			boolean bSame = tExpected.size() == tActual.size();
+			for(int iRow = 0; bSame && iRow < tActual.size(); iRow++){
+				tActual.getRow(iRow, this.head);
+				bSame = tExpected.contains(this.head);
+			}
+			if(!bSame){
+				throw new IllegalStateException(String.format("compiled %s derived %d tuples for %s, interpreted derived %d",
+						tProgram, tActual.size(), this.rule, tExpected.size()));
+			}
+			compiler.recordCheck();
+			for(int iRow = 0; iRow < tActual.size(); iRow++){
+				tActual.getRow(iRow, this.head);
+				this.emit(this.head.length);
+			}
+		}
+
+		// joins the body with a BatchJoin, or one binding at a time if the planner isn't batched
+		private void interpret(){
+			this.plan = planner.getAdaptivePlan(this.rule, this.delta, 0, this.bodySources,
+					catalog.getSymbolTable().getDomainSize());
+			if(planner.isBatched()){
+				new BatchJoin(this.rule, this.bodySources, this.plan){
+					@Override
+					protected void bound(int[] env){
+						Join.this.emit(0);
+					}
+				}.run(this.env);
+				return;
+			}
+			this.arrange(this.plan.getOrder());
+			if(this.order.length < 3){
+				// there is nothing to reorder after the first Atom
+				this.join(0);
+				return;
+			}
+
+			long lStart = System.nanoTime();
+			CompiledRule.Atom tAtom = this.order[0];
+			Relation tSource = this.sources[0];
+			IntList tRows = this.rows[0];
+			int iBound = tAtom.bind(this.env, this.tuples[0]);
+			tSource.scan(iBound, this.tuples[0], tRows);
+			for(int iStart = 0; iStart < tRows.size(); iStart += ADAPTIVE_BATCH){
+				int iEnd = Math.min(iStart + ADAPTIVE_BATCH, tRows.size());
+				for(int i = iStart; i < iEnd; i++){
+					if(this.assign(tAtom, tSource, tRows.get(i), iBound)){
+						this.join(1);
+					}
+					this.unassign(tAtom, iBound);
+				}
+				if(iEnd < tRows.size() && this.plan.reoptimize(1, tRows.size() - iEnd, System.nanoTime() - lStart)){
+					this.arrange(this.plan.getOrder());
+				}
+			}
+		}
+
+		// puts the body Atoms and their Relations in the order they are joined
+		private void arrange(int[] tOrder){
+			CompiledRule.Atom[] tBody = this.rule.getBody();
+			for(int i = 0; i < tOrder.length; i++){
+				this.order[i] = tBody[tOrder[i]];
+				this.sources[i] = this.bodySources[tOrder[i]];
+				this.tuples[i] = new int[this.order[i].getArity()];
+			}
+		}
+
+		private void join(int iDepth){
+			if(iDepth == this.order.length){
+				this.emit(0);
+				return;
+			}
+			CompiledRule.Atom tAtom = this.order[iDepth];
+			Relation tSource = this.sources[iDepth];
+			int[] tuple = this.tuples[iDepth];
+			IntList tRows = this.rows[iDepth];
+			tRows.clear();
+			int iBound = tAtom.bind(this.env, tuple);
+			tSource.scan(iBound, tuple, tRows);
+			this.plan.observe(iDepth, tRows.size());
+
+			for(int i = 0; i < tRows.size(); i++){
+				int iRow = tRows.get(i);
+				if(this.assign(tAtom, tSource, iRow, iBound)){
+					this.join(iDepth + 1);
+				}
+				this.unassign(tAtom, iBound);
+			}
+		}
+
+		// binds the free columns of a row, checking variables that show up twice in the Atom
+		private boolean assign(CompiledRule.Atom tAtom, Relation tSource, int iRow, int iBound){
+			for(int i = 0; i < tAtom.getArity(); i++){
+				if((iBound & (1 << i)) != 0){
+					continue;
+				}
+				int iSlot = tAtom.getSlot(i);
+				int iValue = tSource.get(iRow, i);
+				if(this.env[iSlot] == CompiledRule.UNBOUND){
+					this.env[iSlot] = iValue;
+				}else if(this.env[iSlot] != iValue){
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void unassign(CompiledRule.Atom tAtom, int iBound){
+			for(int i = 0; i < tAtom.getArity(); i++){
+				if((iBound & (1 << i)) == 0){
+					this.env[tAtom.getSlot(i)] = CompiledRule.UNBOUND;
+				}
+			}
+		}
+
+		// head variables that aren't in the body can be anything in the domain
+		private void emit(int iColumn){
+			CompiledRule.Atom tHead = this.rule.getHead();
+			if(iColumn == this.head.length){
+				if(this.headFull == null){
+					this.headFull = catalog.getRelation(tHead.getName(), tHead.getArity());
+				}
+				if(!this.headFull.contains(this.head)){
+					if(this.collected != null){
+						this.collected.add(this.head);
+						return;
+					}
+					if(this.headNew == null){
+						this.headNew = this.output.get(tHead.getKey());
+					}
+					if(this.headNew == null){
+						Integer iExpected = lastDeltaSize.get(tHead.getKey());
+						this.headNew = new Relation(tHead.getName(), tHead.getArity(), iExpected == null ? 0 : iExpected);
+						this.output.put(tHead.getKey(), this.headNew);
+					}
+					this.headNew.add(this.head);
+				}
+				return;
+			}
+			int iSlot = tHead.getSlot(iColumn);
+			if(iSlot == CompiledRule.UNBOUND){
+				this.head[iColumn] = tHead.getConstant(iColumn);
+				this.emit(iColumn + 1);
+			}else if(this.env[iSlot] != CompiledRule.UNBOUND){
+				this.head[iColumn] = this.env[iSlot];
+				this.emit(iColumn + 1);
+			}else{
+				for(int iId = 0; iId < catalog.getSymbolTable().getDomainSize(); iId++){
+					this.env[iSlot] = iId;
+					this.head[iColumn] = iId;
+					this.emit(iColumn + 1);
+				}
+				this.env[iSlot] = CompiledRule.UNBOUND;
+			}
+		}
+	}
+}
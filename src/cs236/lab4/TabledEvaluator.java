@@ -0,0 +1,889 @@
+/*
+ * TabledEvaluator.java
+ *
+ * Copyright (c) 2010, T. Jameson Little.
+ *
+ * This file is part of cs236.lab4.
+ *
+ * TabledEvaluator is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * TabledEvaluator is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with cs236.lab4.  If not, see <http ://www.gnu.org/licenses/>.
+ */
+
+package cs236.lab4;
+
+import cs236.lab2.FactCatalog;
+import cs236.lab2.IntList;
+import cs236.lab2.Parameter;
+import cs236.lab2.Predicate;
+import cs236.lab2.Relation;
+import cs236.lab2.Rule;
+import cs236.lab2.SymbolTable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Evaluates goals top-down from the Rules, remembering the answers to every subgoal it sees.
+ *
+ * A subgoal is a predicate with some of its columns bound to constants, and two subgoals that
+ * only differ in the names of their variables (variants) share one table.  The first call to a
+ * subgoal evaluates its Rules, calling the subgoals in their bodies in the order the JoinPlanner
+ * picks for what the call binds, passing on whatever is bound by then; every later call just
+ * reads the answers it already has.
+ *
+ * When a subgoal calls itself, directly or through others, the call gets the answers found so
+ * far instead of looping.  The subgoals that depend on each other like that form a strongly
+ * connected component, which is found the same way Tarjan's algorithm does it.  The oldest
+ * subgoal of the component (its leader) keeps re-evaluating the whole component until a pass
+ * finds no new answers, then marks all of it complete.  Complete tables never change again, so
+ * they are shared by every goal after that, including later Queries.
+ *
+ * Only the first evaluation of a subgoal joins its Rules over everything.  Every answer is
+ * stamped with the clock when it is added, and each later evaluation runs a Rule once per
+ * derived body Atom, with that Atom reading only the answers added since the last evaluation
+ * started (its delta) and the rest reading their whole tables, the way SemiNaiveEvaluator does.
+ * A pass over a component that adds a few answers costs about as much as those answers, not as
+ * much as the tables.
+ *
+ * Both of those rely on every pass making the same calls: a delta only completes the join if the
+ * other Atoms read the same tables as before, and a pass that finds nothing new only proves the
+ * component done if it re-evaluated every member.  The order of a Rule's body decides what each
+ * Atom is called with, so a subgoal keeps the order it got from the JoinPlanner at its first
+ * evaluation, even if the planner would pick another one later.
+ *
+ * The Rules are compiled once into Templates whose variables are numbered slots, so running a
+ * Rule binds ints in a reusable environment and never looks at a name.  Subgoals being
+ * evaluated are kept on a stack of Activations instead of the Java stack, so a chain of calls
+ * can be as deep as memory allows.
+ *
+ * Each table can only grow to (domain size)^arity answers and a pass that adds nothing ends its
+ * component, so this always finishes and finds every answer, in polynomial time.  A call can
+ * still be cancelled; the tables that weren't complete by then are dropped and started over by
+ * the next call that needs them.
+ * @author T. Jameson Little
+ */
+public class TabledEvaluator {
+	// steps of run() between looks at the cancel flag
+	private static final int CANCEL_CHECK = 4096;
+
+	private FactCatalog catalog;
+	private Map<String, List<Template>> rulesByHead;
+	private ActiveDomains activeDomains;
+	private JoinPlanner planner;
+	private Map<Subgoal, Subgoal> tables;
+	// looks up a call pattern without making a Subgoal for it
+	private Subgoal key;
+	private IntList factRows;
+	// the subgoals whose Rules are running, innermost last; the first activeCount are in use
+	private List<Activation> activations;
+	private int activeCount;
+
+	// the subgoals being evaluated, innermost last
+	private List<Subgoal> stack;
+	// subgoals that have been evaluated but aren't complete yet, oldest first
+	private List<Subgoal> incomplete;
+	private int nextIndex;
+	private int pass;
+	private boolean changed;
+	// goes up every time an evaluation starts, answers are stamped with it
+	private int clock;
+	// set from another thread to stop the call that is running, or null if it can't be stopped
+	private AtomicBoolean cancelled;
+
+	private long evaluations;
+
+	/**
+	 * Creates an evaluator for the Rules of a DatalogProgram.  The tables start out empty.
+	 * @param tCatalog the FactCatalog holding the Facts (it isn't modified)
+	 * @param tRules the Rules
+	 */
+	public TabledEvaluator(FactCatalog tCatalog, List<Rule> tRules){
+		this(tCatalog, tRules, new JoinPlanner());
+	}
+
+	/**
+	 * Creates an evaluator that shares a JoinPlanner with other evaluators.
+	 * @param tCatalog the FactCatalog holding the Facts (it isn't modified)
+	 * @param tRules the Rules
+	 * @param tPlanner the JoinPlanner to order the Rule bodies with
+	 */
+	public TabledEvaluator(FactCatalog tCatalog, List<Rule> tRules, JoinPlanner tPlanner){
+		this.catalog = tCatalog;
+		this.rulesByHead = new HashMap<String, List<Template>>();
+		List<Template> tTemplates = new ArrayList<Template>();
+		for(Rule tRule : tRules){
+			CompiledRule tCompiled = new CompiledRule(tRule, tCatalog.getSymbolTable());
+			String sKey = tCompiled.getHead().getKey();
+			List<Template> tHeadRules = this.rulesByHead.get(sKey);
+			if(tHeadRules == null){
+				tHeadRules = new ArrayList<Template>();
+				this.rulesByHead.put(sKey, tHeadRules);
+			}
+			Template tTemplate = new Template(tCompiled);
+			tHeadRules.add(tTemplate);
+			tTemplates.add(tTemplate);
+		}
+		for(Template tTemplate : tTemplates){
+			tTemplate.link(this);
+		}
+		this.activeDomains = new ActiveDomains(tCatalog, tRules);
+		this.planner = tPlanner;
+		this.tables = new HashMap<Subgoal, Subgoal>();
+		this.stack = new ArrayList<Subgoal>();
+		this.incomplete = new ArrayList<Subgoal>();
+		this.key = new Subgoal(null, null);
+		this.factRows = new IntList();
+		this.activations = new ArrayList<Activation>();
+	}
+
+	/**
+	 * Gets every answer to a goal.  Parameters that are constants, or identifiers that have a
+	 * value, are bound; the rest are variables.
+	 * @param tGoal the goal
+	 * @return the complete table of answers, one full tuple per answer (don't modify it)
+	 */
+	public Relation solve(Predicate tGoal){
+		return this.solve(tGoal, null);
+	}
+
+	/**
+	 * Gets every answer to a goal like solve(Predicate), unless a flag is set from another thread
+	 * first.  Then it stops and returns the answers it had, and every table that wasn't complete
+	 * yet is dropped.
+	 * @param tGoal the goal
+	 * @param tCancelled the flag that stops it, or null
+	 * @return the table of answers, complete unless the flag was set (don't modify it)
+	 */
+	public Relation solve(Predicate tGoal, AtomicBoolean tCancelled){
+		SymbolTable tSymbols = this.catalog.getSymbolTable();
+		int[] tPattern = new int[tGoal.size()];
+		List<String> tVariables = new ArrayList<String>();
+		for(int i = 0; i < tPattern.length; i++){
+			Parameter p = tGoal.get(i);
+			if(p.isConstant() || p.getValue() != null){
+				tPattern[i] = tSymbols.getId(p);
+				if(tPattern[i] == SymbolTable.UNKNOWN){
+					// nothing can match a constant that isn't in the domain
+					return new Relation(tGoal.getValue(), tGoal.size());
+				}
+			}else{
+				if(!tVariables.contains(p.getName())){
+					tVariables.add(p.getName());
+				}
+				tPattern[i] = variable(tVariables.indexOf(p.getName()));
+			}
+		}
+		this.cancelled = tCancelled;
+		try{
+			return this.call(tGoal.getValue(), tPattern).answers;
+		}finally{
+			this.cancelled = null;
+		}
+	}
+
+	/**
+	 * Whether a predicate is the head of some Rule.
+	 * @param sName the name of the predicate
+	 * @param iArity the number of Parameters
+	 * @return true if it has Rules (otherwise it only has Facts)
+	 */
+	public boolean isDerived(String sName, int iArity){
+		return this.rulesByHead.containsKey(FactCatalog.relationKey(sName, iArity));
+	}
+
+	/**
+	 * Gets the number of subgoal tables.
+	 * @return the number of distinct subgoals called so far
+	 */
+	public int getTableCount(){
+		return this.tables.size();
+	}
+
+	/**
+	 * Gets the number of answers in all the tables.
+	 * @return the total number of answers
+	 */
+	public long getAnswerCount(){
+		long lCount = 0;
+		for(Subgoal tSubgoal : this.tables.values()){
+			lCount += tSubgoal.answers.size();
+		}
+		return lCount;
+	}
+
+	/**
+	 * Gets the planner that orders the Rule bodies for each call pattern.
+	 * @return the JoinPlanner
+	 */
+	public JoinPlanner getJoinPlanner(){
+		return this.planner;
+	}
+
+	/**
+	 * Gets the number of times a subgoal's Rules were run, counting every pass over a component.
+	 * @return the number of evaluations
+	 */
+	public long getEvaluations(){
+		return this.evaluations;
+	}
+
+	// free columns are numbered in the order their variables first show up: -1, -2, ...
+	private static int variable(int iIndex){
+		return -1 - iIndex;
+	}
+
+	/**
+	 * Calls a subgoal from outside and runs until it is done.
+	 */
+	private Subgoal call(String sName, int[] tPattern){
+		Subgoal tSubgoal = this.enter(sName, tPattern);
+		this.run();
+		return tSubgoal;
+	}
+
+	/**
+	 * Calls a subgoal.  Whatever is already known about it is dealt with here; if its Rules have
+	 * to be run, an Activation for it is pushed and run() does the rest.  When that Activation
+	 * is popped the subgoal is either complete or its leader is still on the stack, which makes
+	 * the caller part of the same component.
+	 */
+	private Subgoal enter(String sName, int[] tPattern){
+		this.key.name = sName;
+		this.key.pattern = tPattern;
+		Subgoal tSubgoal = this.tables.get(this.key);
+		if(tSubgoal == null){
+			// the pattern may be a buffer that gets reused, so the table keeps its own copy
+			tSubgoal = new Subgoal(sName, tPattern.clone());
+			tSubgoal.answers = new Relation(sName, tPattern.length);
+			tSubgoal.stamps = new IntList();
+			tSubgoal.rules = this.rulesByHead.get(FactCatalog.relationKey(sName, tPattern.length));
+			if(tSubgoal.rules != null){
+				tSubgoal.orders = new int[tSubgoal.rules.size()][];
+			}
+			tSubgoal.facts = this.catalog.getRelation(sName, tPattern.length);
+			tSubgoal.row = new int[tPattern.length];
+			for(int i = 0; i < tPattern.length; i++){
+				if(tPattern[i] >= 0){
+					tSubgoal.bound |= 1 << i;
+				}
+			}
+			this.tables.put(tSubgoal, tSubgoal);
+			if(!this.isActive(tSubgoal)){
+				tSubgoal.complete = true;
+				return tSubgoal;
+			}
+			tSubgoal.position = this.incomplete.size();
+			this.incomplete.add(tSubgoal);
+		}else if(tSubgoal.complete){
+			return tSubgoal;
+		}else if(tSubgoal.onStack){
+			this.dependOn(tSubgoal.index);
+			return tSubgoal;
+		}else if(tSubgoal.pass == this.pass){
+			// already evaluated in this pass of its component, whose leader is still on the stack
+			this.dependOn(tSubgoal.index);
+			return tSubgoal;
+		}
+
+		Activation tActivation = this.push();
+		tActivation.subgoal = tSubgoal;
+		tActivation.outerChanged = this.changed;
+		tActivation.state = Activation.START;
+		tSubgoal.index = tSubgoal.lowLink = this.nextIndex++;
+		tSubgoal.onStack = true;
+		this.stack.add(tSubgoal);
+
+		this.changed = false;
+		tSubgoal.pass = this.pass;
+		return tSubgoal;
+	}
+
+	/**
+	 * Runs Activations until the stack is empty.  Each one evaluates its subgoal a pass at a
+	 * time: the Facts, then every Rule, joining the body one depth at a time with a cursor per
+	 * depth in its Frame.  A body Atom that calls a subgoal that has to be evaluated pushes it
+	 * and waits in CALLED until it is popped, so deep chains of calls use heap, not Java stack.
+	 */
+	private void run(){
+		int iSteps = 0;
+		while(this.activeCount > 0){
+			if(this.cancelled != null && ++iSteps % CANCEL_CHECK == 0 && this.cancelled.get()){
+				this.abandon();
+				return;
+			}
+			Activation a = this.activations.get(this.activeCount - 1);
+			switch(a.state){
+			case Activation.START:
+				this.evaluations++;
+				a.subgoal.since = a.subgoal.started;
+				a.subgoal.started = ++this.clock;
+				if(a.subgoal.since < 0){
+					this.addFacts(a.subgoal);
+				}
+				a.rule = 0;
+				a.delta = Activation.NOT_STARTED;
+				a.state = Activation.NEXT_RULE;
+				break;
+			case Activation.NEXT_RULE:
+				this.nextRule(a);
+				break;
+			case Activation.DESCEND:
+				this.descend(a);
+				break;
+			case Activation.CALLED:
+				this.scan(a, a.frame.callees[a.depth].answers);
+				break;
+			case Activation.NEXT_ROW:
+				this.nextRow(a);
+				break;
+			case Activation.FINISH:
+				this.finish(a);
+				break;
+			}
+		}
+	}
+
+	// the Facts that match the subgoal are answers
+	private void addFacts(Subgoal tSubgoal){
+		Relation tFacts = tSubgoal.facts;
+		if(tFacts != null && tFacts.size() > 0){
+			// the pattern has the constants in the bound columns, which is all scan() looks at
+			IntList tRows = this.factRows;
+			tRows.clear();
+			tFacts.scan(tSubgoal.bound, tSubgoal.pattern, tRows);
+			for(int i = 0; i < tRows.size(); i++){
+				tFacts.getRow(tRows.get(i), tSubgoal.row);
+				this.answer(tSubgoal, tSubgoal.row);
+			}
+		}
+	}
+
+	// starts the next run of a Rule whose head unifies with the subgoal, or ends the pass
+	private void nextRule(Activation a){
+		if(a.frame != null){
+			a.template.release();
+			a.frame = null;
+		}
+		List<Template> tRules = a.subgoal.rules;
+		while(tRules != null && a.rule < tRules.size()){
+			Template tTemplate = tRules.get(a.rule);
+			a.delta = nextDelta(a.subgoal, tTemplate, a.delta);
+			if(a.delta != Activation.NOT_STARTED){
+				Frame tFrame = tTemplate.acquire();
+				if(this.unifyHead(tTemplate.rule.getHead(), a.subgoal.pattern, tFrame.env)){
+					a.template = tTemplate;
+					a.frame = tFrame;
+					if(a.subgoal.orders[a.rule] == null){
+						a.subgoal.orders[a.rule] = this.plan(tTemplate, tFrame.env);
+					}
+					a.order = a.subgoal.orders[a.rule];
+					a.depth = 0;
+					a.state = Activation.DESCEND;
+					return;
+				}
+				tTemplate.release();
+			}
+			// done with this Rule, or its head can't match
+			a.rule++;
+			a.delta = Activation.NOT_STARTED;
+		}
+		a.state = Activation.FINISH;
+	}
+
+	/**
+	 * Picks the body Atom that reads only its delta in the next run of a Rule.  The first
+	 * evaluation of a subgoal runs each Rule once over everything; later ones run it once per
+	 * derived body Atom, and not at all if it only reads Facts.
+	 * @return the Atom, EVERYTHING, or NOT_STARTED when the Rule has no runs left
+	 */
+	private static int nextDelta(Subgoal tSubgoal, Template tTemplate, int iLast){
+		if(tSubgoal.since < 0){
+			return iLast == Activation.NOT_STARTED ? Activation.EVERYTHING : Activation.NOT_STARTED;
+		}
+		for(int i = Math.max(iLast + 1, 0); i < tTemplate.body.length; i++){
+			if(tTemplate.derived[i]){
+				return i;
+			}
+		}
+		return Activation.NOT_STARTED;
+	}
+
+	// binds the Atom at the current depth and finds its rows, calling it first if it's derived
+	private void descend(Activation a){
+		Frame tFrame = a.frame;
+		if(a.depth == a.order.length){
+			this.emit(a.subgoal, a.template.rule, 0, tFrame.env, tFrame.head);
+			this.backtrack(a);
+			return;
+		}
+		int iAtom = a.order[a.depth];
+		CompiledRule.Atom tAtom = a.template.body[iAtom];
+		int[] tuple = tFrame.tuples[iAtom];
+		tFrame.bound[a.depth] = tAtom.bind(tFrame.env, tuple);
+		if(!a.template.derived[iAtom]){
+			this.scan(a, a.template.facts[iAtom]);
+			return;
+		}
+		int[] tPattern = tFrame.patterns[iAtom];
+		callPattern(tAtom, tFrame.bound[a.depth], tuple, tPattern);
+		int iActive = this.activeCount;
+		tFrame.callees[a.depth] = this.enter(tAtom.getName(), tPattern);
+		// if the callee was pushed, this picks up in CALLED when it is done
+		a.state = Activation.CALLED;
+		if(this.activeCount == iActive){
+			this.scan(a, tFrame.callees[a.depth].answers);
+		}
+	}
+
+	// the rows are copied out, so answers added while we go through them don't get in the way
+	private void scan(Activation a, Relation tSource){
+		if(tSource == null || tSource.size() == 0){
+			this.backtrack(a);
+			return;
+		}
+		Frame tFrame = a.frame;
+		int iAtom = a.order[a.depth];
+		IntList tRows = tFrame.rows[a.depth];
+		tRows.clear();
+		if(iAtom == a.delta){
+			scanSince(tFrame.callees[a.depth], a.subgoal.since, tFrame.bound[a.depth], tFrame.tuples[iAtom], tRows);
+		}else{
+			tSource.scan(tFrame.bound[a.depth], tFrame.tuples[iAtom], tRows);
+		}
+		tFrame.sources[a.depth] = tSource;
+		tFrame.cursors[a.depth] = 0;
+		a.state = Activation.NEXT_ROW;
+	}
+
+	// the answers stamped at or after iSince that have the bound values, which are the last rows
+	private static void scanSince(Subgoal tCallee, int iSince, int iBound, int[] tuple, IntList tRows){
+		IntList tStamps = tCallee.stamps;
+		int iLow = 0;
+		int iHigh = tStamps.size();
+		while(iLow < iHigh){
+			int iMiddle = (iLow + iHigh) >>> 1;
+			if(tStamps.get(iMiddle) < iSince){
+				iLow = iMiddle + 1;
+			}else{
+				iHigh = iMiddle;
+			}
+		}
+		Relation tAnswers = tCallee.answers;
+		for(int iRow = iLow; iRow < tAnswers.size(); iRow++){
+			boolean bMatches = true;
+			for(int i = 0; i < tuple.length && bMatches; i++){
+				bMatches = (iBound & (1 << i)) == 0 || tAnswers.get(iRow, i) == tuple[i];
+			}
+			if(bMatches){
+				tRows.add(iRow);
+			}
+		}
+	}
+
+	// binds the next row at the current depth and goes down, or goes back up when they run out
+	private void nextRow(Activation a){
+		Frame tFrame = a.frame;
+		int iDepth = a.depth;
+		CompiledRule.Atom tAtom = a.template.body[a.order[iDepth]];
+		IntList tRows = tFrame.rows[iDepth];
+		while(tFrame.cursors[iDepth] < tRows.size()){
+			unassign(tAtom, tFrame.bound[iDepth], tFrame.env);
+			int iRow = tRows.get(tFrame.cursors[iDepth]++);
+			if(assign(tAtom, tFrame.sources[iDepth], iRow, tFrame.bound[iDepth], tFrame.env)){
+				a.depth++;
+				a.state = Activation.DESCEND;
+				return;
+			}
+		}
+		unassign(tAtom, tFrame.bound[iDepth], tFrame.env);
+		this.backtrack(a);
+	}
+
+	private void backtrack(Activation a){
+		if(a.depth == 0){
+			a.state = Activation.NEXT_RULE;
+		}else{
+			a.depth--;
+			a.state = Activation.NEXT_ROW;
+		}
+	}
+
+	// ends a pass: a leader goes again if anything changed, otherwise the subgoal is popped
+	private void finish(Activation a){
+		Subgoal tSubgoal = a.subgoal;
+		if(tSubgoal.lowLink == tSubgoal.index && tSubgoal.recursive && this.changed){
+			// a leader goes around its component again until nothing new turns up
+			this.changed = false;
+			tSubgoal.pass = ++this.pass;
+			a.state = Activation.START;
+			return;
+		}
+		boolean bOuterChanged = a.outerChanged;
+		this.pop();
+
+		this.stack.remove(this.stack.size() - 1);
+		tSubgoal.onStack = false;
+		if(tSubgoal.lowLink == tSubgoal.index){
+			List<Subgoal> tComponent = this.incomplete.subList(tSubgoal.position, this.incomplete.size());
+			for(Subgoal tMember : tComponent){
+				tMember.complete = true;
+			}
+			tComponent.clear();
+			this.changed = bOuterChanged;
+		}else{
+			this.dependOn(tSubgoal.lowLink);
+			this.changed |= bOuterChanged;
+		}
+	}
+
+	// drops every table that isn't complete, so nothing half done is mistaken for an answer
+	private void abandon(){
+		while(this.activeCount > 0){
+			Activation a = this.activations.get(this.activeCount - 1);
+			if(a.frame != null){
+				a.template.release();
+			}
+			this.pop();
+		}
+		for(Subgoal tSubgoal : this.incomplete){
+			this.tables.remove(tSubgoal);
+		}
+		this.incomplete.clear();
+		this.stack.clear();
+		this.changed = false;
+	}
+
+	private Activation push(){
+		if(this.activeCount == this.activations.size()){
+			this.activations.add(new Activation());
+		}
+		return this.activations.get(this.activeCount++);
+	}
+
+	private void pop(){
+		Activation a = this.activations.get(--this.activeCount);
+		a.subgoal = null;
+		a.template = null;
+		a.frame = null;
+		a.order = null;
+	}
+
+	private void dependOn(int iIndex){
+		if(!this.stack.isEmpty()){
+			Subgoal tCaller = this.stack.get(this.stack.size() - 1);
+			tCaller.lowLink = Math.min(tCaller.lowLink, iIndex);
+			// it used answers that were still being worked out under it
+			tCaller.recursive |= iIndex >= tCaller.index;
+		}
+	}
+
+	// a bound constant that can never show up in its column means there are no answers
+	private boolean isActive(Subgoal tSubgoal){
+		for(int i = 0; i < tSubgoal.pattern.length; i++){
+			if(tSubgoal.pattern[i] >= 0){
+				BitSet tValues = this.activeDomains.get(tSubgoal.name, tSubgoal.pattern.length, i);
+				if(!tValues.get(tSubgoal.pattern[i])){
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// binds the head variables to the subgoal's constants
+	private boolean unifyHead(CompiledRule.Atom tHead, int[] tPattern, int[] env){
+		for(int i = 0; i < tPattern.length; i++){
+			if(tPattern[i] < 0){
+				continue;
+			}
+			int iSlot = tHead.getSlot(i);
+			if(iSlot == CompiledRule.UNBOUND){
+				if(tHead.getConstant(i) != tPattern[i]){
+					return false;
+				}
+			}else if(env[iSlot] == CompiledRule.UNBOUND){
+				env[iSlot] = tPattern[i];
+			}else if(env[iSlot] != tPattern[i]){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// orders the body for the slots the head bound; derived Atoms haven't been called yet
+	private int[] plan(Template tTemplate, int[] env){
+		long iBoundSlots = 0;
+		for(int i = 0; i < env.length && i < 64; i++){
+			if(env[i] != CompiledRule.UNBOUND){
+				iBoundSlots |= 1L << i;
+			}
+		}
+		return this.planner.getOrder(tTemplate.rule, -1, iBoundSlots, tTemplate.facts,
+				this.catalog.getSymbolTable().getDomainSize());
+	}
+
+	// the subgoal a body Atom calls: its bound values, with its variables numbered by first use
+	private static void callPattern(CompiledRule.Atom tAtom, int iBound, int[] tuple, int[] tPattern){
+		int iVariables = 0;
+		for(int i = 0; i < tPattern.length; i++){
+			if((iBound & (1 << i)) != 0){
+				tPattern[i] = tuple[i];
+				continue;
+			}
+			int j = 0;
+			while(j < i && ((iBound & (1 << j)) != 0 || tAtom.getSlot(j) != tAtom.getSlot(i))){
+				j++;
+			}
+			tPattern[i] = j < i ? tPattern[j] : variable(iVariables++);
+		}
+	}
+
+	// binds the free columns of a row, checking variables that show up twice in the Atom
+	private static boolean assign(CompiledRule.Atom tAtom, Relation tSource, int iRow, int iBound, int[] env){
+		for(int i = 0; i < tAtom.getArity(); i++){
+			if((iBound & (1 << i)) != 0){
+				continue;
+			}
+			int iSlot = tAtom.getSlot(i);
+			int iValue = tSource.get(iRow, i);
+			if(env[iSlot] == CompiledRule.UNBOUND){
+				env[iSlot] = iValue;
+			}else if(env[iSlot] != iValue){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void unassign(CompiledRule.Atom tAtom, int iBound, int[] env){
+		for(int i = 0; i < tAtom.getArity(); i++){
+			if((iBound & (1 << i)) == 0){
+				env[tAtom.getSlot(i)] = CompiledRule.UNBOUND;
+			}
+		}
+	}
+
+	// head variables that aren't in the body can be anything in the domain
+	private void emit(Subgoal tSubgoal, CompiledRule tRule, int iColumn, int[] env, int[] tHeadTuple){
+		CompiledRule.Atom tHead = tRule.getHead();
+		if(iColumn == tHeadTuple.length){
+			this.answer(tSubgoal, tHeadTuple);
+			return;
+		}
+		int iSlot = tHead.getSlot(iColumn);
+		if(iSlot == CompiledRule.UNBOUND){
+			tHeadTuple[iColumn] = tHead.getConstant(iColumn);
+			this.emit(tSubgoal, tRule, iColumn + 1, env, tHeadTuple);
+		}else if(env[iSlot] != CompiledRule.UNBOUND){
+			tHeadTuple[iColumn] = env[iSlot];
+			this.emit(tSubgoal, tRule, iColumn + 1, env, tHeadTuple);
+		}else{
+			for(int iId = 0; iId < this.catalog.getSymbolTable().getDomainSize(); iId++){
+				env[iSlot] = iId;
+				tHeadTuple[iColumn] = iId;
+				this.emit(tSubgoal, tRule, iColumn + 1, env, tHeadTuple);
+			}
+			env[iSlot] = CompiledRule.UNBOUND;
+		}
+	}
+
+	// keeps a tuple if it matches the subgoal, including variables it repeats
+	private void answer(Subgoal tSubgoal, int[] tuple){
+		int[] tPattern = tSubgoal.pattern;
+		for(int i = 0; i < tPattern.length; i++){
+			if(tPattern[i] >= 0 ? tuple[i] != tPattern[i] : tuple[i] != tuple[firstUse(tPattern, i)]){
+				return;
+			}
+		}
+		if(tSubgoal.answers.add(tuple)){
+			tSubgoal.stamps.add(this.clock);
+			this.changed = true;
+		}
+	}
+
+	private static int firstUse(int[] tPattern, int iColumn){
+		for(int i = 0; i < iColumn; i++){
+			if(tPattern[i] == tPattern[iColumn]){
+				return i;
+			}
+		}
+		return iColumn;
+	}
+
+	/**
+	 * A call pattern and its table of answers.  Bound columns hold the id of their constant and
+	 * free columns a negative number per variable, so variants have equal patterns.
+	 */
+	private static class Subgoal {
+		private String name;
+		private int[] pattern;
+		private Relation answers;
+		// the clock when each answer was added, in the order of the rows
+		private IntList stamps;
+		private boolean complete;
+		// the clock when the last evaluation started, and the one before it (-1 before the first)
+		private int started = -1;
+		private int since = -1;
+
+		// looked up once when the table is made
+		private List<Template> rules;
+		// the order each Rule is joined in, picked at the first evaluation and kept until complete
+		private int[][] orders;
+		private Relation facts;
+		private int bound;
+		private int[] row;
+
+		// Tarjan's bookkeeping
+		private int index;
+		private int lowLink;
+		private boolean onStack;
+		private boolean recursive;
+		private int position;
+		private int pass = -1;
+
+		Subgoal(String sName, int[] tPattern){
+			this.name = sName;
+			this.pattern = tPattern;
+		}
+
+		@Override
+		public boolean equals(Object o){
+			if(!(o instanceof Subgoal)){
+				return false;
+			}
+			Subgoal tOther = (Subgoal)o;
+			return this.name.equals(tOther.name) && Arrays.equals(this.pattern, tOther.pattern);
+		}
+
+		@Override
+		public int hashCode(){
+			return 31 * this.name.hashCode() + Arrays.hashCode(this.pattern);
+		}
+	}
+
+	/**
+	 * A Rule worked out once for every call: which body Atoms are derived, the Relations of the
+	 * others, and a pool of Frames to run it in.  The same Rule can be running for more than
+	 * one subgoal at a time (a subgoal that calls itself through it), so each run takes a Frame
+	 * of its own; they are kept and reused, so running a Rule doesn't allocate anything once the
+	 * pool is as deep as the recursion.
+	 */
+	private static class Template {
+		private CompiledRule rule;
+		private CompiledRule.Atom[] body;
+		private boolean[] derived;
+		// the Facts of each body Atom that isn't derived, null for the ones that are
+		private Relation[] facts;
+		private List<Frame> frames;
+		private int active;
+
+		Template(CompiledRule tRule){
+			this.rule = tRule;
+			this.body = tRule.getBody();
+			this.derived = new boolean[this.body.length];
+			this.facts = new Relation[this.body.length];
+			this.frames = new ArrayList<Frame>();
+		}
+
+		// needs every Rule to be in rulesByHead
+		void link(TabledEvaluator tEvaluator){
+			for(int i = 0; i < this.body.length; i++){
+				this.derived[i] = tEvaluator.isDerived(this.body[i].getName(), this.body[i].getArity());
+				if(!this.derived[i]){
+					this.facts[i] = tEvaluator.catalog.getRelation(this.body[i].getName(), this.body[i].getArity());
+				}
+			}
+		}
+
+		Frame acquire(){
+			if(this.active == this.frames.size()){
+				this.frames.add(new Frame(this.rule));
+			}
+			Frame tFrame = this.frames.get(this.active++);
+			Arrays.fill(tFrame.env, CompiledRule.UNBOUND);
+			return tFrame;
+		}
+
+		void release(){
+			this.active--;
+		}
+	}
+
+	/**
+	 * The environment of one run of a Rule and the buffers its join uses, including where it is
+	 * in the rows of every depth.
+	 */
+	private static class Frame {
+		private int[] env;
+		// per body Atom
+		private int[][] tuples;
+		private int[][] patterns;
+		// per depth of the join
+		private IntList[] rows;
+		private int[] bound;
+		private int[] cursors;
+		private Relation[] sources;
+		private Subgoal[] callees;
+		private int[] head;
+
+		Frame(CompiledRule tRule){
+			CompiledRule.Atom[] tBody = tRule.getBody();
+			this.env = new int[tRule.getSlotCount()];
+			this.tuples = new int[tBody.length][];
+			this.patterns = new int[tBody.length][];
+			this.rows = new IntList[tBody.length];
+			this.bound = new int[tBody.length];
+			this.cursors = new int[tBody.length];
+			this.sources = new Relation[tBody.length];
+			this.callees = new Subgoal[tBody.length];
+			for(int i = 0; i < tBody.length; i++){
+				this.tuples[i] = new int[tBody[i].getArity()];
+				this.patterns[i] = new int[tBody[i].getArity()];
+				this.rows[i] = new IntList();
+			}
+			this.head = new int[tRule.getHead().getArity()];
+		}
+	}
+
+	/**
+	 * One subgoal being evaluated: which Rule it is running, in what Frame and at what depth,
+	 * and what it has to do next.  Activations are kept in a pool and reused.
+	 */
+	private static class Activation {
+		private static final int START = 0;
+		private static final int NEXT_RULE = 1;
+		private static final int DESCEND = 2;
+		private static final int CALLED = 3;
+		private static final int NEXT_ROW = 4;
+		private static final int FINISH = 5;
+
+		// which body Atom reads only its delta in the run of the current Rule
+		private static final int NOT_STARTED = -2;
+		private static final int EVERYTHING = -1;
+
+		private Subgoal subgoal;
+		// whether anything had changed for the caller before this was called
+		private boolean outerChanged;
+		private int state;
+		private int rule;
+		private int delta;
+		private Template template;
+		private Frame frame;
+		private int[] order;
+		private int depth;
+	}
+}